@@ -7,13 +7,12 @@
  * @author Bostjan Kaluza, http://bostjankaluza.net
  */
 
+import java.io.File;
 import java.util.Random;
 
 import javax.swing.JFrame;
 
 import weka.classifiers.Classifier;
-import weka.classifiers.Evaluation;
-import weka.classifiers.evaluation.ThresholdCurve;
 import weka.classifiers.trees.J48;
 import weka.core.DenseInstance;
 import weka.core.Instance;
@@ -24,8 +23,6 @@ import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.Remove;
 import weka.gui.treevisualizer.PlaceNode2;
 import weka.gui.treevisualizer.TreeVisualizer;
-import weka.gui.visualize.PlotData2D;
-import weka.gui.visualize.ThresholdVisualizePanel;
 import weka.attributeSelection.AttributeSelection;
 import weka.attributeSelection.InfoGainAttributeEval;
 import weka.attributeSelection.Ranker;
@@ -98,6 +95,11 @@ public class ClassificationTask {
 		double label = tree.classifyInstance(myUnicorn);
 		System.out.println(data.classAttribute().value((int) label));
 
+		// Same prediction with the compiled tree, no Instance needed
+		CompiledJ48 compiledTree = CompiledJ48.compile(tree, data);
+		double[] labels = compiledTree.classifyBatch(new double[][] { vals });
+		System.out.println(data.classAttribute().value((int) labels[0]));
+
 		/*
 		 * Visualize decision tree
 		 */
@@ -115,7 +117,9 @@ public class ClassificationTask {
 		 */
 
 		Classifier cl = new J48();
-		Evaluation eval_roc = new Evaluation(data);
+		ParallelEvaluation eval_roc = new ParallelEvaluation(data);
+		// ROC counts are streamed per fold, no list of predictions is kept
+		eval_roc.recordRocCurves(1000);
 		eval_roc.crossValidateModel(cl, data, 10, new Random(1), new Object[] {});
 		System.out.println(eval_roc.toSummaryString());
 		// Confusion matrix
@@ -123,33 +127,16 @@ public class ClassificationTask {
 		System.out.println(eval_roc.toMatrixString());
 
 		/*
-		 * Bonus: Plot ROC curve
+		 * Bonus: ROC curve
 		 */
 
-		ThresholdCurve tc = new ThresholdCurve();
 		int classIndex = 0;
-		Instances result = tc.getCurve(eval_roc.predictions(), classIndex);
-		// plot curve
-		ThresholdVisualizePanel vmc = new ThresholdVisualizePanel();
-		vmc.setROCString("(Area under ROC = " + tc.getROCArea(result) + ")");
-		vmc.setName(result.relationName());
-		PlotData2D tempd = new PlotData2D(result);
-		tempd.setPlotName(result.relationName());
-		tempd.addInstanceNumberAttribute();
-		// specify which points are connected
-		boolean[] cp = new boolean[result.numInstances()];
-		for (int n = 1; n < cp.length; n++)
-			cp[n] = true;
-		tempd.setConnectPoints(cp);
-
-		// add plot
-		vmc.addPlot(tempd);
-		// display curve
-		JFrame frameRoc = new javax.swing.JFrame("ROC Curve");
-		frameRoc.setSize(800, 500);
-		frameRoc.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		frameRoc.getContentPane().add(vmc);
-		frameRoc.setVisible(true);
+		RocCurve roc = eval_roc.rocCurve(classIndex);
+		System.out.println("Area under ROC = " + roc.auc());
+		System.out.println("Area under PRC = " + roc.prAuc());
+		System.out.println("Youden threshold = " + roc.youdenThreshold());
+		// save curve, plot it with any tool
+		roc.writeCsv(new File("data/roc.csv"));
 
 	}
 }
@@ -13,7 +13,6 @@ import java.io.FileReader;
 import java.util.Random;
 
 import weka.core.Instances;
-import weka.clusterers.ClusterEvaluation;
 import weka.clusterers.EM;
 	
 public class ClusteringTask {
@@ -30,8 +29,24 @@ public class ClusteringTask {
 		model.buildClusterer(data);
 		System.out.println(model);
 		
-		double logLikelihood = ClusterEvaluation.crossValidateModel(model, data, 10, new Random(1));
+		double logLikelihood = ParallelEvaluation.crossValidateModel(model, data, 10, new Random(1));
 		System.out.println(logLikelihood);
+		
+		// multithreaded EM, the E-step runs on all cores
+		ParallelEM parallelModel = new ParallelEM();
+		parallelModel.buildClusterer(data);
+		System.out.println(parallelModel);
+		
+		logLikelihood = ParallelEvaluation.crossValidateModel(parallelModel, data, 10, new Random(1));
+		System.out.println(logLikelihood);
+		
+		// mini-batch EM for large data, a fixed number of passes over the data
+		ParallelEM miniBatchModel = new ParallelEM();
+		miniBatchModel.setNumClusters(parallelModel.numberOfClusters());
+		miniBatchModel.setMiniBatchSize(100);
+		miniBatchModel.setMaxIterations(10);
+		miniBatchModel.buildClusterer(data);
+		System.out.println(miniBatchModel.getLogLikelihood());
 
 
 	}
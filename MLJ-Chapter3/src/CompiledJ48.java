@@ -0,0 +1,278 @@
+/**
+ * Chapter 3: Compiled decision tree
+ *
+ * Flattens a trained J48 tree into primitive arrays (split attribute,
+ * threshold, child offset) laid out in breadth-first order, so that
+ * scoring a row is a tight loop over arrays instead of walking the
+ * ClassifierTree object graph with a DenseInstance per call.
+ *
+ * Rows are plain double[] values indexed the same way as the attributes of
+ * the training data (the class value is ignored), missing values are NaN.
+ * Predictions are the same as J48.classifyInstance, including the
+ * fractional handling of missing values, and distribution() is the same as
+ * J48.distributionForInstance. Like J48, only the distribution uses the
+ * Laplace estimates of a tree built with -A.
+ */
+
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.j48.BinC45Split;
+import weka.classifiers.trees.j48.C45Split;
+import weka.classifiers.trees.j48.ClassifierSplitModel;
+import weka.classifiers.trees.j48.ClassifierTree;
+import weka.classifiers.trees.j48.Distribution;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class CompiledJ48 {
+
+	static final byte LEAF = 0, NUMERIC = 1, NOMINAL = 2, NOMINAL_BINARY = 3;
+
+	final int numClasses;
+
+	// per node arrays, children of a node are stored next to each other
+	final byte[] kind;
+	final int[] attribute;
+	final double[] threshold;
+	final int[] firstChild; // for leaves: offset into leafProbs
+	final int[] numChildren;
+	final double[] missingWeight; // weight of the node if the parent's attribute is missing
+
+	final double[] leafProbs;
+	final double[] laplaceProbs; // null unless the tree uses Laplace
+
+	private CompiledJ48(int numClasses, int numNodes, int numLeaves, boolean laplace) {
+		this.numClasses = numClasses;
+		kind = new byte[numNodes];
+		attribute = new int[numNodes];
+		threshold = new double[numNodes];
+		firstChild = new int[numNodes];
+		numChildren = new int[numNodes];
+		missingWeight = new double[numNodes];
+		leafProbs = new double[numLeaves * numClasses];
+		laplaceProbs = laplace ? new double[numLeaves * numClasses] : null;
+	}
+
+	/**
+	 * Compiles a trained J48 model.
+	 *
+	 * @param tree trained tree
+	 * @param header the training data (only the header is used)
+	 */
+	public static CompiledJ48 compile(J48 tree, Instances header) throws Exception {
+
+		ClassifierTree root = root(tree);
+		boolean laplace = tree.getUseLaplace();
+		int numClasses = header.numClasses();
+
+		// Breadth-first order keeps siblings next to each other
+		List<ClassifierTree> nodes = new ArrayList<ClassifierTree>();
+		List<ClassifierTree> parents = new ArrayList<ClassifierTree>();
+		List<Integer> bags = new ArrayList<Integer>();
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		nodes.add(root);
+		parents.add(null);
+		bags.add(-1);
+		queue.add(0);
+		int numLeaves = 0;
+		while (!queue.isEmpty()) {
+			ClassifierTree node = nodes.get(queue.poll());
+			if (node.isLeaf()) {
+				numLeaves++;
+				continue;
+			}
+			ClassifierTree[] sons = node.getSons();
+			for (int i = 0; i < sons.length; i++) {
+				queue.add(nodes.size());
+				nodes.add(sons[i]);
+				parents.add(node);
+				bags.add(i);
+			}
+		}
+
+		CompiledJ48 compiled = new CompiledJ48(numClasses, nodes.size(), numLeaves, laplace);
+		int nextChild = 1, nextLeaf = 0;
+		for (int n = 0; n < nodes.size(); n++) {
+			ClassifierTree node = nodes.get(n);
+			ClassifierSplitModel model = node.getLocalModel();
+
+			if (parents.get(n) != null) {
+				Distribution parentDist = parents.get(n).getLocalModel().distribution();
+				compiled.missingWeight[n] = isEmpty(node) ? 0 : parentDist.perBag(bags.get(n)) / parentDist.total();
+			} else {
+				compiled.missingWeight[n] = 1;
+			}
+
+			if (node.isLeaf()) {
+				compiled.kind[n] = LEAF;
+				compiled.attribute[n] = -1;
+				compiled.firstChild[n] = nextLeaf * numClasses;
+
+				// An empty leaf predicts with the distribution of its parent
+				Distribution dist = isEmpty(node) ? parents.get(n).getLocalModel().distribution() : model.distribution();
+				int bag = isEmpty(node) ? bags.get(n) : 0;
+				for (int j = 0; j < numClasses; j++) {
+					compiled.leafProbs[nextLeaf * numClasses + j] = dist.prob(j, bag);
+					if (laplace) {
+						compiled.laplaceProbs[nextLeaf * numClasses + j] = dist.laplaceProb(j, bag);
+					}
+				}
+				nextLeaf++;
+				continue;
+			}
+
+			int attIndex;
+			double splitPoint;
+			if (model instanceof C45Split) {
+				attIndex = ((C45Split) model).attIndex();
+				splitPoint = ((C45Split) model).splitPoint();
+				compiled.kind[n] = header.attribute(attIndex).isNominal() ? NOMINAL : NUMERIC;
+			} else if (model instanceof BinC45Split) {
+				attIndex = ((BinC45Split) model).attIndex();
+				splitPoint = ((BinC45Split) model).splitPoint();
+				compiled.kind[n] = header.attribute(attIndex).isNominal() ? NOMINAL_BINARY : NUMERIC;
+			} else {
+				throw new IllegalArgumentException("Unsupported split model: " + model.getClass().getName());
+			}
+			compiled.attribute[n] = attIndex;
+			compiled.threshold[n] = splitPoint;
+			compiled.firstChild[n] = nextChild;
+			compiled.numChildren[n] = node.getSons().length;
+			nextChild += compiled.numChildren[n];
+		}
+		return compiled;
+	}
+
+	/**
+	 * Classifies a single row.
+	 */
+	public double classify(double[] row) {
+		double[][] rows = new double[][] { row };
+		return classify(rows, 0, false, new double[numClasses]);
+	}
+
+	/**
+	 * Classifies row-major data, one double[] per row.
+	 */
+	public double[] classifyBatch(double[][] rows) {
+		double[] predictions = new double[rows.length];
+		classifyBatch(rows, predictions);
+		return predictions;
+	}
+
+	public void classifyBatch(double[][] rows, double[] predictions) {
+		double[] dist = new double[numClasses];
+		for (int i = 0; i < rows.length; i++) {
+			predictions[i] = classify(rows, i, false, dist);
+		}
+	}
+
+	/**
+	 * Classifies column-major data, one double[] per attribute.
+	 */
+	public double[] classifyColumns(double[][] columns, int numRows) {
+		double[] predictions = new double[numRows];
+		classifyColumns(columns, numRows, predictions);
+		return predictions;
+	}
+
+	public void classifyColumns(double[][] columns, int numRows, double[] predictions) {
+		double[] dist = new double[numClasses];
+		for (int i = 0; i < numRows; i++) {
+			predictions[i] = classify(columns, i, true, dist);
+		}
+	}
+
+	/**
+	 * Class distribution of a single row, Laplace corrected if the tree
+	 * was built with Laplace.
+	 */
+	public double[] distribution(double[] row) {
+		double[] dist = new double[numClasses];
+		accumulate(laplaceProbs != null ? laplaceProbs : leafProbs, 0, 1, new double[][] { row }, 0, false, dist);
+		return dist;
+	}
+
+	private double classify(double[][] data, int row, boolean columnMajor, double[] dist) {
+		int node = 0;
+		while (kind[node] != LEAF) {
+			int att = attribute[node];
+			double value = columnMajor ? data[att][row] : data[row][att];
+			if (Double.isNaN(value)) {
+				// distribute the row over all branches
+				Arrays.fill(dist, 0);
+				accumulate(leafProbs, node, 1, data, row, columnMajor, dist);
+				return maxIndex(dist, 0);
+			}
+			node = child(node, value);
+		}
+		return maxIndex(leafProbs, firstChild[node]);
+	}
+
+	private void accumulate(double[] probs, int node, double weight, double[][] data, int row,
+			boolean columnMajor, double[] dist) {
+		if (kind[node] == LEAF) {
+			int offset = firstChild[node];
+			for (int j = 0; j < numClasses; j++) {
+				dist[j] += weight * probs[offset + j];
+			}
+			return;
+		}
+		int att = attribute[node];
+		double value = columnMajor ? data[att][row] : data[row][att];
+		if (Double.isNaN(value)) {
+			for (int c = firstChild[node]; c < firstChild[node] + numChildren[node]; c++) {
+				if (missingWeight[c] > 0) {
+					accumulate(probs, c, weight * missingWeight[c], data, row, columnMajor, dist);
+				}
+			}
+		} else {
+			accumulate(probs, child(node, value), weight, data, row, columnMajor, dist);
+		}
+	}
+
+	private int child(int node, double value) {
+		switch (kind[node]) {
+		case NUMERIC:
+			return value - threshold[node] < Utils.SMALL ? firstChild[node] : firstChild[node] + 1;
+		case NOMINAL:
+			return firstChild[node] + (int) value;
+		default:
+			return value == threshold[node] ? firstChild[node] : firstChild[node] + 1;
+		}
+	}
+
+	// same tie breaking as ClassifierTree.classifyInstance
+	private int maxIndex(double[] probs, int offset) {
+		double maxProb = -1;
+		int maxIndex = 0;
+		for (int j = 0; j < numClasses; j++) {
+			if (Utils.gr(probs[offset + j], maxProb)) {
+				maxIndex = j;
+				maxProb = probs[offset + j];
+			}
+		}
+		return maxIndex;
+	}
+
+	public int numNodes() {
+		return kind.length;
+	}
+
+	private static boolean isEmpty(ClassifierTree node) {
+		return node.isLeaf() && Utils.eq(node.getLocalModel().distribution().total(), 0);
+	}
+
+	private static ClassifierTree root(J48 tree) throws Exception {
+		// J48 does not expose its root node
+		Field field = J48.class.getDeclaredField("m_root");
+		field.setAccessible(true);
+		return (ClassifierTree) field.get(tree);
+	}
+
+}
@@ -0,0 +1,662 @@
+/**
+ * Chapter 3: Parallel EM clustering
+ *
+ * Expectation maximization for mixed nominal and numeric data, with the
+ * same model as weka.clusterers.EM: a normal distribution per numeric
+ * attribute and a Laplace-smoothed discrete distribution per nominal
+ * attribute in each cluster. The E-step is split over row partitions that
+ * run concurrently on a ForkJoin pool, each one accumulating its own
+ * sufficient statistics that are merged (in partition order) before the
+ * M-step.
+ *
+ * With a mini-batch size set, the model is fitted with stepwise (online)
+ * EM: the statistics of each random mini-batch are blended into running
+ * statistics with a decaying step size, so every step only touches the
+ * batch. With warm start enabled, rebuilding a model on new data with the
+ * same header starts from its current parameters. Warm start is off by
+ * default: a copy of a built model that is evaluated on held-out rows must
+ * not start from parameters that were fitted on those rows, so
+ * ParallelEvaluation turns it off for its fold copies, and the folds that
+ * select the number of clusters always start from scratch.
+ *
+ * Log-likelihoods are average log-densities per instance, as printed by EM.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import weka.clusterers.AbstractDensityBasedClusterer;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class ParallelEM extends AbstractDensityBasedClusterer {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final double LOG_SQRT_2PI = 0.5 * Math.log(2 * Math.PI);
+	private static final int MIN_PARTITION = 1024;
+	// a cluster that lost all its rows can still win them back
+	private static final double MIN_PRIOR = 1e-6;
+
+	private int numClusters = -1;
+	private int maxIterations = 100;
+	private double minStdDev = 1e-6;
+	private int seed = 100;
+	private int miniBatchSize = 0;
+	private double stepDecay = 0.7;
+	private boolean warmStart = false;
+
+	private transient ForkJoinPool pool;
+
+	// header information
+	private int numAttributes;
+	private boolean[] nominal;
+	private int[] numValues;
+	private double[] shift; // global means of numeric attributes
+
+	// model
+	private int k;
+	private double[] priors;
+	private double[][] mean, stdDev;
+	private double[][][] probs;
+
+	private double logLikelihood;
+	private int iterations;
+
+	@Override
+	public void buildClusterer(Instances data) throws Exception {
+		if (data.classIndex() >= 0) {
+			throw new IllegalArgumentException("Clusterers do not handle a class attribute");
+		}
+		if (pool == null) {
+			pool = ForkJoinPool.commonPool();
+		}
+
+		Columns columns = new Columns(data);
+		boolean sameHeader = k > 0 && numAttributes == data.numAttributes();
+		for (int j = 0; sameHeader && j < numAttributes; j++) {
+			sameHeader = nominal[j] == data.attribute(j).isNominal()
+					&& (!nominal[j] || numValues[j] == data.attribute(j).numValues());
+		}
+		boolean warm = warmStart && sameHeader && (numClusters < 0 || numClusters == k);
+		if (!sameHeader) {
+			numAttributes = data.numAttributes();
+			nominal = new boolean[numAttributes];
+			numValues = new int[numAttributes];
+			for (int j = 0; j < numAttributes; j++) {
+				nominal[j] = data.attribute(j).isNominal();
+				numValues[j] = nominal[j] ? data.attribute(j).numValues() : 0;
+			}
+		}
+		shift = columns.means();
+
+		Random random = new Random(seed);
+		if (warm) {
+			fit(columns, k, random, true);
+		} else if (numClusters > 0) {
+			fit(columns, numClusters, random, false);
+		} else {
+			fit(columns, selectNumClusters(columns, random), random, false);
+		}
+		logLikelihood = eStep(columns, null) / columns.totalWeight();
+	}
+
+	/**
+	 * Same search as EM: increase the number of clusters while the 10-fold
+	 * cross-validated log-likelihood increases.
+	 */
+	private int selectNumClusters(Columns data, Random random) throws Exception {
+		int numFolds = Math.min(10, data.size());
+		int[] order = data.rows.clone();
+		for (int i = order.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+		}
+
+		double best = -Double.MAX_VALUE;
+		int clusters = 1;
+		while (true) {
+			double cvLogLikelihood = 0;
+			for (int fold = 0; fold < numFolds; fold++) {
+				int from = fold * order.length / numFolds, to = (fold + 1) * order.length / numFolds;
+				int[] train = new int[order.length - (to - from)];
+				int[] test = new int[to - from];
+				System.arraycopy(order, 0, train, 0, from);
+				System.arraycopy(order, to, train, from, order.length - to);
+				System.arraycopy(order, from, test, 0, to - from);
+				if (clusters > train.length) {
+					return clusters - 1;
+				}
+				fit(data.subset(train), clusters, new Random(seed), false);
+				Columns testColumns = data.subset(test);
+				cvLogLikelihood += eStep(testColumns, null) / testColumns.totalWeight();
+			}
+			cvLogLikelihood /= numFolds;
+			if (cvLogLikelihood > best) {
+				best = cvLogLikelihood;
+				clusters++;
+			} else {
+				return clusters - 1;
+			}
+		}
+	}
+
+	private void fit(Columns data, int clusters, Random random, boolean warm) throws Exception {
+		if (!warm) {
+			initialize(data, clusters, random);
+		}
+		if (miniBatchSize > 0 && miniBatchSize < data.size()) {
+			fitMiniBatch(data, random);
+			return;
+		}
+		double previous = -Double.MAX_VALUE;
+		for (iterations = 1; iterations <= maxIterations; iterations++) {
+			Stats stats = new Stats();
+			double ll = eStep(data, stats) / data.totalWeight();
+			mStep(stats);
+			if (Math.abs(ll - previous) < 1e-6) {
+				return;
+			}
+			previous = ll;
+		}
+		iterations = maxIterations;
+	}
+
+	/**
+	 * Stepwise EM: the statistics of each mini-batch, scaled to the size of
+	 * the data, replace a fraction (t + 2)^-stepDecay of the running
+	 * statistics. One iteration is one pass over the data.
+	 */
+	private void fitMiniBatch(Columns data, Random random) throws Exception {
+		int[] order = data.rows.clone();
+		Stats running = null;
+		int step = 0;
+		for (iterations = 1; iterations <= maxIterations; iterations++) {
+			for (int i = order.length - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int tmp = order[i];
+				order[i] = order[j];
+				order[j] = tmp;
+			}
+			for (int from = 0; from < order.length; from += miniBatchSize) {
+				int to = Math.min(order.length, from + miniBatchSize);
+				int[] batch = new int[to - from];
+				System.arraycopy(order, from, batch, 0, batch.length);
+				Columns batchColumns = data.subset(batch);
+				Stats stats = new Stats();
+				eStep(batchColumns, stats);
+				stats.scale(data.totalWeight() / batchColumns.totalWeight());
+				double eta = Math.pow(step + 2, -stepDecay);
+				if (running == null) {
+					running = stats;
+				} else {
+					running.scale(1 - eta);
+					stats.scale(eta);
+					running.add(stats);
+				}
+				mStep(running);
+				step++;
+			}
+		}
+		iterations = maxIterations;
+	}
+
+	/**
+	 * Random distinct seed rows, every row is assigned to the closest one
+	 * and the first model is estimated from that hard assignment.
+	 */
+	private void initialize(Columns data, int clusters, Random random) {
+		k = clusters;
+		allocate();
+		// a partial shuffle, so that no row is drawn twice
+		int[] order = data.rows.clone();
+		int[] seeds = new int[k];
+		for (int c = 0; c < k; c++) {
+			int i = c % order.length;
+			int j = i + random.nextInt(order.length - i);
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+			seeds[c] = order[i];
+		}
+		double[] range = data.ranges();
+		Stats stats = new Stats();
+		double[] resp = new double[k];
+		for (int r : data.rows) {
+			int closest = 0;
+			double minDistance = Double.MAX_VALUE;
+			for (int c = 0; c < k; c++) {
+				double distance = 0;
+				for (int j = 0; j < numAttributes; j++) {
+					double x = data.values[j][r], s = data.values[j][seeds[c]];
+					if (Double.isNaN(x) || Double.isNaN(s)) {
+						continue;
+					}
+					double d = nominal[j] ? (x == s ? 0 : 1) : (range[j] > 0 ? (x - s) / range[j] : 0);
+					distance += d * d;
+				}
+				if (distance < minDistance) {
+					minDistance = distance;
+					closest = c;
+				}
+			}
+			java.util.Arrays.fill(resp, 0);
+			resp[closest] = 1;
+			stats.add(data, r, resp);
+		}
+		mStep(stats);
+	}
+
+	private void allocate() {
+		priors = new double[k];
+		mean = new double[k][numAttributes];
+		stdDev = new double[k][numAttributes];
+		probs = new double[k][numAttributes][];
+		for (int c = 0; c < k; c++) {
+			for (int j = 0; j < numAttributes; j++) {
+				if (nominal[j]) {
+					probs[c][j] = new double[numValues[j]];
+				}
+			}
+		}
+	}
+
+	/**
+	 * E-step over all rows, in parallel partitions. Adds the responsibilities
+	 * to stats (if not null) and returns the weighted log-likelihood sum.
+	 */
+	private double eStep(final Columns data, Stats stats) throws Exception {
+		int numPartitions = Math.max(1, Math.min(pool.getParallelism(), data.size() / MIN_PARTITION));
+		List<Callable<Stats>> partitions = new ArrayList<Callable<Stats>>(numPartitions);
+		final boolean collect = stats != null;
+		for (int p = 0; p < numPartitions; p++) {
+			final int from = p * data.size() / numPartitions, to = (p + 1) * data.size() / numPartitions;
+			partitions.add(new Callable<Stats>() {
+				public Stats call() {
+					Stats local = new Stats();
+					double[] resp = new double[k];
+					for (int i = from; i < to; i++) {
+						int r = data.rows[i];
+						double lse = logJoint(data, r, resp);
+						for (int c = 0; c < k; c++) {
+							resp[c] = Math.exp(resp[c] - lse);
+						}
+						local.logLikelihood += data.weight(r) * lse;
+						if (collect) {
+							local.add(data, r, resp);
+						}
+					}
+					return local;
+				}
+			});
+		}
+
+		double logLikelihood = 0;
+		for (Future<Stats> partition : pool.invokeAll(partitions)) {
+			Stats local;
+			try {
+				local = partition.get();
+			} catch (ExecutionException e) {
+				throw (Exception) e.getCause();
+			}
+			logLikelihood += local.logLikelihood;
+			if (collect) {
+				stats.add(local);
+			}
+		}
+		return logLikelihood;
+	}
+
+	// log(prior * density) per cluster into joint, returns their log-sum-exp
+	private double logJoint(Columns data, int r, double[] joint) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int c = 0; c < k; c++) {
+			double logp = Math.log(priors[c]);
+			for (int j = 0; j < numAttributes; j++) {
+				logp += logDensity(c, j, data.values[j][r]);
+			}
+			joint[c] = logp;
+			max = Math.max(max, logp);
+		}
+		double sum = 0;
+		for (int c = 0; c < k; c++) {
+			sum += Math.exp(joint[c] - max);
+		}
+		return max + Math.log(sum);
+	}
+
+	private double logDensity(int c, int j, double x) {
+		if (Double.isNaN(x)) {
+			return 0;
+		}
+		if (nominal[j]) {
+			return Math.log(probs[c][j][(int) x]);
+		}
+		double z = (x - mean[c][j]) / stdDev[c][j];
+		return -Math.log(stdDev[c][j]) - LOG_SQRT_2PI - 0.5 * z * z;
+	}
+
+	private void mStep(Stats stats) {
+		double total = 0;
+		for (int c = 0; c < k; c++) {
+			total += stats.weight[c];
+		}
+		double priorSum = 0;
+		for (int c = 0; c < k; c++) {
+			priors[c] = Math.max(MIN_PRIOR, total > 0 ? stats.weight[c] / total : 1.0 / k);
+			priorSum += priors[c];
+		}
+		for (int c = 0; c < k; c++) {
+			priors[c] /= priorSum;
+			for (int j = 0; j < numAttributes; j++) {
+				if (nominal[j]) {
+					// Laplace correction as in DiscreteEstimator
+					double sum = numValues[j];
+					for (int v = 0; v < numValues[j]; v++) {
+						sum += stats.counts[c][j][v];
+					}
+					for (int v = 0; v < numValues[j]; v++) {
+						probs[c][j][v] = (stats.counts[c][j][v] + 1) / sum;
+					}
+				} else {
+					double w = stats.attWeight[c][j];
+					if (w > 0) {
+						double m = stats.sum[c][j] / w;
+						mean[c][j] = shift[j] + m;
+						stdDev[c][j] = Math.sqrt(Math.max(0, stats.sumSq[c][j] / w - m * m));
+					}
+					if (!(stdDev[c][j] > minStdDev)) {
+						stdDev[c][j] = minStdDev;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Weighted sufficient statistics of a set of rows per cluster.
+	 */
+	private class Stats {
+		final double[] weight = new double[k];
+		final double[][] attWeight = new double[k][numAttributes];
+		final double[][] sum = new double[k][numAttributes];
+		final double[][] sumSq = new double[k][numAttributes];
+		final double[][][] counts = new double[k][numAttributes][];
+		double logLikelihood;
+
+		Stats() {
+			for (int c = 0; c < k; c++) {
+				for (int j = 0; j < numAttributes; j++) {
+					if (nominal[j]) {
+						counts[c][j] = new double[numValues[j]];
+					}
+				}
+			}
+		}
+
+		void add(Columns data, int r, double[] resp) {
+			double w = data.weight(r);
+			for (int c = 0; c < k; c++) {
+				double cw = w * resp[c];
+				if (cw == 0) {
+					continue;
+				}
+				weight[c] += cw;
+				for (int j = 0; j < numAttributes; j++) {
+					double x = data.values[j][r];
+					if (Double.isNaN(x)) {
+						continue;
+					}
+					if (nominal[j]) {
+						counts[c][j][(int) x] += cw;
+					} else {
+						double d = x - shift[j];
+						attWeight[c][j] += cw;
+						sum[c][j] += cw * d;
+						sumSq[c][j] += cw * d * d;
+					}
+				}
+			}
+		}
+
+		void add(Stats other) {
+			logLikelihood += other.logLikelihood;
+			for (int c = 0; c < k; c++) {
+				weight[c] += other.weight[c];
+				for (int j = 0; j < numAttributes; j++) {
+					if (nominal[j]) {
+						for (int v = 0; v < numValues[j]; v++) {
+							counts[c][j][v] += other.counts[c][j][v];
+						}
+					} else {
+						attWeight[c][j] += other.attWeight[c][j];
+						sum[c][j] += other.sum[c][j];
+						sumSq[c][j] += other.sumSq[c][j];
+					}
+				}
+			}
+		}
+
+		void scale(double factor) {
+			logLikelihood *= factor;
+			for (int c = 0; c < k; c++) {
+				weight[c] *= factor;
+				for (int j = 0; j < numAttributes; j++) {
+					if (nominal[j]) {
+						for (int v = 0; v < numValues[j]; v++) {
+							counts[c][j][v] *= factor;
+						}
+					} else {
+						attWeight[c][j] *= factor;
+						sum[c][j] *= factor;
+						sumSq[c][j] *= factor;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Column arrays of the data, and the rows of a subset of it.
+	 */
+	private static class Columns {
+		final double[][] values;
+		final double[] weights;
+		final int[] rows;
+
+		Columns(Instances data) {
+			values = new double[data.numAttributes()][];
+			for (int j = 0; j < values.length; j++) {
+				values[j] = data.attributeToDoubleArray(j);
+			}
+			weights = new double[data.numInstances()];
+			rows = new int[data.numInstances()];
+			for (int i = 0; i < rows.length; i++) {
+				weights[i] = data.instance(i).weight();
+				rows[i] = i;
+			}
+		}
+
+		private Columns(double[][] values, double[] weights, int[] rows) {
+			this.values = values;
+			this.weights = weights;
+			this.rows = rows;
+		}
+
+		Columns subset(int[] rows) {
+			return new Columns(values, weights, rows);
+		}
+
+		int size() {
+			return rows.length;
+		}
+
+		double weight(int r) {
+			return weights[r];
+		}
+
+		double totalWeight() {
+			double total = 0;
+			for (int r : rows) {
+				total += weights[r];
+			}
+			return total;
+		}
+
+		double[] means() {
+			double[] means = new double[values.length];
+			for (int j = 0; j < values.length; j++) {
+				double sum = 0, count = 0;
+				for (int r : rows) {
+					if (!Double.isNaN(values[j][r])) {
+						sum += values[j][r];
+						count++;
+					}
+				}
+				means[j] = count > 0 ? sum / count : 0;
+			}
+			return means;
+		}
+
+		double[] ranges() {
+			double[] ranges = new double[values.length];
+			for (int j = 0; j < values.length; j++) {
+				double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+				for (int r : rows) {
+					if (!Double.isNaN(values[j][r])) {
+						min = Math.min(min, values[j][r]);
+						max = Math.max(max, values[j][r]);
+					}
+				}
+				ranges[j] = max > min ? max - min : 0;
+			}
+			return ranges;
+		}
+	}
+
+	/*
+	 * DensityBasedClusterer
+	 */
+
+	@Override
+	public double[] clusterPriors() {
+		return priors.clone();
+	}
+
+	@Override
+	public double[] logDensityPerClusterForInstance(Instance instance) {
+		double[] logDensities = new double[k];
+		for (int c = 0; c < k; c++) {
+			for (int j = 0; j < numAttributes; j++) {
+				logDensities[c] += logDensity(c, j, instance.value(j));
+			}
+		}
+		return logDensities;
+	}
+
+	@Override
+	public int numberOfClusters() {
+		return k;
+	}
+
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	@Override
+	public String toString() {
+		if (priors == null) {
+			return "ParallelEM: no clusterer built yet.";
+		}
+		StringBuffer text = new StringBuffer();
+		text.append("ParallelEM\n==========\n\n");
+		text.append("Number of clusters" + (numClusters < 0 ? " selected by cross validation" : "") + ": " + k + "\n");
+		text.append("Number of iterations performed: " + iterations + "\n");
+		if (miniBatchSize > 0) {
+			text.append("Mini-batch size: " + miniBatchSize + "\n");
+		}
+		text.append("\n");
+		for (int c = 0; c < k; c++) {
+			text.append("Cluster " + c + " (prior " + Utils.doubleToString(priors[c], 2) + ")\n");
+			for (int j = 0; j < numAttributes; j++) {
+				text.append("  attribute " + (j + 1) + ":");
+				if (nominal[j]) {
+					for (int v = 0; v < numValues[j]; v++) {
+						text.append(" " + Utils.doubleToString(probs[c][j][v], 4));
+					}
+				} else {
+					text.append(" mean " + Utils.doubleToString(mean[c][j], 4) + ", std. dev. "
+							+ Utils.doubleToString(stdDev[c][j], 4));
+				}
+				text.append("\n");
+			}
+			text.append("\n");
+		}
+		text.append("\nLog likelihood: " + Utils.doubleToString(logLikelihood, 10, 5) + "\n");
+		return text.toString();
+	}
+
+	/*
+	 * Options
+	 */
+
+	/**
+	 * Number of clusters, -1 to select it by cross-validation.
+	 */
+	public void setNumClusters(int numClusters) {
+		this.numClusters = numClusters;
+	}
+
+	public int getNumClusters() {
+		return numClusters;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	public void setMinStdDev(double minStdDev) {
+		this.minStdDev = minStdDev;
+	}
+
+	public void setSeed(int seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Rows per mini-batch, 0 for full batch EM.
+	 */
+	public void setMiniBatchSize(int miniBatchSize) {
+		this.miniBatchSize = miniBatchSize;
+	}
+
+	/**
+	 * Exponent of the step size (t + 2)^-stepDecay of mini-batch EM, in
+	 * (0.5, 1].
+	 */
+	public void setStepDecay(double stepDecay) {
+		this.stepDecay = stepDecay;
+	}
+
+	/**
+	 * Start the next build from the current parameters, for refitting on
+	 * updated data. Do not use it for models that are evaluated on rows
+	 * they were built on.
+	 */
+	public void setWarmStart(boolean warmStart) {
+		this.warmStart = warmStart;
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+}
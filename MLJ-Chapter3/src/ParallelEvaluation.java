@@ -0,0 +1,237 @@
+/**
+ * Chapter 3: Parallel cross-validation
+ *
+ * Drop-in replacement for Evaluation.crossValidateModel that trains and tests
+ * the folds at the same time on a ForkJoin pool. Folds are drawn from the
+ * random generator in exactly the same order as in Weka's sequential
+ * implementation, each fold gets its own copy of the classifier and the
+ * per-fold results are aggregated in fold order, so the same seed yields
+ * the same summary as the sequential run.
+ *
+ * With recordRocCurves(), the predicted probabilities of every class are
+ * streamed into a RocCurve.Histogram per fold while the fold is tested,
+ * with the instance weights, and Weka's list of predictions is discarded.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.AggregateableEvaluation;
+import weka.classifiers.evaluation.Evaluation;
+import weka.clusterers.AbstractClusterer;
+import weka.clusterers.DensityBasedClusterer;
+import weka.core.Instance;
+import weka.core.Instances;
+
+public class ParallelEvaluation extends AggregateableEvaluation {
+
+	private static final long serialVersionUID = 1L;
+
+	private transient ForkJoinPool pool;
+
+	private int rocBins;
+	private RocCurve.Histogram[] rocHistograms;
+
+	public ParallelEvaluation(Instances data) throws Exception {
+		this(data, ForkJoinPool.commonPool());
+	}
+
+	public ParallelEvaluation(Instances data, ForkJoinPool pool) throws Exception {
+		super(data);
+		this.pool = pool;
+	}
+
+	/**
+	 * Records one ROC histogram of numBins bins per class value in the
+	 * following cross-validations instead of the list of predictions. Not
+	 * available when predictions are printed.
+	 */
+	public void recordRocCurves(int numBins) {
+		if (!getHeader().classAttribute().isNominal()) {
+			throw new IllegalArgumentException("ROC curves need a nominal class");
+		}
+		rocBins = numBins;
+		rocHistograms = histograms(getHeader().numClasses(), numBins);
+		setDiscardPredictions(true);
+	}
+
+	/**
+	 * The ROC curve of the class value over all folds evaluated so far.
+	 */
+	public RocCurve rocCurve(int classIndex) {
+		if (rocHistograms == null) {
+			throw new IllegalStateException("recordRocCurves() was not called");
+		}
+		return rocHistograms[classIndex].curve();
+	}
+
+	private static RocCurve.Histogram[] histograms(int numClasses, int numBins) {
+		RocCurve.Histogram[] histograms = new RocCurve.Histogram[numClasses];
+		for (int c = 0; c < numClasses; c++) {
+			histograms[c] = new RocCurve.Histogram(numBins);
+		}
+		return histograms;
+	}
+
+	/**
+	 * Performs a (stratified if class is nominal) cross-validation with all
+	 * folds evaluated concurrently. Results are added to this evaluation,
+	 * the same way as repeated calls of the sequential version accumulate.
+	 *
+	 * If prediction printing is requested, falls back to the sequential
+	 * implementation so the printed predictions keep their order.
+	 */
+	@Override
+	public void crossValidateModel(Classifier classifier, Instances data, int numFolds, Random random,
+			Object... forPrinting) throws Exception {
+
+		if (forPrinting != null && forPrinting.length > 0) {
+			if (rocHistograms != null) {
+				throw new IllegalStateException("ROC curves are not recorded with printed predictions");
+			}
+			super.crossValidateModel(classifier, data, numFolds, random, forPrinting);
+			return;
+		}
+
+		// Make a copy of the data we can reorder
+		data = new Instances(data);
+		data.randomize(random);
+		if (data.classAttribute().isNominal()) {
+			data.stratify(numFolds);
+		}
+
+		// trainCV consumes the random generator, so the folds are drawn
+		// sequentially before any work is handed to the pool
+		final int numBins = rocBins;
+		List<Callable<Fold>> folds = new ArrayList<Callable<Fold>>(numFolds);
+		for (int i = 0; i < numFolds; i++) {
+			final Instances train = data.trainCV(numFolds, i, random);
+			final Instances test = data.testCV(numFolds, i);
+			final Instances header = data;
+			final Classifier copy = AbstractClassifier.makeCopy(classifier);
+			folds.add(new Callable<Fold>() {
+				public Fold call() throws Exception {
+					Fold fold = new Fold(header, numBins);
+					fold.evaluation.setPriors(train);
+					copy.buildClassifier(train);
+					if (fold.roc == null) {
+						fold.evaluation.evaluateModel(copy, test);
+					} else {
+						fold.test(copy, test);
+					}
+					return fold;
+				}
+			});
+		}
+
+		// Merge in fold order
+		for (Future<Fold> future : pool.invokeAll(folds)) {
+			Fold fold = unwrap(future);
+			aggregate(fold.evaluation);
+			if (fold.roc != null) {
+				for (int c = 0; c < fold.roc.length; c++) {
+					rocHistograms[c].merge(fold.roc[c]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The evaluation of one fold and its ROC histograms, if recorded.
+	 */
+	private static final class Fold {
+		final Evaluation evaluation;
+		final RocCurve.Histogram[] roc;
+
+		Fold(Instances header, int numBins) throws Exception {
+			evaluation = new Evaluation(header);
+			roc = numBins > 0 ? histograms(header.numClasses(), numBins) : null;
+			if (roc != null) {
+				evaluation.setDiscardPredictions(true);
+			}
+		}
+
+		void test(Classifier classifier, Instances test) throws Exception {
+			for (int i = 0; i < test.numInstances(); i++) {
+				Instance instance = test.instance(i);
+				double[] dist = classifier.distributionForInstance(instance);
+				evaluation.evaluateModelOnceAndRecordPrediction(dist, instance);
+				if (!instance.classIsMissing()) {
+					int actual = (int) instance.classValue();
+					for (int c = 0; c < roc.length; c++) {
+						roc[c].add(dist[c], actual == c, instance.weight());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parallel version of ClusterEvaluation.crossValidateModel. Returns the
+	 * average log-likelihood over the test folds.
+	 */
+	public static double crossValidateModel(DensityBasedClusterer clusterer, Instances data, int numFolds,
+			Random random) throws Exception {
+		return crossValidateModel(clusterer, data, numFolds, random, ForkJoinPool.commonPool());
+	}
+
+	public static double crossValidateModel(DensityBasedClusterer clusterer, Instances data, int numFolds,
+			Random random, ForkJoinPool pool) throws Exception {
+
+		data = new Instances(data);
+		data.randomize(random);
+
+		List<Callable<double[]>> folds = new ArrayList<Callable<double[]>>(numFolds);
+		for (int i = 0; i < numFolds; i++) {
+			final Instances train = data.trainCV(numFolds, i, random);
+			final Instances test = data.testCV(numFolds, i);
+			final DensityBasedClusterer copy = (DensityBasedClusterer) AbstractClusterer.makeCopy(clusterer);
+			if (copy instanceof ParallelEM) {
+				// the parameters of a built model have seen the test fold
+				((ParallelEM) copy).setWarmStart(false);
+			}
+			folds.add(new Callable<double[]>() {
+				public double[] call() throws Exception {
+					copy.buildClusterer(train);
+					double[] logDensity = new double[test.numInstances()];
+					for (int j = 0; j < logDensity.length; j++) {
+						try {
+							logDensity[j] = copy.logDensityForInstance(test.instance(j));
+						} catch (Exception ex) {
+							// unclustered instances
+						}
+					}
+					return logDensity;
+				}
+			});
+		}
+
+		// Sum in the same order as the sequential implementation
+		double foldAv = 0;
+		for (Future<double[]> fold : pool.invokeAll(folds)) {
+			for (double logDensity : unwrap(fold)) {
+				foldAv += logDensity;
+			}
+		}
+		return foldAv / data.numInstances();
+	}
+
+	private static <T> T unwrap(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+}
@@ -51,12 +51,20 @@ public class RegressionTask {
 		System.out.println(model);
 
 		// 10-fold cross-validation
-		Evaluation eval = new Evaluation(data);
+		Evaluation eval = new ParallelEvaluation(data);
 		eval.crossValidateModel(model, data, 10, new Random(1), new String[] {});
 		System.out.println(eval.toSummaryString());
 		double coef[] = model.coefficients();
 		System.out.println();
 
+		// the same model from streamed sufficient statistics, the CSV is
+		// never loaded into memory
+		StreamingLinearRegression streamingModel = new StreamingLinearRegression();
+		streamingModel.buildFromCSV(new File("data/ENB2012_data.csv"), ",", "Y1", "Y2");
+		System.out.println(streamingModel);
+		System.out.println(streamingModel.crossValidate().toSummaryString());
+		System.out.println();
+
 		// build a regression tree model
 
 		M5P md5 = new M5P();
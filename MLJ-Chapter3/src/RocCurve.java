@@ -0,0 +1,213 @@
+/**
+ * Chapter 3: Headless ROC and precision-recall curves
+ *
+ * Computes ROC and precision-recall curves directly from primitive score and
+ * label arrays, without building an Instances curve or any Swing components.
+ * The exact mode sorts the scores once; the Histogram mode accumulates
+ * predictions into a fixed number of score bins, so memory stays bounded
+ * regardless of the number of predictions. ParallelEvaluation fills one
+ * Histogram per class while it evaluates, so Weka's list of predictions
+ * never has to be kept. Both modes take instance weights.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import weka.core.Utils;
+
+public class RocCurve {
+
+	// one point per distinct threshold, in decreasing threshold order
+	private final double[] threshold;
+	private final double[] tp;
+	private final double[] fp;
+	private final double positives, negatives;
+
+	private final double auc, prAuc, youdenThreshold;
+
+	private RocCurve(double[] threshold, double[] tp, double[] fp, int numPoints) {
+		this.threshold = Arrays.copyOf(threshold, numPoints);
+		this.tp = Arrays.copyOf(tp, numPoints);
+		this.fp = Arrays.copyOf(fp, numPoints);
+		this.positives = numPoints > 0 ? tp[numPoints - 1] : 0;
+		this.negatives = numPoints > 0 ? fp[numPoints - 1] : 0;
+
+		double area = 0, prArea = 0, bestJ = Double.NEGATIVE_INFINITY, bestThreshold = Double.NaN;
+		double prevTpr = 0, prevFpr = 0, prevRecall = 0, prevPrecision = numPoints > 0 ? precision(0) : 1;
+		for (int i = 0; i < numPoints; i++) {
+			double tpr = tpr(i), fpr = fpr(i), precision = precision(i);
+			area += (fpr - prevFpr) * (tpr + prevTpr) / 2;
+			prArea += (tpr - prevRecall) * (precision + prevPrecision) / 2;
+			if (tpr - fpr > bestJ) {
+				bestJ = tpr - fpr;
+				bestThreshold = threshold[i];
+			}
+			prevTpr = prevRecall = tpr;
+			prevFpr = fpr;
+			prevPrecision = precision;
+		}
+		this.auc = area;
+		this.prAuc = prArea;
+		this.youdenThreshold = bestThreshold;
+	}
+
+	/**
+	 * Exact curve from scores and labels, every prediction with weight 1.
+	 */
+	public static RocCurve compute(double[] scores, boolean[] positive) {
+		return compute(scores, positive, null);
+	}
+
+	/**
+	 * Exact curve from weighted scores and labels, sorting the scores once
+	 * and sweeping them from the highest down. Missing scores are skipped.
+	 *
+	 * @param weights instance weights, or null for weight 1
+	 */
+	public static RocCurve compute(double[] scores, boolean[] positive, double[] weights) {
+		// ascending, missing values last
+		int[] order = Utils.sort(scores);
+		int last = scores.length - 1;
+		while (last >= 0 && Double.isNaN(scores[order[last]])) {
+			last--;
+		}
+
+		double[] threshold = new double[last + 1];
+		double[] tp = new double[last + 1];
+		double[] fp = new double[last + 1];
+		int numPoints = 0;
+		double tpCount = 0, fpCount = 0;
+		for (int k = last; k >= 0;) {
+			double t = scores[order[k]];
+			for (; k >= 0 && scores[order[k]] == t; k--) {
+				double weight = weights == null ? 1 : weights[order[k]];
+				if (positive[order[k]]) {
+					tpCount += weight;
+				} else {
+					fpCount += weight;
+				}
+			}
+			threshold[numPoints] = t;
+			tp[numPoints] = tpCount;
+			fp[numPoints] = fpCount;
+			numPoints++;
+		}
+		return new RocCurve(threshold, tp, fp, numPoints);
+	}
+
+	public double auc() {
+		return auc;
+	}
+
+	public double prAuc() {
+		return prAuc;
+	}
+
+	/**
+	 * The threshold that maximizes Youden's J = TPR - FPR, scores greater or
+	 * equal to it are predicted positive.
+	 */
+	public double youdenThreshold() {
+		return youdenThreshold;
+	}
+
+	public int numPoints() {
+		return threshold.length;
+	}
+
+	public double threshold(int i) {
+		return threshold[i];
+	}
+
+	public double tpr(int i) {
+		return positives > 0 ? tp[i] / positives : 0;
+	}
+
+	public double fpr(int i) {
+		return negatives > 0 ? fp[i] / negatives : 0;
+	}
+
+	public double precision(int i) {
+		return tp[i] + fp[i] > 0 ? tp[i] / (tp[i] + fp[i]) : 1;
+	}
+
+	/**
+	 * Writes the curve points as CSV.
+	 */
+	public void writeCsv(File file) throws IOException {
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			out.println("threshold,tp,fp,fpr,tpr,precision,recall");
+			for (int i = 0; i < threshold.length; i++) {
+				out.println(threshold[i] + "," + tp[i] + "," + fp[i] + "," + fpr(i) + "," + tpr(i) + ","
+						+ precision(i) + "," + tpr(i));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Streaming approximation of the curve for scores in [0, 1]. Predictions
+	 * are counted into equal width bins, so the memory is fixed by the number
+	 * of bins and ties are resolved at the bin width.
+	 */
+	public static class Histogram {
+
+		private final double[] positive;
+		private final double[] negative;
+
+		public Histogram(int numBins) {
+			positive = new double[numBins];
+			negative = new double[numBins];
+		}
+
+		public void add(double score, boolean isPositive) {
+			add(score, isPositive, 1);
+		}
+
+		public void add(double score, boolean isPositive, double weight) {
+			int bin = Math.min(positive.length - 1, Math.max(0, (int) (score * positive.length)));
+			if (isPositive) {
+				positive[bin] += weight;
+			} else {
+				negative[bin] += weight;
+			}
+		}
+
+		/**
+		 * Adds the counts of another histogram with the same number of bins,
+		 * e.g. one filled by another thread.
+		 */
+		public void merge(Histogram other) {
+			for (int b = 0; b < positive.length; b++) {
+				positive[b] += other.positive[b];
+				negative[b] += other.negative[b];
+			}
+		}
+
+		public RocCurve curve() {
+			int numBins = positive.length;
+			double[] threshold = new double[numBins];
+			double[] tp = new double[numBins];
+			double[] fp = new double[numBins];
+			double tpCount = 0, fpCount = 0;
+			int numPoints = 0;
+			for (int b = numBins - 1; b >= 0; b--) {
+				if (positive[b] == 0 && negative[b] == 0) {
+					continue;
+				}
+				tpCount += positive[b];
+				fpCount += negative[b];
+				threshold[numPoints] = (double) b / numBins;
+				tp[numPoints] = tpCount;
+				fp[numPoints] = fpCount;
+				numPoints++;
+			}
+			return new RocCurve(threshold, tp, fp, numPoints);
+		}
+	}
+
+}
@@ -0,0 +1,685 @@
+/**
+ * Chapter 3: Streaming linear regression
+ *
+ * Fits the same model as Weka's LinearRegression (ridge, elimination of
+ * colinear attributes and M5 attribute selection) from sufficient statistics
+ * only, so the CSV file is streamed in chunks and never held in memory. Each
+ * chunk is parsed in parallel into means and co-moments (centred X'X and X'y)
+ * per cross-validation fold, which are then merged. Memory is O(p^2) for p
+ * columns, whatever the number of rows.
+ *
+ * Cross-validation does not refit on the data: the statistics of each
+ * training set are the totals minus the statistics of the test fold, and the
+ * test errors follow from the fold statistics as well. Folds are assigned by
+ * hashing the row number with the seed, so they differ from the folds of
+ * Evaluation.crossValidateModel, and the mean absolute error is not
+ * available as it cannot be derived from second moments.
+ *
+ * Rows with missing values in any used column are skipped.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import weka.core.Utils;
+
+public class StreamingLinearRegression {
+
+	private double ridge = 1.0e-8;
+	private boolean eliminateColinearAttributes = true;
+	private boolean m5Selection = true;
+	private int numFolds = 10;
+	private long seed = 1;
+	private int chunkSize = 10000;
+
+	private transient ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	private String[] names;
+	private int classIndex;
+	private long skippedRows;
+
+	// statistics of each fold, and their sum
+	private Moments[] folds;
+	private Moments total;
+
+	private double[] coefficients;
+
+	/**
+	 * Streams the CSV file, accumulates the statistics and fits the model.
+	 *
+	 * @param file CSV file with a header row
+	 * @param separator field separator
+	 * @param className name of the class column
+	 * @param ignored names of columns that are not used
+	 */
+	public void buildFromCSV(File file, String separator, String className, String... ignored)
+			throws Exception {
+
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String[] header = split(in.readLine(), separator);
+			List<String> ignoredColumns = Arrays.asList(ignored);
+			List<Integer> used = new ArrayList<Integer>();
+			List<String> usedNames = new ArrayList<String>();
+			for (int i = 0; i < header.length; i++) {
+				String name = header[i].trim().replace("\"", "");
+				if (!ignoredColumns.contains(name)) {
+					used.add(i);
+					usedNames.add(name);
+				}
+			}
+			names = usedNames.toArray(new String[usedNames.size()]);
+			classIndex = usedNames.indexOf(className);
+			if (classIndex < 0) {
+				throw new IllegalArgumentException("No column named " + className);
+			}
+			final int[] columns = new int[used.size()];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = used.get(i);
+			}
+
+			folds = new Moments[Math.max(numFolds, 1)];
+			for (int f = 0; f < folds.length; f++) {
+				folds[f] = new Moments(columns.length);
+			}
+			skippedRows = 0;
+
+			// keep a bounded number of chunks in flight, merge in chunk order
+			int maxInFlight = 2 * pool.getParallelism();
+			ArrayDeque<Future<ChunkResult>> inFlight = new ArrayDeque<Future<ChunkResult>>();
+			long row = 0;
+			String line;
+			String[] chunk = new String[chunkSize];
+			int size = 0;
+			while ((line = in.readLine()) != null) {
+				chunk[size++] = line;
+				if (size == chunkSize) {
+					inFlight.add(pool.submit(parse(chunk, size, row, columns, separator)));
+					row += size;
+					chunk = new String[chunkSize];
+					size = 0;
+					if (inFlight.size() >= maxInFlight) {
+						merge(inFlight.poll());
+					}
+				}
+			}
+			if (size > 0) {
+				inFlight.add(pool.submit(parse(chunk, size, row, columns, separator)));
+			}
+			while (!inFlight.isEmpty()) {
+				merge(inFlight.poll());
+			}
+		} finally {
+			in.close();
+		}
+
+		total = new Moments(names.length);
+		for (Moments fold : folds) {
+			total.merge(fold);
+		}
+		coefficients = fit(total);
+	}
+
+	/**
+	 * Coefficients in the same layout as LinearRegression.coefficients():
+	 * one per used column (0 for the class and for deselected attributes)
+	 * followed by the intercept.
+	 */
+	public double[] coefficients() {
+		return coefficients;
+	}
+
+	public long numInstances() {
+		return (long) total.n;
+	}
+
+	public long skippedRows() {
+		return skippedRows;
+	}
+
+	/**
+	 * Cross-validation from the fold statistics: each fold is evaluated with
+	 * the model fitted on the totals minus that fold.
+	 */
+	public CrossValidation crossValidate() throws Exception {
+		if (folds.length < 2) {
+			throw new IllegalStateException("Cross-validation needs at least two folds");
+		}
+		CrossValidation result = new CrossValidation(folds.length);
+		for (int f = 0; f < folds.length; f++) {
+			Moments test = folds[f];
+			if (test.n == 0) {
+				continue;
+			}
+			Moments train = total.minus(test);
+			double[] coef = fit(train);
+			result.add(f, coef, train, test, classIndex);
+		}
+		return result;
+	}
+
+	private Callable<ChunkResult> parse(final String[] lines, final int size, final long firstRow,
+			final int[] columns, final String separator) {
+		return new Callable<ChunkResult>() {
+			public ChunkResult call() throws Exception {
+				ChunkResult result = new ChunkResult(folds.length, columns.length);
+				double[] x = new double[columns.length];
+				rows: for (int i = 0; i < size; i++) {
+					String[] fields = split(lines[i], separator);
+					for (int j = 0; j < columns.length; j++) {
+						String field = columns[j] < fields.length ? fields[columns[j]].trim() : "";
+						if (field.length() == 0 || field.equals("?")) {
+							result.skipped++;
+							continue rows;
+						}
+						x[j] = Double.parseDouble(field);
+					}
+					result.folds[fold(firstRow + i)].add(x);
+				}
+				return result;
+			}
+		};
+	}
+
+	private void merge(Future<ChunkResult> future) throws Exception {
+		ChunkResult result;
+		try {
+			result = future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+		for (int f = 0; f < folds.length; f++) {
+			folds[f].merge(result.folds[f]);
+		}
+		skippedRows += result.skipped;
+	}
+
+	private int fold(long row) {
+		if (folds.length == 1) {
+			return 0;
+		}
+		// SplitMix64 finalizer
+		long z = row + seed * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z = z ^ (z >>> 31);
+		return (int) Math.floorMod(z, (long) folds.length);
+	}
+
+	private static String[] split(String line, String separator) {
+		List<String> fields = new ArrayList<String>();
+		int start = 0, end;
+		while ((end = line.indexOf(separator, start)) >= 0) {
+			fields.add(line.substring(start, end));
+			start = end + separator.length();
+		}
+		fields.add(line.substring(start));
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	/*
+	 * Model fitting, following LinearRegression.findBestModel
+	 */
+
+	private double[] fit(Moments m) throws Exception {
+		int p = names.length;
+		double[] stdDevs = new double[p];
+		for (int j = 0; j < p; j++) {
+			stdDevs[j] = m.n > 1 ? Math.sqrt(m.comoment(j, j) / (m.n - 1)) : 0;
+		}
+		double classStdDev = stdDevs[classIndex];
+
+		boolean[] selected = new boolean[p];
+		for (int j = 0; j < p; j++) {
+			selected[j] = j != classIndex && stdDevs[j] != 0;
+		}
+
+		double[] coef;
+		do {
+			coef = regression(m, selected, stdDevs);
+		} while (eliminateColinearAttributes && deselectColinearAttributes(selected, coef, stdDevs, classStdDev));
+
+		if (m5Selection) {
+			int numAttributes = 1;
+			for (boolean s : selected) {
+				if (s) {
+					numAttributes++;
+				}
+			}
+			double fullSE = squaredError(m, selected, coef);
+			double akaike = (m.n - numAttributes) + 2 * numAttributes;
+			int currentNumAttributes = numAttributes;
+			boolean improved;
+			// remove the attribute with the smallest standardized coefficient
+			// until the Akaike criterion does not improve
+			do {
+				improved = false;
+				currentNumAttributes--;
+				double minSC = 0;
+				int minAttr = -1, c = 0;
+				for (int i = 0; i < p; i++) {
+					if (selected[i]) {
+						double sc = Math.abs(coef[c] * stdDevs[i] / classStdDev);
+						if (c == 0 || sc < minSC) {
+							minSC = sc;
+							minAttr = i;
+						}
+						c++;
+					}
+				}
+				if (minAttr >= 0) {
+					selected[minAttr] = false;
+					double[] currentCoef = regression(m, selected, stdDevs);
+					double currentSE = squaredError(m, selected, currentCoef);
+					double currentAkaike = currentSE / fullSE * (m.n - numAttributes) + 2 * currentNumAttributes;
+					if (currentAkaike < akaike) {
+						improved = true;
+						akaike = currentAkaike;
+						coef = currentCoef;
+					} else {
+						selected[minAttr] = true;
+					}
+				}
+			} while (improved);
+		}
+
+		// expand to one coefficient per column plus intercept
+		double[] full = new double[p + 1];
+		int c = 0;
+		for (int j = 0; j < p; j++) {
+			if (selected[j]) {
+				full[j] = coef[c++];
+			}
+		}
+		full[p] = coef[c];
+		return full;
+	}
+
+	/**
+	 * Ridge regression on standardized attributes, coefficients returned in
+	 * the original scale with the intercept last.
+	 */
+	private double[] regression(Moments m, boolean[] selected, double[] stdDevs) {
+		int p = names.length;
+		int[] attributes = new int[p];
+		int k = 0;
+		for (int j = 0; j < p; j++) {
+			if (selected[j]) {
+				attributes[k++] = j;
+			}
+		}
+
+		double[] coef = new double[k + 1];
+		if (k > 0) {
+			double[][] aTa = new double[k][k];
+			double[] aTy = new double[k];
+			for (int a = 0; a < k; a++) {
+				int i = attributes[a];
+				aTy[a] = m.comoment(i, classIndex) / stdDevs[i];
+				for (int b = 0; b < k; b++) {
+					aTa[a][b] = m.comoment(i, attributes[b]) / (stdDevs[i] * stdDevs[attributes[b]]);
+				}
+			}
+			double ridge = this.ridge;
+			double[] solution;
+			while ((solution = solve(aTa, aTy, ridge)) == null) {
+				ridge *= 10;
+			}
+			System.arraycopy(solution, 0, coef, 0, k);
+		}
+
+		coef[k] = m.mean[classIndex];
+		for (int a = 0; a < k; a++) {
+			int i = attributes[a];
+			coef[a] /= stdDevs[i];
+			coef[k] -= coef[a] * m.mean[i];
+		}
+		return coef;
+	}
+
+	/**
+	 * Solves (A + ridge I) x = b by Cholesky decomposition, returns null if
+	 * the matrix is not positive definite.
+	 */
+	private static double[] solve(double[][] a, double[] b, double ridge) {
+		int k = b.length;
+		double[][] l = new double[k][k];
+		for (int i = 0; i < k; i++) {
+			for (int j = 0; j <= i; j++) {
+				double sum = a[i][j] + (i == j ? ridge : 0);
+				for (int r = 0; r < j; r++) {
+					sum -= l[i][r] * l[j][r];
+				}
+				if (i == j) {
+					if (!(sum > 0)) {
+						return null;
+					}
+					l[i][i] = Math.sqrt(sum);
+				} else {
+					l[i][j] = sum / l[j][j];
+				}
+			}
+		}
+		double[] y = new double[k];
+		for (int i = 0; i < k; i++) {
+			double sum = b[i];
+			for (int r = 0; r < i; r++) {
+				sum -= l[i][r] * y[r];
+			}
+			y[i] = sum / l[i][i];
+		}
+		double[] x = new double[k];
+		for (int i = k - 1; i >= 0; i--) {
+			double sum = y[i];
+			for (int r = i + 1; r < k; r++) {
+				sum -= l[r][i] * x[r];
+			}
+			x[i] = sum / l[i][i];
+		}
+		return x;
+	}
+
+	private boolean deselectColinearAttributes(boolean[] selected, double[] coef, double[] stdDevs,
+			double classStdDev) {
+		double maxSC = 1.5;
+		int maxAttr = -1, c = 0;
+		for (int i = 0; i < selected.length; i++) {
+			if (selected[i]) {
+				double sc = Math.abs(coef[c] * stdDevs[i] / classStdDev);
+				if (sc > maxSC) {
+					maxSC = sc;
+					maxAttr = i;
+				}
+				c++;
+			}
+		}
+		if (maxAttr >= 0) {
+			selected[maxAttr] = false;
+			return true;
+		}
+		return false;
+	}
+
+	// sum of squared errors over the rows summarized by m
+	private double squaredError(Moments m, boolean[] selected, double[] coef) {
+		double[] full = new double[names.length + 1];
+		int c = 0;
+		for (int j = 0; j < names.length; j++) {
+			if (selected[j]) {
+				full[j] = coef[c++];
+			}
+		}
+		full[names.length] = coef[c];
+		return m.squaredError(full, classIndex);
+	}
+
+	@Override
+	public String toString() {
+		if (coefficients == null) {
+			return "Streaming linear regression: no model built yet.";
+		}
+		StringBuffer text = new StringBuffer();
+		text.append("\nStreaming Linear Regression Model\n\n");
+		text.append(names[classIndex] + " =\n\n");
+		for (int j = 0; j < names.length; j++) {
+			if (j != classIndex && coefficients[j] != 0) {
+				text.append(Utils.doubleToString(coefficients[j], 12, 4) + " * " + names[j] + " +\n");
+			}
+		}
+		text.append(Utils.doubleToString(coefficients[names.length], 12, 4) + "\n");
+		text.append("\nInstances: " + numInstances() + ", skipped rows: " + skippedRows + "\n");
+		return text.toString();
+	}
+
+	public void setRidge(double ridge) {
+		this.ridge = ridge;
+	}
+
+	public double getRidge() {
+		return ridge;
+	}
+
+	public void setEliminateColinearAttributes(boolean eliminate) {
+		this.eliminateColinearAttributes = eliminate;
+	}
+
+	/**
+	 * M5 attribute selection (LinearRegression's default) or none.
+	 */
+	public void setM5Selection(boolean m5) {
+		this.m5Selection = m5;
+	}
+
+	/**
+	 * Number of cross-validation folds to keep statistics for, 1 disables
+	 * cross-validation.
+	 */
+	public void setNumFolds(int numFolds) {
+		this.numFolds = numFolds;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	private static class ChunkResult {
+		final Moments[] folds;
+		long skipped;
+
+		ChunkResult(int numFolds, int p) {
+			folds = new Moments[numFolds];
+			for (int f = 0; f < numFolds; f++) {
+				folds[f] = new Moments(p);
+			}
+		}
+	}
+
+	/**
+	 * Count, means and co-moments (centred cross products) of a set of
+	 * rows. Sets can be merged and subtracted without loss of precision from
+	 * large raw sums.
+	 */
+	static class Moments {
+		double n;
+		final double[] mean;
+		final double[] comoment; // p x p, row-major
+		private final double[] delta;
+
+		Moments(int p) {
+			mean = new double[p];
+			comoment = new double[p * p];
+			delta = new double[p];
+		}
+
+		double comoment(int i, int j) {
+			return comoment[i * mean.length + j];
+		}
+
+		void add(double[] x) {
+			int p = mean.length;
+			n++;
+			for (int i = 0; i < p; i++) {
+				delta[i] = x[i] - mean[i];
+				mean[i] += delta[i] / n;
+			}
+			for (int i = 0; i < p; i++) {
+				for (int j = 0; j < p; j++) {
+					comoment[i * p + j] += delta[i] * (x[j] - mean[j]);
+				}
+			}
+		}
+
+		void merge(Moments other) {
+			if (other.n == 0) {
+				return;
+			}
+			int p = mean.length;
+			double n = this.n + other.n;
+			double[] delta = new double[p];
+			for (int i = 0; i < p; i++) {
+				delta[i] = other.mean[i] - mean[i];
+			}
+			double factor = this.n * other.n / n;
+			for (int i = 0; i < p; i++) {
+				for (int j = 0; j < p; j++) {
+					comoment[i * p + j] += other.comoment[i * p + j] + delta[i] * delta[j] * factor;
+				}
+			}
+			for (int i = 0; i < p; i++) {
+				mean[i] += delta[i] * other.n / n;
+			}
+			this.n = n;
+		}
+
+		/**
+		 * The statistics of this set without the rows of a subset.
+		 */
+		Moments minus(Moments subset) {
+			int p = mean.length;
+			Moments rest = new Moments(p);
+			rest.n = n - subset.n;
+			if (rest.n <= 0) {
+				return rest;
+			}
+			double[] delta = new double[p];
+			for (int i = 0; i < p; i++) {
+				rest.mean[i] = (n * mean[i] - subset.n * subset.mean[i]) / rest.n;
+				delta[i] = subset.mean[i] - rest.mean[i];
+			}
+			double factor = rest.n * subset.n / n;
+			for (int i = 0; i < p; i++) {
+				for (int j = 0; j < p; j++) {
+					rest.comoment[i * p + j] = comoment[i * p + j] - subset.comoment[i * p + j]
+							- delta[i] * delta[j] * factor;
+				}
+			}
+			return rest;
+		}
+
+		// value of the linear model at the column means
+		double meanPrediction(double[] coef, int classIndex) {
+			int p = mean.length;
+			double prediction = coef[p];
+			for (int j = 0; j < p; j++) {
+				if (j != classIndex) {
+					prediction += coef[j] * mean[j];
+				}
+			}
+			return prediction;
+		}
+
+		// sum over i,j of a_i b_j C_ij, where the class column of a and b is
+		// either the coefficient -1 (residuals) or 0 (predictions)
+		double quadratic(double[] a, double[] b) {
+			int p = mean.length;
+			double sum = 0;
+			for (int i = 0; i < p; i++) {
+				if (a[i] == 0) {
+					continue;
+				}
+				for (int j = 0; j < p; j++) {
+					sum += a[i] * b[j] * comoment[i * p + j];
+				}
+			}
+			return sum;
+		}
+
+		/**
+		 * Sum of squared errors of a model with coefficients in the layout of
+		 * LinearRegression.coefficients().
+		 */
+		double squaredError(double[] coef, int classIndex) {
+			double[] residual = Arrays.copyOf(coef, mean.length);
+			residual[classIndex] = -1;
+			double offset = meanPrediction(coef, classIndex) - mean[classIndex];
+			return Math.max(0, n * offset * offset + quadratic(residual, residual));
+		}
+	}
+
+	/**
+	 * Cross-validation results computed from fold statistics.
+	 */
+	public static class CrossValidation {
+
+		private final double[] foldRMSE;
+		private double sumSqrErr, sumPriorSqrErr;
+		// statistics of (prediction, actual) pairs over all folds
+		private final Moments predictions = new Moments(2);
+
+		CrossValidation(int numFolds) {
+			foldRMSE = new double[numFolds];
+		}
+
+		void add(int fold, double[] coef, Moments train, Moments test, int classIndex) {
+			double sqrErr = test.squaredError(coef, classIndex);
+			double priorOffset = train.mean[classIndex] - test.mean[classIndex];
+			sumSqrErr += sqrErr;
+			sumPriorSqrErr += test.n * priorOffset * priorOffset + test.comoment(classIndex, classIndex);
+			foldRMSE[fold] = Math.sqrt(sqrErr / test.n);
+
+			double[] prediction = Arrays.copyOf(coef, test.mean.length);
+			prediction[classIndex] = 0;
+			double[] actual = new double[test.mean.length];
+			actual[classIndex] = 1;
+			Moments pairs = new Moments(2);
+			pairs.n = test.n;
+			pairs.mean[0] = test.meanPrediction(coef, classIndex);
+			pairs.mean[1] = test.mean[classIndex];
+			pairs.comoment[0] = test.quadratic(prediction, prediction);
+			pairs.comoment[1] = pairs.comoment[2] = test.quadratic(prediction, actual);
+			pairs.comoment[3] = test.comoment(classIndex, classIndex);
+			predictions.merge(pairs);
+		}
+
+		public double correlationCoefficient() {
+			double variances = predictions.comoment[0] * predictions.comoment[3];
+			return variances > 0 ? predictions.comoment[1] / Math.sqrt(variances) : 0;
+		}
+
+		public double rootMeanSquaredError() {
+			return Math.sqrt(sumSqrErr / predictions.n);
+		}
+
+		public double rootRelativeSquaredError() {
+			return 100 * Math.sqrt(sumSqrErr / sumPriorSqrErr);
+		}
+
+		public double[] foldRootMeanSquaredErrors() {
+			return foldRMSE;
+		}
+
+		public double numInstances() {
+			return predictions.n;
+		}
+
+		public String toSummaryString() {
+			StringBuffer text = new StringBuffer();
+			text.append("Correlation coefficient                  " + Utils.doubleToString(correlationCoefficient(), 12, 4) + "\n");
+			text.append("Root mean squared error                  " + Utils.doubleToString(rootMeanSquaredError(), 12, 4) + "\n");
+			text.append("Root relative squared error              " + Utils.doubleToString(rootRelativeSquaredError(), 12, 4) + " %\n");
+			text.append("Total Number of Instances              " + Utils.doubleToString(numInstances(), 12, 0) + "\n");
+			return text.toString();
+		}
+	}
+
+}
@@ -0,0 +1,669 @@
+/**
+ * Chapter 4: Ensemble selection over cached predictions
+ *
+ * Ensemble selection (Caruana et al.) with the options of
+ * weka.classifiers.meta.EnsembleSelection, but the validation predictions
+ * of every library model are kept in a PredictionStore under the working
+ * directory, keyed by the model specification, the fold, the seed and a
+ * fingerprint of the training data. Trained fold models are saved next to
+ * it. Building the ensemble again on the same data, with other bag counts,
+ * hill climbing iterations or ratios, only runs the hill climbing over the
+ * cached score matrices; library models are trained only the first time.
+ *
+ * The hill climbing metric is the (class weighted) area under the ROC
+ * curve, computed on primitive arrays: the ensemble scores of the positive
+ * and negative instances are sorted separately and merged, candidates are
+ * evaluated concurrently.
+ *
+ * With numFolds > 1 each library model is trained on every training fold
+ * and its predictions on the held-out folds are the validation set, and a
+ * selected model predicts with the average of its fold models. With
+ * numFolds = 1 the last validationRatio of the shuffled data is held out.
+ *
+ * With a JobScheduler every library model and fold that is not cached is
+ * trained as a job of its own, declaring JobScheduler.trainingMemory() of
+ * its training fold with the model's memory factor, and the ensemble
+ * waits for them with await(). The fold models of those jobs are the ones
+ * the ensemble predicts with; only models cached by an earlier build are
+ * read back from the working directory.
+ *
+ * This is a reimplementation, not a cache in front of EnsembleSelection:
+ * the folds, the model bags and the ties of the metric are drawn and
+ * broken its own way, so the selected ensemble and its predictions differ
+ * from the ones EnsembleSelection builds with the same options and seed.
+ * Library models that fail to train are left out, and reported with
+ * verbose output, as EnsembleSelection does.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.EnsembleLibrary;
+import weka.classifiers.EnsembleLibraryModel;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class CachedEnsembleSelection extends AbstractClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	// memory factor of models added without one
+	public static final double DEFAULT_MEMORY_FACTOR = 3;
+
+	// library
+	private final List<Classifier> library = new ArrayList<Classifier>();
+	private final List<String> specs = new ArrayList<String>();
+	private final List<Double> memoryFactors = new ArrayList<Double>();
+
+	// options, with the defaults of EnsembleSelection
+	private File workingDirectory = new File("data/esTmp");
+	private int numModelBags = 10;
+	private double modelRatio = 0.5;
+	private double validationRatio = 0.25;
+	private int hillclimbIterations = 100;
+	private double sortInitializationRatio = 1.0;
+	private int numFolds = 1;
+	private boolean replacement = true;
+	private boolean greedySortInitialization = true;
+	private boolean verboseOutput = false;
+	private int seed = 1;
+
+	private transient ForkJoinPool pool;
+	private transient JobScheduler scheduler;
+
+	// ensemble
+	private String[] selectedSpecs;
+	private double[] selectedWeights;
+	private Classifier[][] selectedModels; // [model][fold]
+	private double[] validationAUC;
+	private int numClasses;
+
+	/**
+	 * Adds the models of an EnsembleLibrary, with their string
+	 * representation as specification.
+	 */
+	public void setLibrary(EnsembleLibrary ensembleLibrary) {
+		setLibrary(ensembleLibrary, null);
+	}
+
+	/**
+	 * Adds the models of an EnsembleLibrary with a memory factor each, in
+	 * the order of the library; null for the default.
+	 */
+	public void setLibrary(EnsembleLibrary ensembleLibrary, List<Double> factors) {
+		library.clear();
+		specs.clear();
+		memoryFactors.clear();
+		int m = 0;
+		for (Object model : ensembleLibrary.getModels()) {
+			EnsembleLibraryModel libModel = (EnsembleLibraryModel) model;
+			addModel(libModel.getClassifier(), libModel.getStringRepresentation(),
+					factors != null ? factors.get(m++) : DEFAULT_MEMORY_FACTOR);
+		}
+	}
+
+	public void addModel(Classifier model, String spec) {
+		addModel(model, spec, DEFAULT_MEMORY_FACTOR);
+	}
+
+	/**
+	 * Adds a model to the library. The specification identifies its cached
+	 * predictions and must change when the model's options do; the memory
+	 * factor is the one of JobScheduler.trainingMemory().
+	 */
+	public void addModel(Classifier model, String spec, double memoryFactor) {
+		library.add(model);
+		specs.add(spec);
+		memoryFactors.add(memoryFactor);
+	}
+
+	@Override
+	public void buildClassifier(Instances data) throws Exception {
+		if (library.isEmpty()) {
+			throw new IllegalStateException("The model library is empty");
+		}
+		if (pool == null) {
+			pool = ForkJoinPool.commonPool();
+		}
+		data = new Instances(data);
+		data.deleteWithMissingClass();
+		numClasses = data.numClasses();
+
+		String fingerprint = fingerprint(data);
+		PredictionStore store = PredictionStore.open(new File(workingDirectory, "predictions-" + fingerprint + ".bin"));
+		try {
+			build(data, fingerprint, store);
+		} finally {
+			store.close();
+		}
+	}
+
+	private void build(Instances data, String fingerprint, PredictionStore store) throws Exception {
+		// folds as in EnsembleSelection: shuffled, stratified
+		Random random = new Random(seed);
+		data.randomize(random);
+		int folds = Math.max(1, numFolds);
+		Instances[] train = new Instances[folds], test = new Instances[folds];
+		if (folds > 1) {
+			data.stratify(folds);
+			for (int f = 0; f < folds; f++) {
+				train[f] = data.trainCV(folds, f);
+				test[f] = data.testCV(folds, f);
+			}
+		} else {
+			int numTrain = (int) Math.round(data.numInstances() * (1 - validationRatio));
+			train[0] = new Instances(data, 0, numTrain);
+			test[0] = new Instances(data, numTrain, data.numInstances() - numTrain);
+		}
+
+		// validation labels, the test folds one after another
+		List<Integer> labelList = new ArrayList<Integer>();
+		for (Instances fold : test) {
+			for (int i = 0; i < fold.numInstances(); i++) {
+				labelList.add((int) fold.instance(i).classValue());
+			}
+		}
+		int[] labels = new int[labelList.size()];
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = labelList.get(i);
+		}
+
+		// the library models and folds that are not in the store, as jobs
+		List<List<Future<Classifier>>> jobs = new ArrayList<List<Future<Classifier>>>();
+		for (int m = 0; m < library.size(); m++) {
+			List<Future<Classifier>> modelJobs = new ArrayList<Future<Classifier>>();
+			for (int f = 0; f < folds; f++) {
+				String key = key(m, f, folds);
+				Future<Classifier> job = null;
+				if (!store.contains(key)) {
+					Callable<Classifier> training = trainingJob(m, train[f], test[f], key, fingerprint, store);
+					if (scheduler != null) {
+						job = scheduler.submit(key, JobScheduler.trainingMemory(train[f], memoryFactors.get(m)),
+								training);
+					} else {
+						FutureTask<Classifier> task = new FutureTask<Classifier>(training);
+						task.run();
+						job = task;
+					}
+				}
+				modelJobs.add(job);
+			}
+			jobs.add(modelJobs);
+		}
+
+		// validation scores of every library model; trained fold models are kept
+		List<float[]> scores = new ArrayList<float[]>();
+		List<Integer> usable = new ArrayList<Integer>();
+		Classifier[][] trained = new Classifier[library.size()][folds];
+		for (int m = 0; m < library.size(); m++) {
+			float[] modelScores = new float[labels.length * numClasses];
+			int offset = 0;
+			boolean failed = false;
+			for (int f = 0; f < folds; f++) {
+				String key = key(m, f, folds);
+				Future<Classifier> job = jobs.get(m).get(f);
+				if (job != null) {
+					try {
+						trained[m][f] = scheduler != null ? scheduler.await(job) : job.get();
+					} catch (ExecutionException e) {
+						if (verboseOutput) {
+							System.out.println("Failed: " + key + ": " + e.getCause().getMessage());
+						}
+						failed = true;
+					}
+				} else if (verboseOutput) {
+					System.out.println("Cached: " + key);
+				}
+				if (!failed) {
+					float[] foldScores = store.get(key);
+					System.arraycopy(foldScores, 0, modelScores, offset, foldScores.length);
+					offset += foldScores.length;
+				}
+			}
+			if (!failed) {
+				scores.add(modelScores);
+				usable.add(m);
+			}
+		}
+		store.flush();
+		if (usable.isEmpty()) {
+			throw new Exception("No library model could be trained");
+		}
+
+		// hill climbing on the score matrices
+		HillClimber climber = new HillClimber(scores, labels);
+		validationAUC = new double[scores.size()];
+		for (int k = 0; k < scores.size(); k++) {
+			validationAUC[k] = climber.metric(climber.single(k));
+		}
+		double[] weights = new double[scores.size()];
+		for (int bag = 0; bag < numModelBags; bag++) {
+			int[] counts = climber.bag(random);
+			for (int k = 0; k < counts.length; k++) {
+				weights[k] += counts[k];
+			}
+		}
+
+		// fold models of the selected library models
+		List<Integer> selected = new ArrayList<Integer>();
+		for (int k = 0; k < weights.length; k++) {
+			if (weights[k] > 0) {
+				selected.add(k);
+			}
+		}
+		selectedSpecs = new String[selected.size()];
+		selectedWeights = new double[selected.size()];
+		selectedModels = new Classifier[selected.size()][folds];
+		for (int s = 0; s < selected.size(); s++) {
+			int m = usable.get(selected.get(s));
+			selectedSpecs[s] = specs.get(m);
+			selectedWeights[s] = weights[selected.get(s)];
+			for (int f = 0; f < folds; f++) {
+				selectedModels[s][f] = trained[m][f] != null ? trained[m][f] : load(m, train[f], key(m, f, folds),
+						fingerprint);
+			}
+		}
+	}
+
+	private String key(int m, int fold, int folds) {
+		return specs.get(m) + " #fold " + fold + "/" + folds + " seed " + seed
+				+ (folds == 1 ? " validation " + validationRatio : "");
+	}
+
+	/**
+	 * Trains the model on its own copy of the fold, so that jobs of other
+	 * models on the same fold do not share instances, and stores its
+	 * predictions on the held-out rows.
+	 */
+	private Callable<Classifier> trainingJob(final int m, final Instances train, final Instances test,
+			final String key, final String fingerprint, final PredictionStore store) {
+		return new Callable<Classifier>() {
+			public Classifier call() throws Exception {
+				Classifier model = train(m, new Instances(train), key, fingerprint);
+				store.put(key, predict(model, new Instances(test)));
+				return model;
+			}
+		};
+	}
+
+	private Classifier train(int m, Instances train, String key, String fingerprint) throws Exception {
+		if (verboseOutput) {
+			System.out.println("Training: " + key);
+		}
+		Classifier model = AbstractClassifier.makeCopy(library.get(m));
+		model.buildClassifier(train);
+		File file = modelFile(key, fingerprint);
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeObject(model);
+		} finally {
+			out.close();
+		}
+		return model;
+	}
+
+	// saved fold model, retrained if the file is gone
+	private Classifier load(int m, Instances train, String key, String fingerprint) throws Exception {
+		File file = modelFile(key, fingerprint);
+		if (file.isFile()) {
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				return (Classifier) in.readObject();
+			} catch (IOException e) {
+				// unreadable, retrain below
+			} finally {
+				in.close();
+			}
+		}
+		return train(m, train, key, fingerprint);
+	}
+
+	private File modelFile(String key, String fingerprint) throws Exception {
+		return new File(workingDirectory, fingerprint + "-" + sha1(key).substring(0, 16) + ".model");
+	}
+
+	private float[] predict(Classifier model, Instances test) throws Exception {
+		float[] scores = new float[test.numInstances() * numClasses];
+		for (int i = 0; i < test.numInstances(); i++) {
+			double[] dist = model.distributionForInstance(test.instance(i));
+			for (int c = 0; c < numClasses; c++) {
+				scores[i * numClasses + c] = (float) dist[c];
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * SHA-1 of the header and all values and weights of the data.
+	 */
+	static String fingerprint(Instances data) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		digest.update(new Instances(data, 0).toString().getBytes(StandardCharsets.UTF_8));
+		digest.update(Integer.toString(data.classIndex()).getBytes(StandardCharsets.UTF_8));
+		byte[] buffer = new byte[8 * (data.numAttributes() + 1)];
+		for (int i = 0; i < data.numInstances(); i++) {
+			Instance instance = data.instance(i);
+			int pos = 0;
+			for (int j = 0; j <= data.numAttributes(); j++) {
+				long bits = Double.doubleToLongBits(j < data.numAttributes() ? instance.value(j) : instance.weight());
+				for (int b = 0; b < 8; b++) {
+					buffer[pos++] = (byte) (bits >>> (8 * b));
+				}
+			}
+			digest.update(buffer);
+		}
+		return toHex(digest.digest()).substring(0, 16);
+	}
+
+	private static String sha1(String text) throws Exception {
+		return toHex(MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Forward selection with sort initialization over the validation score
+	 * matrices. Ensemble scores are sums of model scores, which rank the
+	 * instances like the averages.
+	 */
+	private class HillClimber {
+
+		final List<float[]> scores;
+		final int[] labels;
+		final int n;
+		final double[] classWeights;
+
+		HillClimber(List<float[]> scores, int[] labels) {
+			this.scores = scores;
+			this.labels = labels;
+			this.n = labels.length;
+			classWeights = new double[numClasses];
+			for (int label : labels) {
+				classWeights[label] += 1.0 / n;
+			}
+		}
+
+		double[] single(int k) {
+			return add(new double[n * numClasses], k);
+		}
+
+		double[] add(double[] sum, int k) {
+			double[] result = sum.clone();
+			float[] modelScores = scores.get(k);
+			for (int i = 0; i < result.length; i++) {
+				result[i] += modelScores[i];
+			}
+			return result;
+		}
+
+		/**
+		 * Counts of the models selected in one bag.
+		 */
+		int[] bag(Random random) throws Exception {
+			int numModels = scores.size();
+			int bagSize = Math.max(1, Math.min(numModels, (int) Math.round(modelRatio * numModels)));
+			int[] order = new int[numModels];
+			for (int k = 0; k < numModels; k++) {
+				order[k] = k;
+			}
+			for (int k = numModels - 1; k > 0; k--) {
+				int r = random.nextInt(k + 1);
+				int tmp = order[k];
+				order[k] = order[r];
+				order[r] = tmp;
+			}
+			final int[] bag = Arrays.copyOf(order, bagSize);
+
+			// sort initialization: best models first, ties in bag order
+			double[] keys = new double[bagSize];
+			for (int b = 0; b < bagSize; b++) {
+				keys[b] = -validationAUC[bag[b]];
+			}
+			int[] sorted = Utils.stableSort(keys);
+			for (int b = 0; b < bagSize; b++) {
+				sorted[b] = bag[sorted[b]];
+			}
+			int[] counts = new int[numModels];
+			double[] sum = new double[n * numClasses];
+			double performance = -Double.MAX_VALUE;
+			int initial = Math.max(1, (int) (sortInitializationRatio * bagSize));
+			for (int s = 0; s < initial; s++) {
+				double[] candidate = add(sum, sorted[s]);
+				double candidatePerformance = metric(candidate);
+				if (greedySortInitialization && s > 0 && candidatePerformance < performance) {
+					break;
+				}
+				sum = candidate;
+				performance = candidatePerformance;
+				counts[sorted[s]]++;
+			}
+
+			// forward selection, keeping the best ensemble seen
+			double bestPerformance = performance;
+			int[] bestCounts = counts.clone();
+			for (int iteration = 0; iteration < hillclimbIterations; iteration++) {
+				final double[] current = sum;
+				final int[] currentCounts = counts;
+				List<Callable<Double>> candidates = new ArrayList<Callable<Double>>();
+				for (final int k : bag) {
+					candidates.add(new Callable<Double>() {
+						public Double call() {
+							if (!replacement && currentCounts[k] > 0) {
+								return Double.NEGATIVE_INFINITY;
+							}
+							return metric(add(current, k));
+						}
+					});
+				}
+				int best = -1;
+				double bestCandidate = Double.NEGATIVE_INFINITY;
+				List<Future<Double>> results = pool.invokeAll(candidates);
+				for (int b = 0; b < bag.length; b++) {
+					double value;
+					try {
+						value = results.get(b).get();
+					} catch (ExecutionException e) {
+						throw (Exception) e.getCause();
+					}
+					if (value > bestCandidate) {
+						bestCandidate = value;
+						best = bag[b];
+					}
+				}
+				if (best < 0) {
+					break;
+				}
+				sum = add(sum, best);
+				counts[best]++;
+				if (bestCandidate > bestPerformance) {
+					bestPerformance = bestCandidate;
+					bestCounts = counts.clone();
+				}
+			}
+			if (verboseOutput) {
+				System.out.println("Bag AUC: " + Utils.doubleToString(bestPerformance, 6) + " "
+						+ Arrays.toString(bestCounts));
+			}
+			return bestCounts;
+		}
+
+		/**
+		 * Area under the ROC curve of each class against the rest, weighted by
+		 * the class frequencies; for two classes simply the AUC.
+		 */
+		double metric(double[] sum) {
+			if (numClasses == 2) {
+				return auc(sum, 1);
+			}
+			double metric = 0;
+			for (int c = 0; c < numClasses; c++) {
+				if (classWeights[c] > 0) {
+					metric += classWeights[c] * auc(sum, c);
+				}
+			}
+			return metric;
+		}
+
+		// Mann-Whitney statistic from separately sorted scores, ties count half
+		double auc(double[] sum, int c) {
+			int numPositive = 0;
+			for (int label : labels) {
+				if (label == c) {
+					numPositive++;
+				}
+			}
+			double[] positive = new double[numPositive];
+			double[] negative = new double[n - numPositive];
+			for (int i = 0, p = 0, q = 0; i < n; i++) {
+				if (labels[i] == c) {
+					positive[p++] = sum[i * numClasses + c];
+				} else {
+					negative[q++] = sum[i * numClasses + c];
+				}
+			}
+			if (positive.length == 0 || negative.length == 0) {
+				return 0.5;
+			}
+			Arrays.sort(positive);
+			Arrays.sort(negative);
+			double area = 0;
+			int below = 0, equal = 0;
+			for (int p = 0; p < positive.length; p++) {
+				if (p == 0 || positive[p] != positive[p - 1]) {
+					below += equal;
+					while (below < negative.length && negative[below] < positive[p]) {
+						below++;
+					}
+					equal = 0;
+					while (below + equal < negative.length && negative[below + equal] == positive[p]) {
+						equal++;
+					}
+				}
+				area += below + 0.5 * equal;
+			}
+			return area / ((double) positive.length * negative.length);
+		}
+	}
+
+	@Override
+	public double[] distributionForInstance(Instance instance) throws Exception {
+		double[] dist = new double[numClasses];
+		double total = 0;
+		for (int s = 0; s < selectedModels.length; s++) {
+			for (Classifier model : selectedModels[s]) {
+				double[] modelDist = model.distributionForInstance(instance);
+				for (int c = 0; c < numClasses; c++) {
+					dist[c] += selectedWeights[s] * modelDist[c] / selectedModels[s].length;
+				}
+			}
+			total += selectedWeights[s];
+		}
+		for (int c = 0; c < numClasses; c++) {
+			dist[c] /= total;
+		}
+		return dist;
+	}
+
+	@Override
+	public String toString() {
+		if (selectedModels == null) {
+			return "CachedEnsembleSelection: no model built yet.";
+		}
+		StringBuffer text = new StringBuffer("Ensemble selection over cached predictions\n\n");
+		for (int s = 0; s < selectedSpecs.length; s++) {
+			text.append(Utils.doubleToString(selectedWeights[s], 4, 0) + "  " + selectedSpecs[s] + "\n");
+		}
+		return text.toString();
+	}
+
+	/*
+	 * Options
+	 */
+
+	public void setWorkingDirectory(File workingDirectory) {
+		this.workingDirectory = workingDirectory;
+	}
+
+	public File getWorkingDirectory() {
+		return workingDirectory;
+	}
+
+	public void setNumModelBags(int numModelBags) {
+		this.numModelBags = numModelBags;
+	}
+
+	public void setModelRatio(double modelRatio) {
+		this.modelRatio = modelRatio;
+	}
+
+	public void setValidationRatio(double validationRatio) {
+		this.validationRatio = validationRatio;
+	}
+
+	public void setHillclimbIterations(int hillclimbIterations) {
+		this.hillclimbIterations = hillclimbIterations;
+	}
+
+	public void setSortInitializationRatio(double sortInitializationRatio) {
+		this.sortInitializationRatio = sortInitializationRatio;
+	}
+
+	public void setNumFolds(int numFolds) {
+		this.numFolds = numFolds;
+	}
+
+	public void setReplacement(boolean replacement) {
+		this.replacement = replacement;
+	}
+
+	public void setGreedySortInitialization(boolean greedySortInitialization) {
+		this.greedySortInitialization = greedySortInitialization;
+	}
+
+	public void setVerboseOutput(boolean verboseOutput) {
+		this.verboseOutput = verboseOutput;
+	}
+
+	public void setSeed(int seed) {
+		this.seed = seed;
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Trains the library models as jobs of the scheduler; not kept by
+	 * copies of the classifier.
+	 */
+	public void setScheduler(JobScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+}
@@ -0,0 +1,160 @@
+/**
+ * Chapter 4: Column-oriented dataset
+ *
+ * Result of ColumnarLoader: numeric attributes are stored as double[] columns
+ * (NaN for missing values) and nominal attributes as int[] dictionary codes
+ * (-1 for missing values) with one dictionary per column. The columns can be
+ * used directly, or converted to Weka Instances.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+public class ColumnarData {
+
+	final String relationName;
+	final String[] names;
+	final boolean[] nominal;
+	final double[][] numeric;
+	final int[][] codes;
+	final String[][] dictionaries;
+	final int numRows;
+
+	ColumnarData(String relationName, String[] names, boolean[] nominal, double[][] numeric, int[][] codes,
+			String[][] dictionaries, int numRows) {
+		this.relationName = relationName;
+		this.names = names;
+		this.nominal = nominal;
+		this.numeric = numeric;
+		this.codes = codes;
+		this.dictionaries = dictionaries;
+		this.numRows = numRows;
+	}
+
+	public int numRows() {
+		return numRows;
+	}
+
+	public int numColumns() {
+		return names.length;
+	}
+
+	public String name(int column) {
+		return names[column];
+	}
+
+	public int indexOf(String name) {
+		return Arrays.asList(names).indexOf(name);
+	}
+
+	public boolean isNominal(int column) {
+		return nominal[column];
+	}
+
+	/**
+	 * Values of a numeric column, NaN for missing values.
+	 */
+	public double[] numericColumn(int column) {
+		if (nominal[column]) {
+			throw new IllegalArgumentException(names[column] + " is nominal");
+		}
+		return numeric[column];
+	}
+
+	/**
+	 * Dictionary codes of a nominal column, -1 for missing values.
+	 */
+	public int[] nominalColumn(int column) {
+		if (!nominal[column]) {
+			throw new IllegalArgumentException(names[column] + " is numeric");
+		}
+		return codes[column];
+	}
+
+	/**
+	 * Distinct values of a nominal column, indexed by code.
+	 */
+	public String[] dictionary(int column) {
+		return dictionaries[column];
+	}
+
+	/**
+	 * Value of a cell in Weka's internal format: the value of a numeric
+	 * attribute, the code of a nominal one, NaN if missing.
+	 */
+	public double value(int row, int column) {
+		if (nominal[column]) {
+			int code = codes[column][row];
+			return code < 0 ? Double.NaN : code;
+		}
+		return numeric[column][row];
+	}
+
+	/**
+	 * Weka attribute for a column.
+	 */
+	public Attribute attribute(int column) {
+		if (nominal[column]) {
+			return new Attribute(names[column], Arrays.asList(dictionaries[column]));
+		}
+		return new Attribute(names[column]);
+	}
+
+	/**
+	 * Converts all columns to Instances.
+	 */
+	public Instances toInstances() {
+		int[] columns = new int[names.length];
+		for (int j = 0; j < columns.length; j++) {
+			columns[j] = j;
+		}
+		return toInstances(columns);
+	}
+
+	/**
+	 * Converts the given columns to Instances, in the given order.
+	 */
+	public Instances toInstances(int... columns) {
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(columns.length);
+		for (int column : columns) {
+			attributes.add(attribute(column));
+		}
+		Instances data = new Instances(relationName, attributes, numRows);
+		for (int i = 0; i < numRows; i++) {
+			double[] vals = new double[columns.length];
+			for (int j = 0; j < columns.length; j++) {
+				vals[j] = value(i, columns[j]);
+			}
+			data.add(new DenseInstance(1.0, vals));
+		}
+		return data;
+	}
+
+	/**
+	 * A dataset with the columns of this one followed by a column of another
+	 * dataset with the same number of rows. The column arrays are shared,
+	 * not copied.
+	 */
+	public ColumnarData withColumn(ColumnarData other, int column) {
+		if (other.numRows != numRows) {
+			throw new IllegalArgumentException("Expected " + numRows + " rows, got " + other.numRows);
+		}
+		int n = names.length;
+		String[] names = Arrays.copyOf(this.names, n + 1);
+		boolean[] nominal = Arrays.copyOf(this.nominal, n + 1);
+		double[][] numeric = Arrays.copyOf(this.numeric, n + 1);
+		int[][] codes = Arrays.copyOf(this.codes, n + 1);
+		String[][] dictionaries = Arrays.copyOf(this.dictionaries, n + 1);
+		names[n] = other.names[column];
+		nominal[n] = other.nominal[column];
+		numeric[n] = other.numeric[column];
+		codes[n] = other.codes[column];
+		dictionaries[n] = other.dictionaries[column];
+		return new ColumnarData(relationName, names, nominal, numeric, codes, dictionaries, numRows);
+	}
+
+}
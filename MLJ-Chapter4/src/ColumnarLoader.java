@@ -0,0 +1,801 @@
+/**
+ * Chapter 4: Memory-mapped columnar loader
+ *
+ * Loads CSV and (dense) ARFF files into ColumnarData. The file is memory
+ * mapped and split into chunks at line boundaries that are tokenized in
+ * parallel, straight from the mapped bytes into primitive column arrays.
+ * Column types are decided once, from the ARFF header or, for CSV files,
+ * from a sample of the first lines and the nominal attribute range; nominal
+ * values get dictionary codes in order of first appearance. A CSV column
+ * sampled as numeric that turns out to hold other values further down is
+ * parsed again as nominal; in an ARFF file such values are missing. loadSparse()
+ * keeps only the values present, for files that are mostly missing values.
+ *
+ * The setters follow CSVLoader, so loading the KDD Cup data looks like:
+ *
+ *   ColumnarLoader loader = new ColumnarLoader();
+ *   loader.setFieldSeparator("\t");
+ *   loader.setNominalAttributes("191-last");
+ *   ColumnarData data = loader.load(new File("data/orange_small_train.data"));
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import weka.core.Range;
+
+public class ColumnarLoader {
+
+	private static final int SAMPLE_LINES = 1000;
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private byte separator = ',';
+	private String nominalAttributes = null;
+	private boolean noHeaderRowPresent = false;
+	private int chunkSize = 32 * 1024 * 1024;
+
+	private transient ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	public void setFieldSeparator(String separator) {
+		if (separator.equals("\\t")) {
+			separator = "\t";
+		}
+		if (separator.length() != 1) {
+			throw new IllegalArgumentException("Field separator must be a single character");
+		}
+		this.separator = (byte) separator.charAt(0);
+	}
+
+	/**
+	 * Range of CSV columns that are nominal, e.g. "191-last".
+	 */
+	public void setNominalAttributes(String range) {
+		this.nominalAttributes = range;
+	}
+
+	public void setNoHeaderRowPresent(boolean noHeaderRowPresent) {
+		this.noHeaderRowPresent = noHeaderRowPresent;
+	}
+
+	/**
+	 * Approximate number of bytes per parallel chunk.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public ColumnarData load(File file) throws IOException {
+		return read(file, false).columnar();
+	}
+
+	/**
+	 * Loads the file into compressed columns that store only the values
+	 * present, for data that is mostly missing. No dense column is built,
+	 * not even per chunk.
+	 */
+	public SparseColumnarData loadSparse(File file) throws IOException {
+		return read(file, true).sparse();
+	}
+
+	private Parsed read(File file, boolean sparse) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (file.getName().toLowerCase().endsWith(".arff")) {
+				return loadArff(channel, file.getName(), sparse);
+			}
+			return loadCsv(channel, file.getName(), sparse);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Headers
+	 */
+
+	private Parsed loadCsv(FileChannel channel, String name, boolean sparse) throws IOException {
+		byte separator = this.separator;
+		long size = channel.size();
+		MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, 4 * 1024 * 1024));
+
+		// sample the first lines to find the columns and their types
+		List<List<String>> sample = new ArrayList<List<String>>();
+		int pos = 0, dataStart = 0;
+		while (pos < head.limit() && sample.size() <= SAMPLE_LINES) {
+			int end = lineEnd(head, pos, head.limit());
+			if (end > pos) {
+				sample.add(tokens(head, pos, end, separator));
+			}
+			pos = skipLineBreak(head, end, head.limit());
+			if (sample.size() == 1 && dataStart == 0) {
+				dataStart = pos;
+			}
+		}
+		if (sample.isEmpty()) {
+			throw new IOException("No data in " + name);
+		}
+
+		int numColumns = sample.get(0).size();
+		String[] names = new String[numColumns];
+		for (int j = 0; j < numColumns; j++) {
+			names[j] = noHeaderRowPresent ? "att" + (j + 1) : sample.get(0).get(j);
+		}
+		if (noHeaderRowPresent) {
+			dataStart = 0;
+		} else {
+			sample.remove(0);
+		}
+
+		Range range = null;
+		if (nominalAttributes != null) {
+			range = new Range(nominalAttributes);
+			range.setUpper(numColumns - 1);
+		}
+		boolean[] nominal = new boolean[numColumns];
+		for (int j = 0; j < numColumns; j++) {
+			nominal[j] = range != null && range.isInRange(j);
+			for (List<String> line : sample) {
+				if (nominal[j]) {
+					break;
+				}
+				if (j < line.size()) {
+					String token = line.get(j);
+					nominal[j] = !isMissing(token) && !isNumber(token);
+				}
+			}
+		}
+
+		String relationName = name.replaceAll("\\.[^.]*$", "");
+		Parsed parsed = parse(channel, relationName, names, nominal, new String[numColumns][], dataStart, sparse,
+				separator);
+		boolean[] nonNumeric = parsed.nonNumeric();
+		boolean retype = false;
+		for (int j = 0; j < numColumns; j++) {
+			if (nonNumeric[j]) {
+				// the sample was not representative, read the column as nominal
+				nominal[j] = true;
+				retype = true;
+			}
+		}
+		if (retype) {
+			parsed = parse(channel, relationName, names, nominal, new String[numColumns][], dataStart, sparse,
+					separator);
+		}
+		return parsed;
+	}
+
+	private Parsed loadArff(FileChannel channel, String name, boolean sparse) throws IOException {
+		long size = channel.size();
+		MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, 16 * 1024 * 1024));
+
+		String relationName = name;
+		List<String> names = new ArrayList<String>();
+		List<String[]> values = new ArrayList<String[]>();
+		int pos = 0;
+		while (true) {
+			if (pos >= head.limit()) {
+				throw new IOException("No @data section in the first 16MB of " + name);
+			}
+			int end = lineEnd(head, pos, head.limit());
+			String line = new String(bytes(head, pos, end), StandardCharsets.UTF_8).trim();
+			pos = skipLineBreak(head, end, head.limit());
+			String lower = line.toLowerCase();
+			if (lower.startsWith("@relation")) {
+				relationName = unquote(line.substring(9).trim());
+			} else if (lower.startsWith("@attribute")) {
+				String rest = line.substring(10).trim();
+				int split = nameEnd(rest);
+				names.add(unquote(rest.substring(0, split)));
+				String type = rest.substring(split).trim();
+				if (type.startsWith("{")) {
+					String[] declared = type.substring(1, type.lastIndexOf('}')).split(",");
+					for (int v = 0; v < declared.length; v++) {
+						declared[v] = unquote(declared[v].trim());
+					}
+					values.add(declared);
+				} else if (type.toLowerCase().split("\\s+")[0].matches("numeric|real|integer")) {
+					values.add(null);
+				} else {
+					throw new IOException("Unsupported attribute type: " + line);
+				}
+			} else if (lower.startsWith("@data")) {
+				break;
+			}
+		}
+
+		int numColumns = names.size();
+		boolean[] nominal = new boolean[numColumns];
+		String[][] declared = new String[numColumns][];
+		for (int j = 0; j < numColumns; j++) {
+			nominal[j] = values.get(j) != null;
+			declared[j] = values.get(j);
+		}
+		return parse(channel, relationName, names.toArray(new String[numColumns]), nominal, declared, pos, sparse,
+				(byte) ',');
+	}
+
+	/*
+	 * Parallel parsing
+	 */
+
+	private Parsed parse(FileChannel channel, String relationName, final String[] names,
+			final boolean[] nominal, final String[][] declared, long dataStart, final boolean sparse,
+			final byte separator) throws IOException {
+
+		long size = channel.size();
+
+		// split at line boundaries
+		List<long[]> ranges = new ArrayList<long[]>();
+		long start = dataStart;
+		while (start < size) {
+			long end = Math.min(size, start + chunkSize);
+			while (end < size) {
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, end,
+						Math.min(size - end, 1024 * 1024));
+				int offset = lineEnd(window, 0, window.limit());
+				if (offset < window.limit()) {
+					end += skipLineBreak(window, offset, window.limit());
+					break;
+				}
+				// no line break in this window, look further
+				end += window.limit();
+			}
+			ranges.add(new long[] { start, end });
+			start = end;
+		}
+
+		List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+		for (long[] range : ranges) {
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1] - range[0]);
+			tasks.add(new Callable<Chunk>() {
+				public Chunk call() throws Exception {
+					return parseChunk(buffer, nominal, declared, sparse, separator);
+				}
+			});
+		}
+
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		try {
+			for (Future<Chunk> future : pool.invokeAll(tasks)) {
+				chunks.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+
+		return new Parsed(relationName, names, nominal, declared, chunks);
+	}
+
+	/**
+	 * Header and parsed chunks of a file.
+	 */
+	private static class Parsed {
+		final String relationName;
+		final String[] names;
+		final boolean[] nominal;
+		final String[][] declared;
+		final List<Chunk> chunks;
+		final int numRows;
+
+		Parsed(String relationName, String[] names, boolean[] nominal, String[][] declared, List<Chunk> chunks) {
+			this.relationName = relationName;
+			this.names = names;
+			this.nominal = nominal;
+			this.declared = declared;
+			this.chunks = chunks;
+			int numRows = 0;
+			for (Chunk chunk : chunks) {
+				numRows += chunk.numRows;
+			}
+			this.numRows = numRows;
+		}
+
+		// numeric columns with values that are not numbers
+		boolean[] nonNumeric() {
+			boolean[] nonNumeric = new boolean[names.length];
+			for (Chunk chunk : chunks) {
+				for (int j = 0; j < nonNumeric.length; j++) {
+					nonNumeric[j] |= chunk.nonNumeric[j];
+				}
+			}
+			return nonNumeric;
+		}
+
+		/**
+		 * Maps the codes of each chunk to codes of the merged dictionary, in
+		 * order of first appearance, and sets the dictionary of the column.
+		 */
+		int[][] remap(int j, String[][] dictionaries) {
+			if (declared[j] != null) {
+				dictionaries[j] = declared[j];
+				return null;
+			}
+			int[][] remaps = new int[chunks.size()][];
+			Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+			for (int c = 0; c < chunks.size(); c++) {
+				List<String> local = chunks.get(c).dictionaryValues.get(j);
+				remaps[c] = new int[local.size()];
+				for (int v = 0; v < remaps[c].length; v++) {
+					Integer code = dictionary.get(local.get(v));
+					if (code == null) {
+						code = dictionary.size();
+						dictionary.put(local.get(v), code);
+					}
+					remaps[c][v] = code;
+				}
+			}
+			dictionaries[j] = dictionary.keySet().toArray(new String[dictionary.size()]);
+			return remaps;
+		}
+
+		// concatenate the chunks, merging the nominal dictionaries in order
+		ColumnarData columnar() {
+			int numColumns = names.length;
+			double[][] numeric = new double[numColumns][];
+			int[][] codes = new int[numColumns][];
+			String[][] dictionaries = new String[numColumns][];
+			for (int j = 0; j < numColumns; j++) {
+				if (!nominal[j]) {
+					numeric[j] = new double[numRows];
+					int offset = 0;
+					for (Chunk chunk : chunks) {
+						System.arraycopy(chunk.numeric[j], 0, numeric[j], offset, chunk.numRows);
+						offset += chunk.numRows;
+					}
+					continue;
+				}
+				codes[j] = new int[numRows];
+				int[][] remaps = remap(j, dictionaries);
+				int offset = 0;
+				for (int c = 0; c < chunks.size(); c++) {
+					Chunk chunk = chunks.get(c);
+					int[] chunkCodes = chunk.codes[j];
+					for (int i = 0; i < chunk.numRows; i++) {
+						codes[j][offset + i] = chunkCodes[i] < 0 || remaps == null ? chunkCodes[i] : remaps[c][chunkCodes[i]];
+					}
+					offset += chunk.numRows;
+				}
+			}
+			return new ColumnarData(relationName, names, nominal, numeric, codes, dictionaries, numRows);
+		}
+
+		// concatenate the present values of the chunks and set their bits
+		SparseColumnarData sparse() {
+			int numColumns = names.length;
+			long[][] present = new long[numColumns][];
+			double[][] numeric = new double[numColumns][];
+			int[][] codes = new int[numColumns][];
+			String[][] dictionaries = new String[numColumns][];
+			for (int j = 0; j < numColumns; j++) {
+				int count = 0;
+				for (Chunk chunk : chunks) {
+					count += chunk.counts[j];
+				}
+				present[j] = new long[(numRows + 63) >>> 6];
+				int[][] remaps = nominal[j] ? remap(j, dictionaries) : null;
+				if (nominal[j]) {
+					codes[j] = new int[count];
+				} else {
+					numeric[j] = new double[count];
+				}
+				int rowOffset = 0, valueOffset = 0;
+				for (int c = 0; c < chunks.size(); c++) {
+					Chunk chunk = chunks.get(c);
+					int[] rows = chunk.rows[j];
+					for (int k = 0; k < chunk.counts[j]; k++) {
+						int row = rowOffset + rows[k];
+						present[j][row >>> 6] |= 1L << row;
+						if (nominal[j]) {
+							int code = chunk.codes[j][k];
+							codes[j][valueOffset + k] = remaps == null ? code : remaps[c][code];
+						}
+					}
+					if (!nominal[j]) {
+						System.arraycopy(chunk.numeric[j], 0, numeric[j], valueOffset, chunk.counts[j]);
+					}
+					rowOffset += chunk.numRows;
+					valueOffset += chunk.counts[j];
+				}
+			}
+			return new SparseColumnarData(relationName, names, nominal, present, numeric, codes, dictionaries,
+					numRows);
+		}
+	}
+
+	private Chunk parseChunk(MappedByteBuffer buffer, boolean[] nominal, String[][] declared, boolean sparse,
+			byte separator) throws IOException {
+		int numColumns = nominal.length;
+		int limit = buffer.limit();
+		Chunk chunk = new Chunk(numColumns, nominal, sparse, Math.max(16, limit / (8 * numColumns + 1)));
+
+		// lookup of declared ARFF values
+		List<Map<String, Integer>> declaredCodes = new ArrayList<Map<String, Integer>>();
+		for (int j = 0; j < numColumns; j++) {
+			Map<String, Integer> codes = null;
+			if (declared[j] != null) {
+				codes = new HashMap<String, Integer>();
+				for (int v = 0; v < declared[j].length; v++) {
+					codes.put(declared[j][v], v);
+				}
+			}
+			declaredCodes.add(codes);
+		}
+
+		int[] starts = new int[numColumns];
+		int[] ends = new int[numColumns];
+		byte[] scratch = new byte[64];
+		int pos = 0;
+		while (pos < limit) {
+			int end = lineEnd(buffer, pos, limit);
+			if (end > pos && buffer.get(pos) != '%') {
+				if (buffer.get(pos) == '{') {
+					throw new IOException("Sparse ARFF data is not supported");
+				}
+				int found = split(buffer, pos, end, separator, starts, ends);
+				int row = chunk.newRow();
+				for (int j = 0; j < numColumns; j++) {
+					int s = j < found ? starts[j] : 0, e = j < found ? ends[j] : 0;
+					if (!nominal[j]) {
+						chunk.setNumeric(j, row, parseNumber(buffer, s, e, scratch, chunk, j));
+					} else if (isMissing(buffer, s, e)) {
+						chunk.setCode(j, row, -1);
+					} else {
+						String value = unquote(new String(bytes(buffer, s, e), StandardCharsets.UTF_8).trim());
+						Integer code;
+						if (declaredCodes.get(j) != null) {
+							code = declaredCodes.get(j).get(value);
+							if (code == null) {
+								throw new IOException("Undeclared nominal value " + value);
+							}
+						} else {
+							Map<String, Integer> dictionary = chunk.dictionaries.get(j);
+							code = dictionary.get(value);
+							if (code == null) {
+								code = dictionary.size();
+								dictionary.put(value, code);
+								chunk.dictionaryValues.get(j).add(value);
+							}
+						}
+						chunk.setCode(j, row, code);
+					}
+				}
+			}
+			pos = skipLineBreak(buffer, end, limit);
+		}
+		chunk.trim();
+		return chunk;
+	}
+
+	/**
+	 * Column arrays of one chunk, grown as rows are added. Sparse chunks
+	 * keep only the values present, with their row numbers.
+	 */
+	private static class Chunk {
+		final boolean[] nominal;
+		final boolean sparse;
+		final boolean[] nonNumeric;
+		double[][] numeric;
+		int[][] codes;
+		int[][] rows;
+		int[] counts;
+		final List<Map<String, Integer>> dictionaries = new ArrayList<Map<String, Integer>>();
+		final List<List<String>> dictionaryValues = new ArrayList<List<String>>();
+		int numRows, capacity;
+
+		Chunk(int numColumns, boolean[] nominal, boolean sparse, int capacity) {
+			this.nominal = nominal;
+			this.sparse = sparse;
+			nonNumeric = new boolean[numColumns];
+			numeric = new double[numColumns][];
+			codes = new int[numColumns][];
+			if (sparse) {
+				rows = new int[numColumns][16];
+				counts = new int[numColumns];
+				capacity = 16;
+			}
+			this.capacity = capacity;
+			for (int j = 0; j < numColumns; j++) {
+				if (nominal[j]) {
+					codes[j] = new int[capacity];
+				} else {
+					numeric[j] = new double[capacity];
+				}
+				dictionaries.add(new HashMap<String, Integer>());
+				dictionaryValues.add(new ArrayList<String>());
+			}
+		}
+
+		int newRow() {
+			if (!sparse && numRows == capacity) {
+				resize(capacity * 2);
+			}
+			return numRows++;
+		}
+
+		void setNumeric(int j, int row, double value) {
+			if (!sparse) {
+				numeric[j][row] = value;
+			} else if (!Double.isNaN(value)) {
+				int k = append(j, row);
+				numeric[j][k] = value;
+			}
+		}
+
+		void setCode(int j, int row, int code) {
+			if (!sparse) {
+				codes[j][row] = code;
+			} else if (code >= 0) {
+				int k = append(j, row);
+				codes[j][k] = code;
+			}
+		}
+
+		private int append(int j, int row) {
+			int k = counts[j]++;
+			if (k == rows[j].length) {
+				rows[j] = Arrays.copyOf(rows[j], 2 * k);
+				if (nominal[j]) {
+					codes[j] = Arrays.copyOf(codes[j], 2 * k);
+				} else {
+					numeric[j] = Arrays.copyOf(numeric[j], 2 * k);
+				}
+			}
+			rows[j][k] = row;
+			return k;
+		}
+
+		void trim() {
+			if (!sparse) {
+				resize(numRows);
+				return;
+			}
+			for (int j = 0; j < nominal.length; j++) {
+				rows[j] = Arrays.copyOf(rows[j], counts[j]);
+				if (nominal[j]) {
+					codes[j] = Arrays.copyOf(codes[j], counts[j]);
+				} else {
+					numeric[j] = Arrays.copyOf(numeric[j], counts[j]);
+				}
+			}
+		}
+
+		private void resize(int newCapacity) {
+			for (int j = 0; j < nominal.length; j++) {
+				if (nominal[j]) {
+					codes[j] = Arrays.copyOf(codes[j], newCapacity);
+				} else {
+					numeric[j] = Arrays.copyOf(numeric[j], newCapacity);
+				}
+			}
+			capacity = newCapacity;
+		}
+	}
+
+	/*
+	 * Tokenizing
+	 */
+
+	private static int lineEnd(MappedByteBuffer buffer, int pos, int limit) {
+		while (pos < limit) {
+			byte b = buffer.get(pos);
+			if (b == '\n' || b == '\r') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	private static int skipLineBreak(MappedByteBuffer buffer, int pos, int limit) {
+		if (pos < limit && buffer.get(pos) == '\r') {
+			pos++;
+		}
+		if (pos < limit && buffer.get(pos) == '\n') {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Finds the field boundaries of a line, separators inside quotes are
+	 * ignored. Only a quote that opens a field quotes it, so an apostrophe
+	 * inside a value is just a character. Returns the number of fields found.
+	 */
+	private static int split(MappedByteBuffer buffer, int pos, int end, byte separator, int[] starts, int[] ends) {
+		int field = 0;
+		int fieldStart = pos;
+		boolean atFieldStart = true;
+		byte quote = 0;
+		for (int i = pos; i < end; i++) {
+			byte b = buffer.get(i);
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+				}
+			} else if (b == separator) {
+				if (field < starts.length) {
+					starts[field] = fieldStart;
+					ends[field] = i;
+				}
+				field++;
+				fieldStart = i + 1;
+				atFieldStart = true;
+			} else if (atFieldStart && (b == '"' || b == '\'')) {
+				quote = b;
+				atFieldStart = false;
+			} else if (b != ' ') {
+				atFieldStart = false;
+			}
+		}
+		if (field < starts.length) {
+			starts[field] = fieldStart;
+			ends[field] = end;
+		}
+		return Math.min(field + 1, starts.length);
+	}
+
+	private static List<String> tokens(MappedByteBuffer buffer, int pos, int end, byte separator) {
+		int[] starts = new int[end - pos + 1];
+		int[] ends = new int[end - pos + 1];
+		int found = split(buffer, pos, end, separator, starts, ends);
+		List<String> tokens = new ArrayList<String>(found);
+		for (int j = 0; j < found; j++) {
+			tokens.add(unquote(new String(bytes(buffer, starts[j], ends[j]), StandardCharsets.UTF_8).trim()));
+		}
+		return tokens;
+	}
+
+	private static byte[] bytes(MappedByteBuffer buffer, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = start; i < end; i++) {
+			bytes[i - start] = buffer.get(i);
+		}
+		return bytes;
+	}
+
+	private static boolean isMissing(MappedByteBuffer buffer, int start, int end) {
+		while (start < end && buffer.get(start) == ' ') {
+			start++;
+		}
+		while (end > start && buffer.get(end - 1) == ' ') {
+			end--;
+		}
+		return start == end || (end - start == 1 && buffer.get(start) == '?');
+	}
+
+	/**
+	 * Parses a decimal number straight from the buffer. Numbers with at most
+	 * 15 significant digits and a small exponent are exact with a single
+	 * multiplication or division; anything else goes to Double.parseDouble.
+	 * A value that is not a number is missing and marks the column.
+	 */
+	private static double parseNumber(MappedByteBuffer buffer, int start, int end, byte[] scratch, Chunk chunk,
+			int column) {
+		while (start < end && buffer.get(start) == ' ') {
+			start++;
+		}
+		while (end > start && buffer.get(end - 1) == ' ') {
+			end--;
+		}
+		if (start == end || (end - start == 1 && buffer.get(start) == '?')) {
+			return Double.NaN;
+		}
+
+		int i = start;
+		boolean negative = false;
+		if (buffer.get(i) == '-' || buffer.get(i) == '+') {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean sawDigit = false;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if (b >= '0' && b <= '9') {
+				sawDigit = true;
+				if (mantissa > 0 || b != '0') {
+					digits++;
+				}
+				mantissa = mantissa * 10 + (b - '0');
+			} else {
+				break;
+			}
+		}
+		if (i < end && buffer.get(i) == '.') {
+			for (i++; i < end; i++) {
+				byte b = buffer.get(i);
+				if (b >= '0' && b <= '9') {
+					sawDigit = true;
+					if (mantissa > 0 || b != '0') {
+						digits++;
+					}
+					mantissa = mantissa * 10 + (b - '0');
+					exponent--;
+				} else {
+					break;
+				}
+			}
+		}
+		if (sawDigit && i == end && digits <= 15 && exponent >= -22) {
+			double value = exponent == 0 ? mantissa : mantissa / POWERS_OF_TEN[-exponent];
+			return negative ? -value : value;
+		}
+
+		if (scratch.length < end - start) {
+			scratch = new byte[end - start];
+		}
+		for (int k = start; k < end; k++) {
+			scratch[k - start] = buffer.get(k);
+		}
+		String token = new String(scratch, 0, end - start, StandardCharsets.UTF_8);
+		try {
+			return Double.parseDouble(unquote(token));
+		} catch (NumberFormatException e) {
+			chunk.nonNumeric[column] = true;
+			return Double.NaN;
+		}
+	}
+
+	private static boolean isMissing(String token) {
+		return token.length() == 0 || token.equals("?");
+	}
+
+	private static boolean isNumber(String token) {
+		try {
+			Double.parseDouble(token);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static String unquote(String token) {
+		if (token.length() >= 2) {
+			char first = token.charAt(0);
+			if ((first == '"' || first == '\'') && token.charAt(token.length() - 1) == first) {
+				return token.substring(1, token.length() - 1);
+			}
+		}
+		return token;
+	}
+
+	// end of an ARFF attribute name, which may be quoted
+	private static int nameEnd(String declaration) {
+		char first = declaration.charAt(0);
+		if (first == '"' || first == '\'') {
+			return declaration.indexOf(first, 1) + 1;
+		}
+		int end = 0;
+		while (end < declaration.length() && !Character.isWhitespace(declaration.charAt(end))) {
+			end++;
+		}
+		return end;
+	}
+
+}
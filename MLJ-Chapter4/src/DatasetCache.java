@@ -0,0 +1,243 @@
+/**
+ * Chapter 4: Load-once dataset cache
+ *
+ * The KDD Cup tasks share one feature matrix and differ only in the label
+ * file. The cache parses the features once into sparse columns that keep
+ * only the values present (SparseColumnarData), attaches each label file as
+ * an extra column that shares the feature arrays, and memoizes the
+ * preprocessed data per (label file, preprocessing configuration). The
+ * labeled data is handed to the preprocessing as columns, no instances are
+ * created for it.
+ * Preprocessed data is also written to a binary file in the cache
+ * directory, named by a fingerprint of the source files (path, size,
+ * modification time) and the configuration, so later runs read it back
+ * without parsing the CSV files at all.
+ *
+ *   DatasetCache cache = new DatasetCache(new File("data/cache"),
+ *       "data/orange_small_train.data", featureLoader, labelLoader);
+ *   Instances data = cache.preprocessed("data/orange_small_train_churn.labels.txt",
+ *       "RemoveUseless -M 99; ...", preprocessor);
+ *
+ * The returned Instances are shallow copies of the cached ones, so they can
+ * be randomized and stratified, but the instances themselves must not be
+ * modified. All methods are thread safe; concurrent requests for the same
+ * data wait for a single load.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+public class DatasetCache {
+
+	private static final int MAGIC = 0x4B444443; // "KDDC"
+
+	/**
+	 * Preprocessing applied to the labeled data before it is cached. The
+	 * class is the last column of the data.
+	 */
+	public interface Preprocessor {
+		Instances apply(SparseColumnarData data) throws Exception;
+	}
+
+	private final File cacheDir;
+	private final File featuresFile;
+	private final ColumnarLoader featureLoader, labelLoader;
+
+	private final ConcurrentHashMap<String, FutureTask<SparseColumnarData>> columns = new ConcurrentHashMap<String, FutureTask<SparseColumnarData>>();
+	private final ConcurrentHashMap<String, FutureTask<Instances>> preprocessed = new ConcurrentHashMap<String, FutureTask<Instances>>();
+
+	/**
+	 * @param cacheDir directory of the binary files, null to cache in memory only
+	 * @param featuresPath the feature matrix shared by all label files
+	 * @param featureLoader loader configured for the feature file
+	 * @param labelLoader loader configured for the label files, the label is the first column
+	 */
+	public DatasetCache(File cacheDir, String featuresPath, ColumnarLoader featureLoader,
+			ColumnarLoader labelLoader) {
+		this.cacheDir = cacheDir;
+		this.featuresFile = new File(featuresPath);
+		this.featureLoader = featureLoader;
+		this.labelLoader = labelLoader;
+	}
+
+	/**
+	 * The feature matrix, parsed on first use.
+	 */
+	public SparseColumnarData features() throws Exception {
+		return columns(featuresFile, featureLoader);
+	}
+
+	/**
+	 * The feature columns, shared with all other label files, with the label
+	 * column appended. Use toInstances() and the last attribute as class for
+	 * Instances.
+	 */
+	public SparseColumnarData labeled(String labelPath) throws Exception {
+		SparseColumnarData labels = columns(new File(labelPath), labelLoader);
+		return features().withColumn(labels, 0);
+	}
+
+	/**
+	 * The labeled data after preprocessing, computed once per label file and
+	 * configuration. The configuration string identifies the preprocessing
+	 * in the cache and must change whenever the preprocessor does.
+	 */
+	public Instances preprocessed(final String labelPath, final String config, final Preprocessor preprocessor)
+			throws Exception {
+		final File labelFile = new File(labelPath);
+		String key = labelFile.getCanonicalPath() + "\n" + config;
+		Instances data = get(preprocessed, key, new Callable<Instances>() {
+			public Instances call() throws Exception {
+				File file = cacheFile(labelFile, config);
+				if (file != null && file.isFile()) {
+					try {
+						return read(file);
+					} catch (IOException e) {
+						// stale or truncated, rebuild below
+					}
+				}
+				Instances data = preprocessor.apply(labeled(labelPath));
+				if (file != null) {
+					write(data, file);
+				}
+				return data;
+			}
+		});
+		return new Instances(data);
+	}
+
+	/**
+	 * Drops the in-memory copies, the files on disk are kept.
+	 */
+	public void clear() {
+		columns.clear();
+		preprocessed.clear();
+	}
+
+	private SparseColumnarData columns(final File file, final ColumnarLoader loader) throws Exception {
+		return get(columns, file.getCanonicalPath(), new Callable<SparseColumnarData>() {
+			public SparseColumnarData call() throws Exception {
+				return loader.loadSparse(file);
+			}
+		});
+	}
+
+	private static <V> V get(ConcurrentHashMap<String, FutureTask<V>> map, String key, Callable<V> load)
+			throws Exception {
+		FutureTask<V> task = new FutureTask<V>(load);
+		FutureTask<V> existing = map.putIfAbsent(key, task);
+		if (existing == null) {
+			task.run();
+		} else {
+			task = existing;
+		}
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			// do not cache failures
+			map.remove(key, task);
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+		}
+	}
+
+	/*
+	 * Binary files
+	 */
+
+	private File cacheFile(File labelFile, String config) throws Exception {
+		if (cacheDir == null) {
+			return null;
+		}
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		for (File source : new File[] { featuresFile, labelFile }) {
+			digest.update((source.getCanonicalPath() + "\n" + source.length() + "\n" + source.lastModified() + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+		}
+		digest.update(config.getBytes(StandardCharsets.UTF_8));
+		StringBuilder name = new StringBuilder(labelFile.getName()).append('-');
+		byte[] hash = digest.digest();
+		for (int i = 0; i < 8; i++) {
+			name.append(String.format("%02x", hash[i]));
+		}
+		return new File(cacheDir, name.append(".bin").toString());
+	}
+
+	/**
+	 * ARFF header, class index, then weight and values of each instance.
+	 */
+	static void write(Instances data, File file) throws IOException {
+		file.getParentFile().mkdirs();
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try {
+				byte[] header = new Instances(data, 0).toString().getBytes(StandardCharsets.UTF_8);
+				out.writeInt(MAGIC);
+				out.writeInt(header.length);
+				out.write(header);
+				out.writeInt(data.classIndex());
+				out.writeInt(data.numInstances());
+				int numAttributes = data.numAttributes();
+				for (int i = 0; i < data.numInstances(); i++) {
+					out.writeDouble(data.instance(i).weight());
+					for (int j = 0; j < numAttributes; j++) {
+						out.writeDouble(data.instance(i).value(j));
+					}
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	static Instances read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a dataset cache file");
+			}
+			byte[] header = new byte[in.readInt()];
+			in.readFully(header);
+			Instances data = new Instances(new StringReader(new String(header, StandardCharsets.UTF_8)));
+			data.setClassIndex(in.readInt());
+			int numInstances = in.readInt();
+			int numAttributes = data.numAttributes();
+			Instances result = new Instances(data, numInstances);
+			for (int i = 0; i < numInstances; i++) {
+				double weight = in.readDouble();
+				double[] vals = new double[numAttributes];
+				for (int j = 0; j < numAttributes; j++) {
+					vals[j] = in.readDouble();
+				}
+				result.add(new DenseInstance(weight, vals));
+			}
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+}
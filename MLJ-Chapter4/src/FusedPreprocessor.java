@@ -0,0 +1,601 @@
+/**
+ * Chapter 4: Fused preprocessing pipeline
+ *
+ * Does in one go what preProcessData did with a chain of filters, each of
+ * which made a full copy of the data:
+ *
+ *   RemoveUseless -M 99          drop constant attributes and nominal ones
+ *                                with more than 99% distinct values
+ *   ReplaceMissingValues         means and modes
+ *   Discretize -F -B 4           equal-frequency bins of numeric attributes
+ *   InfoGain + Ranker -T 0.001   keep attributes with information gain
+ *                                above the threshold, best first
+ *
+ * fit() reads the instances once into primitive columns (in blocks of
+ * attributes if the columns would not fit in memory); the statistics of
+ * all stages are then computed per attribute, concurrently, from the
+ * columns. transform() writes the output in a single pass. The fitted
+ * pipeline keeps only the statistics (modes, means, cut points, selected
+ * attributes), so it can be applied to test data with the same header
+ * without refitting, or saved with a model.
+ *
+ * The pipeline can also be fitted on and applied to a SparseColumnarData
+ * with the class in the last column, which it reads column by column
+ * without creating an instance per row.
+ */
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class FusedPreprocessor implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int ROWS_PER_TASK = 4096;
+
+	private double maxVariancePercentage = 99;
+	private int numBins = 4;
+	private double infoGainThreshold = 0.001;
+
+	private transient ForkJoinPool pool;
+
+	// fitted pipeline
+	private Instances inputFormat, outputFormat;
+	private int[] selected; // input attribute of each output attribute, class last
+	private double[] replacement; // mean or mode of each input attribute
+	private double[][] cutPoints; // cut points of numeric input attributes
+	private double[] merits;
+
+	/**
+	 * Description of the pipeline and its options, e.g. to identify its
+	 * output in a cache.
+	 */
+	public String configuration() {
+		return "RemoveUseless -M " + maxVariancePercentage + "; ReplaceMissingValues; Discretize -F -B " + numBins
+				+ "; InfoGain Ranker -T " + infoGainThreshold;
+	}
+
+	/**
+	 * Computes the statistics of all stages on the data.
+	 */
+	public void fit(Instances data) throws Exception {
+		fit(data, new InstanceRows(data));
+	}
+
+	/**
+	 * Computes the statistics of all stages on columnar data, the class is
+	 * the last column.
+	 */
+	public void fit(SparseColumnarData data) throws Exception {
+		fit(header(data), new ColumnRows(data));
+	}
+
+	private void fit(Instances data, Rows rows) throws Exception {
+		if (data.classIndex() < 0 || !data.classAttribute().isNominal()) {
+			throw new IllegalArgumentException("A nominal class attribute is required");
+		}
+		if (pool == null) {
+			pool = ForkJoinPool.commonPool();
+		}
+
+		final int numInstances = rows.numRows();
+		final int numAttributes = data.numAttributes();
+		final int classIndex = data.classIndex();
+		final int numClasses = data.classAttribute().numValues();
+
+		final double[] weights = new double[numInstances];
+		final int[] classes = new int[numInstances];
+		for (int i = 0; i < numInstances; i++) {
+			weights[i] = rows.weight(i);
+			double classValue = rows.value(i, classIndex);
+			// missing class in an extra column
+			classes[i] = Double.isNaN(classValue) ? numClasses : (int) classValue;
+		}
+
+		inputFormat = new Instances(data, 0);
+		replacement = new double[numAttributes];
+		cutPoints = new double[numAttributes][];
+		merits = new double[numAttributes];
+		Arrays.fill(merits, Double.NaN);
+
+		// one pass over the instances, or one per block of attributes if the
+		// dense columns take more than a quarter of the free heap
+		Runtime runtime = Runtime.getRuntime();
+		long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		int blockSize = (int) Math.max(1, Math.min(numAttributes, freeHeap / 4 / (8L * Math.max(1, numInstances))));
+		for (int from = 0; from < numAttributes; from += blockSize) {
+			final int start = from, end = Math.min(numAttributes, from + blockSize);
+			final double[][] columns = rows.columns(start, end);
+
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int j = start; j < end; j++) {
+				if (j == classIndex) {
+					continue;
+				}
+				final int attribute = j;
+				tasks.add(new Callable<Void>() {
+					public Void call() {
+						fitAttribute(attribute, columns[attribute - start], weights, classes, numClasses);
+						// let the column go as soon as it is done
+						columns[attribute - start] = null;
+						return null;
+					}
+				});
+			}
+			for (Future<Void> task : pool.invokeAll(tasks)) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					throw (Exception) e.getCause();
+				}
+			}
+		}
+
+		// Ranker: merit above the threshold, best first
+		List<Integer> ranked = new ArrayList<Integer>();
+		for (int j = 0; j < numAttributes; j++) {
+			if (!Double.isNaN(merits[j]) && merits[j] > infoGainThreshold) {
+				ranked.add(j);
+			}
+		}
+		ranked.sort(new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(merits[b], merits[a]);
+			}
+		});
+		selected = new int[ranked.size() + 1];
+		for (int k = 0; k < ranked.size(); k++) {
+			selected[k] = ranked.get(k);
+		}
+		selected[ranked.size()] = classIndex;
+
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(selected.length);
+		for (int j : selected) {
+			attributes.add(outputAttribute(data.attribute(j), cutPoints[j]));
+		}
+		outputFormat = new Instances(data.relationName(), attributes, 0);
+		outputFormat.setClassIndex(selected.length - 1);
+	}
+
+	// the header of columnar data, with the last column as class
+	private static Instances header(SparseColumnarData data) {
+		Instances header = data.header();
+		header.setClassIndex(header.numAttributes() - 1);
+		return header;
+	}
+
+	/**
+	 * Row and column access to the data being fitted or transformed.
+	 */
+	private interface Rows {
+		int numRows();
+
+		double weight(int row);
+
+		// NaN if missing
+		double value(int row, int column);
+
+		// columns start to end - 1, NaN for missing values
+		double[][] columns(int start, int end);
+	}
+
+	private static class InstanceRows implements Rows {
+		final Instances data;
+
+		InstanceRows(Instances data) {
+			this.data = data;
+		}
+
+		public int numRows() {
+			return data.numInstances();
+		}
+
+		public double weight(int row) {
+			return data.instance(row).weight();
+		}
+
+		public double value(int row, int column) {
+			return data.instance(row).value(column);
+		}
+
+		// only the stored values of a MissingSparseInstance are visited
+		public double[][] columns(int start, int end) {
+			int numInstances = data.numInstances();
+			double[][] columns = new double[end - start][numInstances];
+			for (int i = 0; i < numInstances; i++) {
+				Instance instance = data.instance(i);
+				if (instance instanceof MissingSparseInstance) {
+					for (int j = start; j < end; j++) {
+						columns[j - start][i] = Double.NaN;
+					}
+					for (int p = 0; p < instance.numValues(); p++) {
+						int j = instance.index(p);
+						if (j >= start && j < end) {
+							columns[j - start][i] = instance.valueSparse(p);
+						}
+					}
+				} else {
+					for (int j = start; j < end; j++) {
+						columns[j - start][i] = instance.value(j);
+					}
+				}
+			}
+			return columns;
+		}
+	}
+
+	private static class ColumnRows implements Rows {
+		final SparseColumnarData data;
+
+		ColumnRows(SparseColumnarData data) {
+			this.data = data;
+		}
+
+		public int numRows() {
+			return data.numRows();
+		}
+
+		public double weight(int row) {
+			return 1;
+		}
+
+		public double value(int row, int column) {
+			return data.value(row, column);
+		}
+
+		public double[][] columns(int start, int end) {
+			double[][] columns = new double[end - start][];
+			for (int j = start; j < end; j++) {
+				columns[j - start] = data.column(j);
+			}
+			return columns;
+		}
+	}
+
+	/**
+	 * All stages for one attribute. Leaves merits[j] at NaN if RemoveUseless
+	 * drops the attribute.
+	 */
+	private void fitAttribute(int j, double[] column, double[] weights, int[] classes, int numClasses) {
+		Attribute attribute = inputFormat.attribute(j);
+		int numInstances = column.length;
+
+		if (attribute.isNominal()) {
+			int numValues = attribute.numValues();
+			// value/class weights, missing values in the last row
+			double[][] counts = new double[numValues + 1][numClasses + 1];
+			int[] valueCounts = new int[numValues];
+			int missing = 0;
+			for (int i = 0; i < numInstances; i++) {
+				if (Double.isNaN(column[i])) {
+					counts[numValues][classes[i]] += weights[i];
+					missing++;
+				} else {
+					counts[(int) column[i]][classes[i]] += weights[i];
+					valueCounts[(int) column[i]]++;
+				}
+			}
+
+			// RemoveUseless
+			int distinct = 0;
+			for (int v = 0; v < numValues; v++) {
+				if (valueCounts[v] > 0) {
+					distinct++;
+				}
+			}
+			if (missing == numInstances || distinct < 2
+					|| (double) distinct / (numInstances - missing) * 100.0 > maxVariancePercentage) {
+				return;
+			}
+
+			// ReplaceMissingValues: the mode takes the missing values
+			double[] valueWeights = new double[numValues];
+			for (int v = 0; v < numValues; v++) {
+				for (int c = 0; c <= numClasses; c++) {
+					valueWeights[v] += counts[v][c];
+				}
+			}
+			int mode = Utils.maxIndex(valueWeights);
+			replacement[j] = mode;
+			for (int c = 0; c <= numClasses; c++) {
+				counts[mode][c] += counts[numValues][c];
+				counts[numValues][c] = 0;
+			}
+
+			merits[j] = ParallelInfoGainAttributeEval.infoGain(counts, numClasses);
+			return;
+		}
+
+		// numeric: sort the present values, keeping weights and classes
+		int present = 0;
+		double sum = 0, sumOfWeights = 0;
+		for (int i = 0; i < numInstances; i++) {
+			if (!Double.isNaN(column[i])) {
+				present++;
+				sum += weights[i] * column[i];
+				sumOfWeights += weights[i];
+			}
+		}
+		int[] rows = new int[present];
+		double[] presentValues = new double[present];
+		for (int i = 0, k = 0; i < numInstances; i++) {
+			if (!Double.isNaN(column[i])) {
+				rows[k] = i;
+				presentValues[k++] = column[i];
+			}
+		}
+		int[] order = Utils.sort(presentValues);
+		for (int k = 0; k < present; k++) {
+			order[k] = rows[order[k]];
+		}
+		double[] values = column;
+
+		// RemoveUseless
+		if (present == 0 || values[order[0]] == values[order[present - 1]]) {
+			return;
+		}
+
+		// ReplaceMissingValues: the mean takes the missing values
+		double mean = sum / sumOfWeights;
+		replacement[j] = mean;
+
+		// distinct values with their weights, the imputed mean included
+		double[] groupValues = new double[present + 1];
+		double[] groupWeights = new double[present + 1];
+		double missingWeight = 0;
+		for (int i = 0; i < numInstances; i++) {
+			if (Double.isNaN(column[i])) {
+				missingWeight += weights[i];
+			}
+		}
+		int numGroups = 0;
+		boolean meanAdded = missingWeight == 0;
+		for (int k = 0; k <= present; k++) {
+			double value;
+			double weight;
+			if (!meanAdded && (k == present || mean <= values[order[k]])) {
+				value = mean;
+				weight = missingWeight;
+				meanAdded = true;
+				k--;
+			} else if (k == present) {
+				break;
+			} else {
+				value = values[order[k]];
+				weight = weights[order[k]];
+			}
+			if (numGroups > 0 && groupValues[numGroups - 1] == value) {
+				groupWeights[numGroups - 1] += weight;
+			} else {
+				groupValues[numGroups] = value;
+				groupWeights[numGroups] = weight;
+				numGroups++;
+			}
+		}
+
+		// Discretize
+		double[] cuts = equalFrequencyCutPoints(groupValues, groupWeights, numGroups);
+		cutPoints[j] = cuts;
+		int bins = cuts == null ? 1 : cuts.length + 1;
+		double[][] counts = new double[bins + 1][numClasses + 1];
+		for (int i = 0; i < numInstances; i++) {
+			double value = Double.isNaN(column[i]) ? mean : column[i];
+			counts[bin(cuts, value)][classes[i]] += weights[i];
+		}
+		merits[j] = ParallelInfoGainAttributeEval.infoGain(counts, numClasses);
+	}
+
+	/**
+	 * Equal-frequency cut points as computed by the unsupervised Discretize
+	 * filter, over distinct sorted values and their weights.
+	 */
+	private double[] equalFrequencyCutPoints(double[] values, double[] weights, int numGroups) {
+		double sumOfWeights = 0;
+		for (int g = 0; g < numGroups; g++) {
+			sumOfWeights += weights[g];
+		}
+		double[] cutPoints = new double[numBins - 1];
+		double freq = sumOfWeights / numBins;
+		int cpindex = 0, lastIndex = -1;
+		double counter = 0, last = 0;
+		for (int g = 0; g < numGroups - 1 && cpindex < cutPoints.length; g++) {
+			counter += weights[g];
+			sumOfWeights -= weights[g];
+			if (counter >= freq) {
+				// is this cut point worse than the last one?
+				if (((freq - last) < (counter - freq)) && (lastIndex != -1)) {
+					cutPoints[cpindex] = (values[lastIndex] + values[lastIndex + 1]) / 2;
+					counter -= last;
+					last = counter;
+					lastIndex = g;
+				} else {
+					cutPoints[cpindex] = (values[g] + values[g + 1]) / 2;
+					counter = 0;
+					last = 0;
+					lastIndex = -1;
+				}
+				cpindex++;
+				freq = (sumOfWeights + counter) / ((cutPoints.length + 1) - cpindex);
+			} else {
+				lastIndex = g;
+				last = counter;
+			}
+		}
+		if ((cpindex < cutPoints.length) && (lastIndex != -1)) {
+			cutPoints[cpindex] = (values[lastIndex] + values[lastIndex + 1]) / 2;
+			cpindex++;
+		}
+		return cpindex == 0 ? null : Arrays.copyOf(cutPoints, cpindex);
+	}
+
+	// the first bin whose upper cut point is not below the value
+	private static int bin(double[] cutPoints, double value) {
+		if (cutPoints == null) {
+			return 0;
+		}
+		int low = 0, high = cutPoints.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (value <= cutPoints[mid]) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	// nominal attributes are kept, numeric ones get the labels of Discretize
+	private static Attribute outputAttribute(Attribute attribute, double[] cutPoints) {
+		if (attribute.isNominal()) {
+			return (Attribute) attribute.copy();
+		}
+		List<String> labels = new ArrayList<String>();
+		if (cutPoints == null) {
+			labels.add("'All'");
+		} else {
+			for (int k = 0; k <= cutPoints.length; k++) {
+				String from = k == 0 ? "-inf" : Utils.doubleToString(cutPoints[k - 1], 6);
+				String to = k == cutPoints.length ? "inf)" : Utils.doubleToString(cutPoints[k], 6) + "]";
+				labels.add("'(" + from + "-" + to + "'");
+			}
+		}
+		return new Attribute(attribute.name(), labels);
+	}
+
+	/**
+	 * Applies the fitted pipeline to data with the same header as the
+	 * training data, in one pass.
+	 */
+	public Instances transform(Instances data) throws Exception {
+		checkHeader(data);
+		return transform(new InstanceRows(data));
+	}
+
+	/**
+	 * Applies the fitted pipeline to columnar data with the class in the
+	 * last column.
+	 */
+	public Instances transform(SparseColumnarData data) throws Exception {
+		checkHeader(header(data));
+		return transform(new ColumnRows(data));
+	}
+
+	private void checkHeader(Instances header) {
+		if (outputFormat == null) {
+			throw new IllegalStateException("The pipeline has not been fitted");
+		}
+		if (!inputFormat.equalHeaders(header)) {
+			throw new IllegalArgumentException("Data does not have the header the pipeline was fitted on");
+		}
+	}
+
+	private Instances transform(final Rows rows) throws Exception {
+		if (pool == null) {
+			// not serialized with the fitted pipeline
+			pool = ForkJoinPool.commonPool();
+		}
+		final int numInstances = rows.numRows();
+		final Instance[] output = new Instance[numInstances];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int from = 0; from < numInstances; from += ROWS_PER_TASK) {
+			final int start = from, end = Math.min(numInstances, from + ROWS_PER_TASK);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					for (int i = start; i < end; i++) {
+						output[i] = transform(rows, i);
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<Void> task : pool.invokeAll(tasks)) {
+			try {
+				task.get();
+			} catch (ExecutionException e) {
+				throw (Exception) e.getCause();
+			}
+		}
+
+		Instances result = new Instances(outputFormat, numInstances);
+		for (Instance instance : output) {
+			result.add(instance);
+		}
+		return result;
+	}
+
+	private Instance transform(Rows rows, int row) {
+		int classIndex = inputFormat.classIndex();
+		double[] vals = new double[selected.length];
+		for (int k = 0; k < selected.length; k++) {
+			int j = selected[k];
+			double value = rows.value(row, j);
+			if (j == classIndex) {
+				vals[k] = value;
+				continue;
+			}
+			if (Double.isNaN(value)) {
+				value = replacement[j];
+			}
+			vals[k] = inputFormat.attribute(j).isNominal() ? value : bin(cutPoints[j], value);
+		}
+		return new DenseInstance(rows.weight(row), vals);
+	}
+
+	public Instances getOutputFormat() {
+		return new Instances(outputFormat, 0);
+	}
+
+	/**
+	 * Information gain of the attributes that passed RemoveUseless, NaN for
+	 * the others.
+	 */
+	public double[] merits() {
+		return merits.clone();
+	}
+
+	public void setMaxVariancePercentage(double maxVariancePercentage) {
+		this.maxVariancePercentage = maxVariancePercentage;
+	}
+
+	public void setNumBins(int numBins) {
+		this.numBins = numBins;
+	}
+
+	public void setInfoGainThreshold(double infoGainThreshold) {
+		this.infoGainThreshold = infoGainThreshold;
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public String toString() {
+		if (outputFormat == null) {
+			return "FusedPreprocessor: not fitted";
+		}
+		StringBuffer text = new StringBuffer(configuration() + "\n");
+		text.append("Selected " + (selected.length - 1) + " of " + (inputFormat.numAttributes() - 1)
+				+ " attributes:\n");
+		for (int k = 0; k < selected.length - 1; k++) {
+			text.append("\t" + Utils.doubleToString(merits[selected[k]], 6) + "\t"
+					+ inputFormat.attribute(selected[k]).name() + "\n");
+		}
+		return text.toString();
+	}
+
+}
@@ -0,0 +1,296 @@
+/**
+ * Chapter 4: Bounded job scheduler
+ *
+ * Runs independent jobs (label tasks, cross-validation folds, library
+ * models) on a fixed number of workers. Every job declares an estimate of
+ * the memory it needs, and a job is only started once a worker and that
+ * much of the memory budget are free, so that memory hungry models such as
+ * SMO and IBk are not trained at the same time when they do not fit
+ * together. A job larger than the whole budget runs alone.
+ *
+ * Jobs start in the order they were submitted, except that smaller jobs
+ * that fit may go ahead of one that waits for memory, so that workers do
+ * not sit idle behind it. A waiting job lets at most MAX_OVERTAKES jobs go
+ * ahead; after that nothing more starts until it has, so it is not starved
+ * by a stream of small ones.
+ *
+ * A job that submits jobs of its own and waits for them calls await(): it
+ * gives its worker and memory back while it waits and takes them again
+ * before it goes on, so nested jobs cannot deadlock the workers.
+ *
+ * The wait and wall time of every job are recorded and printed by report().
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class JobScheduler {
+
+	private static final long MB = 1024 * 1024;
+
+	/**
+	 * How many jobs may start ahead of a job that waits for memory.
+	 */
+	public static final int MAX_OVERTAKES = 16;
+
+	// threads are bounded by the free workers, not by the executor
+	private final ExecutorService executor;
+	private final int budgetMB;
+	private final List<Timing> timings = new ArrayList<Timing>();
+
+	// under the lock of the scheduler
+	private final LinkedList<Job> pending = new LinkedList<Job>();
+	private int freeWorkers;
+	private int freeMB;
+	private int resuming;
+	private boolean shutdown;
+
+	// the job run by a worker thread, for await()
+	private final ThreadLocal<Job> current = new ThreadLocal<Job>();
+
+	/**
+	 * Wait and wall time of a finished job.
+	 */
+	public static class Timing {
+		public final String name;
+		public final long memoryMB;
+		public final double waitSeconds, wallSeconds;
+		public final boolean failed;
+
+		Timing(String name, long memoryMB, double waitSeconds, double wallSeconds, boolean failed) {
+			this.name = name;
+			this.memoryMB = memoryMB;
+			this.waitSeconds = waitSeconds;
+			this.wallSeconds = wallSeconds;
+			this.failed = failed;
+		}
+	}
+
+	/**
+	 * A queued job, run once a worker and its memory have been reserved.
+	 */
+	private class Job implements Runnable {
+		final String name;
+		final long memoryMB;
+		final int permits;
+		final FutureTask<?> task;
+		final long queued = System.nanoTime();
+		int overtaken;
+
+		Job(String name, long memoryMB, int permits, FutureTask<?> task) {
+			this.name = name;
+			this.memoryMB = memoryMB;
+			this.permits = permits;
+			this.task = task;
+		}
+
+		public void run() {
+			long start = System.nanoTime();
+			current.set(this);
+			try {
+				task.run();
+			} finally {
+				current.remove();
+				release(this);
+				long end = System.nanoTime();
+				synchronized (timings) {
+					timings.add(new Timing(name, memoryMB, (start - queued) / 1e9, (end - start) / 1e9, failed(task)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * A scheduler with one worker per core and 80% of the maximum heap as
+	 * memory budget.
+	 */
+	public JobScheduler() {
+		this(Runtime.getRuntime().availableProcessors(), (long) (Runtime.getRuntime().maxMemory() * 0.8));
+	}
+
+	public JobScheduler(int numThreads, long memoryBudget) {
+		final AtomicInteger count = new AtomicInteger();
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "job-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		freeWorkers = numThreads;
+		budgetMB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / MB));
+		freeMB = budgetMB;
+	}
+
+	/**
+	 * Queues a job that needs about memoryBytes of heap while it runs. The
+	 * estimate is the caller's, the scheduler only enforces the budget.
+	 */
+	public <T> Future<T> submit(String name, long memoryBytes, Callable<T> job) {
+		long memoryMB = Math.max(1, memoryBytes / MB);
+		FutureTask<T> task = new FutureTask<T>(job);
+		synchronized (this) {
+			if (shutdown) {
+				throw new RejectedExecutionException("The scheduler has been shut down");
+			}
+			pending.add(new Job(name, memoryMB, (int) Math.min(budgetMB, memoryMB), task));
+			dispatch();
+		}
+		return task;
+	}
+
+	/**
+	 * Rough heap needed to train a model on the data: the size of the dense
+	 * data times a factor for the copies and structures the model keeps,
+	 * about 0.5 for NaiveBayes, 2 for trees, 3 for IBk, 6 to 8 for models
+	 * that convert nominal attributes to binary ones (Logistic, SMO).
+	 */
+	public static long trainingMemory(Instances data, double factor) {
+		long dataBytes = (long) data.numInstances() * (data.numAttributes() * 8L + 64);
+		return (long) (dataBytes * factor) + 16 * MB;
+	}
+
+	// starts the pending jobs that a free worker and the free memory allow
+	private synchronized void dispatch() {
+		while (freeWorkers > 0 && resuming == 0) {
+			Job next = null;
+			Job blocked = null;
+			for (Iterator<Job> it = pending.iterator(); it.hasNext();) {
+				Job job = it.next();
+				if (job.task.isCancelled()) {
+					it.remove();
+				} else if (job.permits <= freeMB) {
+					it.remove();
+					next = job;
+					break;
+				} else if (blocked == null) {
+					blocked = job;
+					if (blocked.overtaken >= MAX_OVERTAKES) {
+						break;
+					}
+				}
+			}
+			if (next == null) {
+				break;
+			}
+			if (blocked != null) {
+				blocked.overtaken++;
+			}
+			freeWorkers--;
+			freeMB -= next.permits;
+			executor.execute(next);
+		}
+		if (shutdown && pending.isEmpty()) {
+			executor.shutdown();
+		}
+	}
+
+	private synchronized void release(Job job) {
+		freeWorkers++;
+		freeMB += job.permits;
+		notifyAll();
+		dispatch();
+	}
+
+	/**
+	 * Waits for the result of a job. Called from within a job, the worker and
+	 * memory of the calling job are free for others until the result is there.
+	 */
+	public <T> T await(Future<T> future) throws InterruptedException, ExecutionException {
+		Job job = current.get();
+		if (job == null || future.isDone()) {
+			return future.get();
+		}
+		release(job);
+		try {
+			return future.get();
+		} finally {
+			reacquire(job);
+		}
+	}
+
+	// ahead of pending jobs, the job has started already
+	private synchronized void reacquire(Job job) {
+		resuming++;
+		boolean interrupted = false;
+		try {
+			while (freeWorkers == 0 || freeMB < job.permits) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			freeWorkers--;
+			freeMB -= job.permits;
+		} finally {
+			resuming--;
+			dispatch();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean failed(FutureTask<?> task) {
+		try {
+			task.get();
+			return false;
+		} catch (CancellationException e) {
+			return true;
+		} catch (ExecutionException e) {
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return true;
+		}
+	}
+
+	/**
+	 * Timings of the jobs finished so far, in order of completion.
+	 */
+	public List<Timing> timings() {
+		synchronized (timings) {
+			return new ArrayList<Timing>(timings);
+		}
+	}
+
+	public String report() {
+		StringBuffer text = new StringBuffer();
+		text.append(String.format("%-50s %8s %9s %9s%n", "Job", "Mem (MB)", "Wait (s)", "Wall (s)"));
+		double total = 0;
+		for (Timing timing : timings()) {
+			text.append(String.format("%-50s %8d %9s %9s%s%n", timing.name, timing.memoryMB,
+					Utils.doubleToString(timing.waitSeconds, 2), Utils.doubleToString(timing.wallSeconds, 2),
+					timing.failed ? "  FAILED" : ""));
+			total += timing.wallSeconds;
+		}
+		text.append(String.format("%-50s %8s %9s %9s%n", "Total CPU time of jobs", "", "",
+				Utils.doubleToString(total, 2)));
+		return text.toString();
+	}
+
+	/**
+	 * Runs the jobs already submitted and stops.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		dispatch();
+	}
+
+}
@@ -6,23 +6,21 @@
  */
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
-import weka.attributeSelection.AttributeSelection;
-import weka.attributeSelection.InfoGainAttributeEval;
-import weka.attributeSelection.Ranker;
+import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 import weka.classifiers.EnsembleLibrary;
-import weka.classifiers.Evaluation;
+import weka.classifiers.EnsembleLibraryModel;
+import weka.classifiers.evaluation.AggregateableEvaluation;
+import weka.classifiers.evaluation.Evaluation;
 import weka.classifiers.bayes.NaiveBayes;
 import weka.core.Instances;
-import weka.core.converters.CSVLoader;
-import weka.filters.Filter;
-import weka.filters.unsupervised.attribute.RemoveType;
-import weka.filters.unsupervised.attribute.RemoveUseless;
-import weka.filters.unsupervised.attribute.ReplaceMissingValues;
-import weka.classifiers.meta.EnsembleSelection;
-import weka.filters.unsupervised.attribute.Discretize;
 
 public class KddCup {
 
@@ -31,6 +29,17 @@ public class KddCup {
 						PREDICT_APPETENCY = 1,
 						PREDICY_UPSELL = 3;
 
+	// preprocessing done by preProcessData, identifies its output in the cache
+	static final String PREPROCESSING = newPreProcessor().configuration();
+
+	// label tasks, folds and models run as jobs on all cores
+	static final JobScheduler scheduler = new JobScheduler();
+	static final long PREPROCESSING_MEMORY = 1024L * 1024 * 1024;
+
+	// the features are parsed once for all labels and models, preprocessed data is kept in data/cache
+	static final DatasetCache cache = new DatasetCache(new File("data/cache"), 
+			"data/orange_small_train.data", featureLoader(), labelLoader());
+
 
 	public static void main(String args[]) throws Exception {
 		
@@ -41,7 +50,7 @@ public class KddCup {
 
 		Classifier baselineNB = new NaiveBayes();
 
-		double resNB[] = evaluate(baselineNB);
+		double resNB[] = evaluate(baselineNB, 0.5);
 		System.out.println("Naive Bayes\n" + 
 							"\tchurn:     " + resNB[0] + "\n" + 
 							"\tappetency: " + resNB[1] + "\n" + 
@@ -56,141 +65,247 @@ public class KddCup {
 		
 		EnsembleLibrary ensembleLib = new EnsembleLibrary();
 		
+		// memory factor of each model for JobScheduler.trainingMemory()
+		List<Double> libMemory = new ArrayList<Double>();
+		
 		// Decision trees
-		ensembleLib.addModel("weka.classifiers.trees.J48 -S -C 0.25 -B -M 2");
-		ensembleLib.addModel("weka.classifiers.trees.J48 -S -C 0.25 -B -M 2 -A");
+		addModel(ensembleLib, libMemory, "weka.classifiers.trees.J48 -S -C 0.25 -B -M 2", 2);
+		addModel(ensembleLib, libMemory, "weka.classifiers.trees.J48 -S -C 0.25 -B -M 2 -A", 2);
 		
 		// naive Bayes
-		ensembleLib.addModel("weka.classifiers.bayes.NaiveBayes");
+		addModel(ensembleLib, libMemory, "weka.classifiers.bayes.NaiveBayes", 0.5);
 		
-		// k-nn
-		ensembleLib.addModel("weka.classifiers.lazy.IBk");
+		// k-nn, keeps the training data
+		addModel(ensembleLib, libMemory, "weka.classifiers.lazy.IBk", 3);
 
 		// AdaBoost
-		ensembleLib.addModel("weka.classifiers.meta.AdaBoostM1");
+		addModel(ensembleLib, libMemory, "weka.classifiers.meta.AdaBoostM1", 2);
 		
 		// LogitBoost
-		ensembleLib.addModel("weka.classifiers.meta.LogitBoost");
+		addModel(ensembleLib, libMemory, "weka.classifiers.meta.LogitBoost", 3);
 
-		// SVM
-		ensembleLib.addModel("weka.classifiers.functions.SMO");
+		// SVM, nominal attributes become binary ones
+		addModel(ensembleLib, libMemory, "weka.classifiers.functions.SMO", 8);
 
 		// Logistic regression
-		ensembleLib.addModel("weka.classifiers.functions.Logistic");
+		addModel(ensembleLib, libMemory, "weka.classifiers.functions.Logistic", 6);
 		
 		// Simple logistic regression
-		ensembleLib.addModel("weka.classifiers.functions.SimpleLogistic");
+		addModel(ensembleLib, libMemory, "weka.classifiers.functions.SimpleLogistic", 6);
 
 		
 		EnsembleLibrary.saveLibrary(new File("data/ensembleLib.model.xml"), ensembleLib, null);
 		System.out.println(ensembleLib.getModels());
 		
-		EnsembleSelection ensambleSel = new EnsembleSelection();
-		ensambleSel.setOptions(new String[]{
-				 "-L", "data/ensembleLib.model.xml", // </path/to/modelLibrary> - Specifies the Model Library File, continuing the list of all models.
-				 "-W", "data/esTmp", // </path/to/working/directory> - Specifies the Working Directory, where all models will be stored.
-				 "-B", "10", // <numModelBags> - Set the number of bags, i.e., number of iterations to run the ensemble selection algorithm.
-				 "-E", "1.0", // <modelRatio> - Set the ratio of library models that will be randomly chosen  to populate each bag of models.
-				 "-V", "0.25", // <validationRatio> - Set the ratio of the training data set that will be reserved for validation.
-				 "-H", "100", // <hillClimbIterations> - Set the number of hillclimbing iterations to be performed on each model bag.
-				 "-I", "1.0", // <sortInitialization> - Set the the ratio of the ensemble library that the sort initialization algorithm will be able to choose from while initializing the ensemble for each model bag
-				 "-X", "2", // <numFolds> - Sets the number of cross-validation folds.
-				 "-P", "roc", // <hillclimbMettric> - Specify the metric that will be used for model selection during the hillclimbing algorithm.
-				 "-A", "forward", // <algorithm> - Specifies the algorithm to be used for ensemble selection. 
-				 "-R", "true", // - Flag whether or not models can be selected more than once for an ensemble.
-				 "-G", "true", // - Whether sort initialization greedily stops adding models when performance degrades.
-				 "-O", "true", // - Flag for verbose output. Prints out performance of all selected models.
-				 "-S", "1", // <num> - Random number seed.
-				 "-D", "true" // - If set, classifier is run in debug mode and may output additional info to the console
-		});
-		
-		double resES[] = evaluate(ensambleSel);
+		// library members on their own, only with -library: this trains every
+		// model once more per label and fold on top of the ensemble selection
+		if (Arrays.asList(args).contains("-library")) {
+			List<Classifier> libModels = new ArrayList<Classifier>();
+			List<String> libNames = new ArrayList<String>();
+			for (Object model : ensembleLib.getModels()) {
+				EnsembleLibraryModel libModel = (EnsembleLibraryModel) model;
+				libModels.add(libModel.getClassifier());
+				libNames.add(libModel.getStringRepresentation());
+			}
+			double[] memoryFactors = new double[libMemory.size()];
+			for (int m = 0; m < memoryFactors.length; m++) {
+				memoryFactors[m] = libMemory.get(m);
+			}
+			double resLib[][] = evaluate(libModels.toArray(new Classifier[0]), libNames.toArray(new String[0]),
+					memoryFactors);
+			for (int m = 0; m < resLib.length; m++) {
+				System.out.println(libNames.get(m) + "\n\toverall:   " + resLib[m][3]);
+			}
+			System.out.println();
+		}
+		
+		// ensemble selection as with EnsembleSelection -L ... -W data/esTmp -B 10 -E 1.0
+		// -V 0.25 -H 100 -I 1.0 -X 2 -P roc -A forward -R true -G true -O true -S 1,
+		// with the validation predictions of the library models kept in the working
+		// directory, so that later runs only repeat the hill climbing
+		CachedEnsembleSelection ensambleSel = new CachedEnsembleSelection();
+		ensambleSel.setLibrary(ensembleLib, libMemory);
+		ensambleSel.setWorkingDirectory(new File("data/esTmp"));
+		ensambleSel.setNumModelBags(10);
+		ensambleSel.setModelRatio(1.0);
+		ensambleSel.setValidationRatio(0.25);
+		ensambleSel.setHillclimbIterations(100);
+		ensambleSel.setSortInitializationRatio(1.0);
+		ensambleSel.setNumFolds(2);
+		ensambleSel.setReplacement(true);
+		ensambleSel.setGreedySortInitialization(true);
+		ensambleSel.setVerboseOutput(true);
+		ensambleSel.setSeed(1);
+		
+		// the library models are jobs of their own, the ensemble job only holds copies of the data
+		double resES[] = evaluate(ensambleSel, 3);
 		System.out.println("Ensemble\n" + "\tchurn:     " + resES[0] + "\n"
 				+ "\tappetency: " + resES[1] + "\n" + "\tup-sell:   "
 				+ resES[2] + "\n" + "\toverall:   " + resES[3] + "\n");
 		
+		System.out.println(scheduler.report());
 
 	}
 
+	// adds a model to the library and its memory factor to the list
+	static void addModel(EnsembleLibrary library, List<Double> memoryFactors, String model, double memoryFactor) {
+		library.addModel(model);
+		memoryFactors.add(memoryFactor);
+	}
+
 	public static double[] evaluate(Classifier model) throws Exception {
+		return evaluate(model, 3);
+	}
 
-		double results[] = new double[4];
+	public static double[] evaluate(Classifier model, double memoryFactor) throws Exception {
+		return evaluate(new Classifier[] { model }, new String[] { model.getClass().getSimpleName() },
+				new double[] { memoryFactor })[0];
+	}
 
-		String[] labelFiles = new String[] { "churn", "appetency", "upselling" };
+	/**
+	 * Cross-validates the models on the three problems. The preprocessing of
+	 * every label and each (model, label, fold) run are independent jobs on
+	 * the scheduler, so they all run concurrently within its memory budget;
+	 * a fold job of model m declares JobScheduler.trainingMemory(train,
+	 * memoryFactors[m]).
+	 * Returns the AUC on churn, appetency, up-selling and their average per
+	 * model.
+	 */
+	public static double[][] evaluate(Classifier[] models, String[] names, double[] memoryFactors)
+			throws Exception {
 
-		double overallScore = 0.0;
-		for (int i = 0; i < labelFiles.length; i++) {
+		final int numFolds = 5;
+		final String[] labelFiles = new String[] { "churn", "appetency", "upselling" };
 
-			// Load data
-			Instances train_data = loadData("data/orange_small_train.data",
-											"data/orange_small_train_" + labelFiles[i]+ ".labels.txt");
-			train_data = preProcessData(train_data);
+		// Load preprocessed data
+		List<Future<Instances>> datasets = new ArrayList<Future<Instances>>();
+		for (int i = 0; i < labelFiles.length; i++) {
+			final String labelFile = "data/orange_small_train_" + labelFiles[i]+ ".labels.txt";
+			datasets.add(scheduler.submit("preprocess " + labelFiles[i], PREPROCESSING_MEMORY, new Callable<Instances>() {
+				public Instances call() throws Exception {
+					return cache.preprocessed(labelFile, PREPROCESSING, new DatasetCache.Preprocessor() {
+						public Instances apply(SparseColumnarData data) throws Exception {
+							return preProcessData(data);
+						}
+					});
+				}
+			}));
+		}
 
-			// cross-validate the data
-			Evaluation eval = new Evaluation(train_data);
-			eval.crossValidateModel(model, train_data, 5, new Random(1), new Object[] {});
+		// cross-validate the data, one job per model, label and fold
+		Instances[] data = new Instances[labelFiles.length];
+		List<List<Future<Evaluation>>> folds = new ArrayList<List<Future<Evaluation>>>();
+		for (int i = 0; i < labelFiles.length; i++) {
+			// same folds as Evaluation.crossValidateModel(model, data, 5, new Random(1))
+			data[i] = datasets.get(i).get();
+			Random random = new Random(1);
+			data[i].randomize(random);
+			data[i].stratify(numFolds);
+			Instances[] train = new Instances[numFolds], test = new Instances[numFolds];
+			for (int fold = 0; fold < numFolds; fold++) {
+				train[fold] = data[i].trainCV(numFolds, fold, random);
+				test[fold] = data[i].testCV(numFolds, fold);
+			}
+
+			// Naive Bayes fold models from the full counts minus the test fold counts
+			NaiveBayesCrossValidation counts = null;
+			for (Classifier model : models) {
+				if (counts == null && NaiveBayesCrossValidation.isSupported(model)
+						&& NaiveBayesCrossValidation.isSupported(data[i])) {
+					counts = new NaiveBayesCrossValidation(data[i]);
+				}
+			}
+
+			for (int m = 0; m < models.length; m++) {
+				List<Future<Evaluation>> modelFolds = new ArrayList<Future<Evaluation>>();
+				for (int fold = 0; fold < numFolds; fold++) {
+					String job = names[m] + " " + labelFiles[i] + " fold " + (fold + 1);
+					modelFolds.add(scheduler.submit(job, JobScheduler.trainingMemory(train[fold], memoryFactors[m]),
+							foldJob(models[m], data[i], train[fold], test[fold], counts)));
+				}
+				folds.add(modelFolds);
+			}
+		}
 
-			// Save results
-			results[i] = eval.areaUnderROC(train_data.classAttribute()
-					.indexOfValue("1"));
-			overallScore += results[i];
-			System.out.println(labelFiles[i] + "\t-->\t" +results[i]);
+		double results[][] = new double[models.length][4];
+		for (int i = 0; i < labelFiles.length; i++) {
+			for (int m = 0; m < models.length; m++) {
+				AggregateableEvaluation eval = null;
+				for (Future<Evaluation> fold : folds.get(i * models.length + m)) {
+					if (eval == null) {
+						eval = new AggregateableEvaluation(fold.get());
+					}
+					eval.aggregate(fold.get());
+				}
+
+				// Save results
+				results[m][i] = eval.areaUnderROC(data[i].classAttribute()
+						.indexOfValue("1"));
+				results[m][3] += results[m][i] / 3;
+				System.out.println(names[m] + "\t" + labelFiles[i] + "\t-->\t" +results[m][i]);
+			}
 		}
-		// Get average results over all three problems
-		results[3] = overallScore / 3;
 		return results;
 	}
 
+	/**
+	 * Trains a copy of the model on one training fold and evaluates it on the
+	 * test fold. A plain NaiveBayes is not trained, its model is subtracted
+	 * from the counts of the full data if they are given.
+	 */
+	static Callable<Evaluation> foldJob(final Classifier model, final Instances data, final Instances train,
+			final Instances test, final NaiveBayesCrossValidation counts) {
+		return new Callable<Evaluation>() {
+			public Evaluation call() throws Exception {
+				Classifier copy;
+				if (counts != null && NaiveBayesCrossValidation.isSupported(model)) {
+					copy = counts.foldModel(test);
+				} else {
+					copy = AbstractClassifier.makeCopy(model);
+					if (copy instanceof CachedEnsembleSelection) {
+						// the copy lost the scheduler, its library models run as jobs of their own
+						((CachedEnsembleSelection) copy).setScheduler(scheduler);
+					}
+					copy.buildClassifier(train);
+				}
+				Evaluation eval = new Evaluation(data);
+				eval.setPriors(train);
+				eval.evaluateModel(copy, test);
+				return eval;
+			}
+		};
+	}
+
 	public static Instances preProcessData(Instances data) throws Exception{
-		
-		/* 
-		 * Remove useless attributes
-		 */
-		RemoveUseless removeUseless = new RemoveUseless();
-		removeUseless.setOptions(new String[] { "-M", "99" });	// threshold
-		removeUseless.setInputFormat(data);
-		data = Filter.useFilter(data, removeUseless);
+		return preProcessor(data).transform(data);
+	}
 
-		
-		/* 
-		 * Remove useless attributes
-		 */
-		ReplaceMissingValues fixMissing = new ReplaceMissingValues();
-		fixMissing.setInputFormat(data);
-		data = Filter.useFilter(data, fixMissing);
-		
+	// same on columns with the class last
+	static Instances preProcessData(SparseColumnarData data) throws Exception {
+		FusedPreprocessor preprocessor = newPreProcessor();
+		preprocessor.fit(data);
+		return preprocessor.transform(data);
+	}
 
-		/* 
-		 * Remove useless attributes
-		 */
-		Discretize discretizeNumeric = new Discretize();
-		discretizeNumeric.setOptions(new String[] {
-				"-O",
-				"-M",  "-1.0", 
-				"-B",  "4",  // no of bins
-				"-R",  "first-last"}); //range of attributes
-		fixMissing.setInputFormat(data);
-		data = Filter.useFilter(data, fixMissing);
-
-		/* 
-		 * Select only informative attributes
-		 */
-		InfoGainAttributeEval eval = new InfoGainAttributeEval();
-		Ranker search = new Ranker();
-		search.setOptions(new String[] { "-T", "0.001" });	// information gain threshold
-		AttributeSelection attSelect = new AttributeSelection();
-		attSelect.setEvaluator(eval);
-		attSelect.setSearch(search);
-		
-		// apply attribute selection
-		attSelect.SelectAttributes(data);
-		
-		// remove the attributes not selected in the last run
-		data = attSelect.reduceDimensionality(data);
-		
-		
+	/**
+	 * Fits the preprocessing on the data: remove useless attributes, replace
+	 * missing values, discretize numeric attributes into 4 equal-frequency
+	 * bins and select the attributes with information gain above 0.001. All
+	 * stages are fitted from one scan of the data, and the fitted pipeline
+	 * can be applied to test data with transform().
+	 */
+	public static FusedPreprocessor preProcessor(Instances data) throws Exception{
+		FusedPreprocessor preprocessor = newPreProcessor();
+		preprocessor.fit(data);
+		return preprocessor;
+	}
 
-		return data;
+	static FusedPreprocessor newPreProcessor() {
+		FusedPreprocessor preprocessor = new FusedPreprocessor();
+		preprocessor.setMaxVariancePercentage(99);	// remove useless threshold
+		preprocessor.setNumBins(4);	// no of bins
+		preprocessor.setInfoGainThreshold(0.001);	// information gain threshold
+		return preprocessor;
 	}
 
 	
@@ -200,32 +315,15 @@ public class KddCup {
 		/*
 		 * Load data
 		 */
-		CSVLoader loader = new CSVLoader();
-		loader.setFieldSeparator("\t");
-		loader.setNominalAttributes("191-last");
-		loader.setSource(new File(pathData));
-		Instances data = loader.getDataSet();
-
-		// remove String attribute types
-		RemoveType removeString = new RemoveType();
-		removeString.setOptions(new String[] { "-T", "string" });
-		removeString.setInputFormat(data);
-		Instances filteredData = Filter.useFilter(data, removeString);
-		// data.deleteStringAttributes();
+		ColumnarData data = featureLoader().load(new File(pathData));
 
 		/*
 		 * Load labels
 		 */
-		loader = new CSVLoader();
-		loader.setFieldSeparator("\t");
-		loader.setNoHeaderRowPresent(true);
-		loader.setNominalAttributes("first-last");
-		loader.setSource(new File(pathLabeles));
-		Instances labeles = loader.getDataSet();
-		// System.out.println(labeles.toSummaryString());
+		ColumnarData labeles = labelLoader().load(new File(pathLabeles));
 
 		// Append label as class value
-		Instances labeledData = Instances.mergeInstances(filteredData, labeles);
+		Instances labeledData = data.withColumn(labeles, 0).toInstances();
 
 		// set it as a class value
 		labeledData.setClassIndex(labeledData.numAttributes() - 1);
@@ -235,4 +333,19 @@ public class KddCup {
 		return labeledData;
 	}
 
+	static ColumnarLoader featureLoader() {
+		ColumnarLoader loader = new ColumnarLoader();
+		loader.setFieldSeparator("\t");
+		loader.setNominalAttributes("191-last");
+		return loader;
+	}
+
+	static ColumnarLoader labelLoader() {
+		ColumnarLoader loader = new ColumnarLoader();
+		loader.setFieldSeparator("\t");
+		loader.setNoHeaderRowPresent(true);
+		loader.setNominalAttributes("first-last");
+		return loader;
+	}
+
 }
@@ -0,0 +1,195 @@
+/**
+ * Chapter 4: Sparse instance with missing values as default
+ *
+ * A SparseInstance leaves out values that are 0. This one leaves out
+ * values that are missing instead, which is the common case in the Orange
+ * data: value() and isMissing() report every attribute that is not stored
+ * as missing. Classifiers and filters that read attributes through value()
+ * and isMissing(), such as NaiveBayes, J48 and FusedPreprocessor, work on
+ * it unchanged. Code that iterates the stored values with valueSparse()
+ * only sees the values present. Values that are 0, such as the code of the
+ * first value of a nominal attribute, are stored like any other, also when
+ * they are set with setValue(), copied or merged; setting a value to
+ * missing drops it.
+ *
+ * Weka filters that treat a SparseInstance specially, such as
+ * ReplaceMissingValues and NominalToBinary inside Logistic and SMO, walk
+ * the stored values only and take the others for 0. Only hand these
+ * instances to code that reads through value(): in KddCup they go to
+ * FusedPreprocessor, whose output is dense, and never to a library model.
+ */
+
+import java.util.Arrays;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.SparseInstance;
+
+public class MissingSparseInstance extends SparseInstance {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The arrays are kept, not copied.
+	 *
+	 * @param values values present, in the order of indices
+	 * @param indices sorted attribute indices of the values
+	 * @param numAttributes number of attributes of the instance
+	 */
+	public MissingSparseInstance(double weight, double[] values, int[] indices, int numAttributes) {
+		// SparseInstance's constructor would leave out the zeros
+		super(0);
+		m_AttValues = values;
+		m_Indices = indices;
+		m_NumAttributes = numAttributes;
+		m_Weight = weight;
+	}
+
+	public MissingSparseInstance(Instance instance) {
+		super(instance);
+	}
+
+	@Override
+	public Object copy() {
+		MissingSparseInstance result = new MissingSparseInstance(this);
+		result.m_Dataset = m_Dataset;
+		return result;
+	}
+
+	/**
+	 * A dense copy of the values holds NaN for the missing ones; they are
+	 * left out again.
+	 */
+	@Override
+	public Instance copy(double[] values) {
+		int numValues = 0;
+		for (double value : values) {
+			if (!Double.isNaN(value)) {
+				numValues++;
+			}
+		}
+		double[] present = new double[numValues];
+		int[] indices = new int[numValues];
+		for (int j = 0, k = 0; j < values.length; j++) {
+			if (!Double.isNaN(values[j])) {
+				present[k] = values[j];
+				indices[k++] = j;
+			}
+		}
+		MissingSparseInstance result = new MissingSparseInstance(m_Weight, present, indices, values.length);
+		result.m_Dataset = m_Dataset;
+		return result;
+	}
+
+	/**
+	 * Stores the value, 0 included, or drops it if it is missing. The arrays
+	 * may be shared with copies, so they are replaced rather than changed.
+	 */
+	@Override
+	public void setValue(int attIndex, double value) {
+		int index = Arrays.binarySearch(m_Indices, attIndex);
+		if (index >= 0) {
+			if (Double.isNaN(value)) {
+				double[] values = new double[m_AttValues.length - 1];
+				int[] indices = new int[m_Indices.length - 1];
+				System.arraycopy(m_AttValues, 0, values, 0, index);
+				System.arraycopy(m_Indices, 0, indices, 0, index);
+				System.arraycopy(m_AttValues, index + 1, values, index, values.length - index);
+				System.arraycopy(m_Indices, index + 1, indices, index, indices.length - index);
+				m_AttValues = values;
+				m_Indices = indices;
+			} else {
+				double[] values = m_AttValues.clone();
+				values[index] = value;
+				m_AttValues = values;
+			}
+		} else if (!Double.isNaN(value)) {
+			index = -index - 1;
+			double[] values = new double[m_AttValues.length + 1];
+			int[] indices = new int[m_Indices.length + 1];
+			System.arraycopy(m_AttValues, 0, values, 0, index);
+			System.arraycopy(m_Indices, 0, indices, 0, index);
+			values[index] = value;
+			indices[index] = attIndex;
+			System.arraycopy(m_AttValues, index, values, index + 1, m_AttValues.length - index);
+			System.arraycopy(m_Indices, index, indices, index + 1, m_Indices.length - index);
+			m_AttValues = values;
+			m_Indices = indices;
+		}
+	}
+
+	@Override
+	public void setValue(Attribute att, double value) {
+		setValue(att.index(), value);
+	}
+
+	@Override
+	public void setMissing(int attIndex) {
+		setValue(attIndex, Double.NaN);
+	}
+
+	@Override
+	public void replaceMissingValues(double[] array) {
+		double[] values = toDoubleArray();
+		for (int j = 0; j < values.length; j++) {
+			if (Double.isNaN(values[j])) {
+				values[j] = array[j];
+			}
+		}
+		MissingSparseInstance replaced = (MissingSparseInstance) copy(values);
+		m_AttValues = replaced.m_AttValues;
+		m_Indices = replaced.m_Indices;
+	}
+
+	/**
+	 * The attributes of the instance followed by those of the other one;
+	 * the other one's values that are present are stored, 0 included.
+	 */
+	@Override
+	public Instance mergeInstance(Instance inst) {
+		double[] values = new double[m_NumAttributes + inst.numAttributes()];
+		Arrays.fill(values, Double.NaN);
+		for (int k = 0; k < m_Indices.length; k++) {
+			values[m_Indices[k]] = m_AttValues[k];
+		}
+		for (int j = 0; j < inst.numAttributes(); j++) {
+			values[m_NumAttributes + j] = inst.value(j);
+		}
+		MissingSparseInstance merged = (MissingSparseInstance) copy(values);
+		merged.m_Weight = 1.0;
+		merged.m_Dataset = null;
+		return merged;
+	}
+
+	@Override
+	public double value(int attIndex) {
+		int index = Arrays.binarySearch(m_Indices, attIndex);
+		return index >= 0 ? m_AttValues[index] : Double.NaN;
+	}
+
+	@Override
+	public double value(Attribute att) {
+		return value(att.index());
+	}
+
+	@Override
+	public boolean isMissing(int attIndex) {
+		return Double.isNaN(value(attIndex));
+	}
+
+	@Override
+	public boolean isMissing(Attribute att) {
+		return isMissing(att.index());
+	}
+
+	@Override
+	public double[] toDoubleArray() {
+		double[] values = new double[m_NumAttributes];
+		Arrays.fill(values, Double.NaN);
+		for (int k = 0; k < m_Indices.length; k++) {
+			values[m_Indices[k]] = m_AttValues[k];
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,364 @@
+/**
+ * Chapter 4: Parallel information gain attribute evaluator
+ *
+ * Computes the same merits as InfoGainAttributeEval, but evaluates the
+ * attributes concurrently on a ForkJoin pool. Each attribute is read once as
+ * a column, numeric attributes are discretized with the same MDL method as
+ * the supervised Discretize filter (working on per-class sorted primitive
+ * arrays instead of sorting a copy of the dataset), and the attribute/class
+ * contingency tables are counted into int arrays.
+ *
+ * Use it with Ranker in AttributeSelection, selectedAttributes() and
+ * reduceDimensionality() return the same result as with InfoGainAttributeEval.
+ * Datasets with instance weights other than 1 are handed over to
+ * InfoGainAttributeEval.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import weka.attributeSelection.ASEvaluation;
+import weka.attributeSelection.AttributeEvaluator;
+import weka.attributeSelection.InfoGainAttributeEval;
+import weka.core.Attribute;
+import weka.core.ContingencyTables;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class ParallelInfoGainAttributeEval extends ASEvaluation implements AttributeEvaluator {
+
+	private static final long serialVersionUID = 1L;
+
+	private transient ForkJoinPool pool;
+
+	private double[] infoGains;
+
+	public ParallelInfoGainAttributeEval() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public ParallelInfoGainAttributeEval(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public void buildEvaluator(Instances data) throws Exception {
+
+		int numInstances = data.numInstances();
+		int classIndex = data.classIndex();
+		int numClasses = data.classAttribute().numValues();
+
+		for (int i = 0; i < numInstances; i++) {
+			if (data.instance(i).weight() != 1) {
+				InfoGainAttributeEval weighted = new InfoGainAttributeEval();
+				weighted.buildEvaluator(data);
+				infoGains = new double[data.numAttributes()];
+				for (int k = 0; k < infoGains.length; k++) {
+					if (k != classIndex) {
+						infoGains[k] = weighted.evaluateAttribute(k);
+					}
+				}
+				return;
+			}
+		}
+
+		// class values, missing class is counted in an extra column
+		int[] classes = new int[numInstances];
+		double[] classColumn = data.attributeToDoubleArray(classIndex);
+		for (int i = 0; i < numInstances; i++) {
+			classes[i] = Double.isNaN(classColumn[i]) ? numClasses : (int) classColumn[i];
+		}
+
+		infoGains = new double[data.numAttributes()];
+		if (pool == null) {
+			pool = ForkJoinPool.commonPool();
+		}
+		pool.invoke(new GainTask(data, classes, numClasses, 0, data.numAttributes()));
+	}
+
+	@Override
+	public double evaluateAttribute(int attribute) throws Exception {
+		return infoGains[attribute];
+	}
+
+	@Override
+	public String toString() {
+		if (infoGains == null) {
+			return "Parallel information gain attribute evaluator has not been built";
+		}
+		return "\tParallel Information Gain Ranking Filter\n";
+	}
+
+	private class GainTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final Instances data;
+		final int[] classes;
+		final int numClasses, from, to;
+
+		GainTask(Instances data, int[] classes, int numClasses, int from, int to) {
+			this.data = data;
+			this.classes = classes;
+			this.numClasses = numClasses;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new GainTask(data, classes, numClasses, from, mid),
+						new GainTask(data, classes, numClasses, mid, to));
+				return;
+			}
+			if (from != data.classIndex()) {
+				infoGains[from] = infoGain(counts(data.attribute(from), data.attributeToDoubleArray(from)), numClasses);
+			}
+		}
+
+		/**
+		 * Value/class contingency table with an extra row for missing values
+		 * and an extra column for missing class.
+		 */
+		int[][] counts(Attribute attribute, double[] column) {
+			if (attribute.isNominal()) {
+				int numValues = attribute.numValues();
+				int[][] counts = new int[numValues + 1][numClasses + 1];
+				for (int i = 0; i < column.length; i++) {
+					counts[Double.isNaN(column[i]) ? numValues : (int) column[i]][classes[i]]++;
+				}
+				return counts;
+			}
+			if (!attribute.isNumeric()) {
+				throw new IllegalArgumentException("Cannot evaluate attribute " + attribute.name());
+			}
+
+			// sort the values of each class separately; Discretize takes the
+			// class of a row as (int) classValue(), so a missing class counts
+			// as the first class when the cut points are chosen
+			int[] cutClasses = new int[column.length];
+			int[] classSizes = new int[numClasses];
+			for (int i = 0; i < column.length; i++) {
+				cutClasses[i] = classes[i] < numClasses ? classes[i] : 0;
+				if (!Double.isNaN(column[i])) {
+					classSizes[cutClasses[i]]++;
+				}
+			}
+			double[][] sorted = new double[numClasses][];
+			for (int c = 0; c < numClasses; c++) {
+				sorted[c] = new double[classSizes[c]];
+			}
+			int[] fill = new int[numClasses];
+			for (int i = 0; i < column.length; i++) {
+				if (!Double.isNaN(column[i])) {
+					sorted[cutClasses[i]][fill[cutClasses[i]]++] = column[i];
+				}
+			}
+			for (int c = 0; c < numClasses; c++) {
+				Arrays.sort(sorted[c]);
+			}
+
+			// merge into distinct values with class counts
+			int total = 0;
+			for (int c = 0; c < numClasses; c++) {
+				total += classSizes[c];
+			}
+			double[] values = new double[total];
+			int[] groupCounts = new int[total * numClasses];
+			int[] pos = new int[numClasses];
+			int numGroups = 0;
+			for (int merged = 0; merged < total;) {
+				double min = Double.POSITIVE_INFINITY;
+				for (int c = 0; c < numClasses; c++) {
+					if (pos[c] < classSizes[c] && sorted[c][pos[c]] < min) {
+						min = sorted[c][pos[c]];
+					}
+				}
+				values[numGroups] = min;
+				for (int c = 0; c < numClasses; c++) {
+					while (pos[c] < classSizes[c] && sorted[c][pos[c]] == min) {
+						groupCounts[numGroups * numClasses + c]++;
+						pos[c]++;
+						merged++;
+					}
+				}
+				numGroups++;
+			}
+
+			double[] cutPoints = cutPointsForSubset(values, groupCounts, 0, numGroups);
+			int numBins = cutPoints == null ? 1 : cutPoints.length + 1;
+
+			// the table itself keeps missing classes apart
+			int[][] counts = new int[numBins + 1][numClasses + 1];
+			for (int i = 0; i < column.length; i++) {
+				counts[Double.isNaN(column[i]) ? numBins : bin(cutPoints, column[i])][classes[i]]++;
+			}
+			return counts;
+		}
+
+		/**
+		 * Fayyad and Irani's MDL discretization, as in the supervised
+		 * Discretize filter with better encoding, over groups of equal values.
+		 */
+		double[] cutPointsForSubset(double[] values, int[] groupCounts, int first, int lastPlusOne) {
+
+			double[][] counts = new double[2][numClasses];
+			double numInstances = 0;
+			for (int g = first; g < lastPlusOne; g++) {
+				for (int c = 0; c < numClasses; c++) {
+					counts[1][c] += groupCounts[g * numClasses + c];
+					numInstances += groupCounts[g * numClasses + c];
+				}
+			}
+			if (numInstances < 2) {
+				return null;
+			}
+
+			double[] priorCounts = counts[1].clone();
+			double priorEntropy = ContingencyTables.entropy(priorCounts);
+			double bestEntropy = priorEntropy, bestCutPoint = -1;
+			double[][] bestCounts = new double[2][numClasses];
+			int bestIndex = -1, numCutPoints = 0;
+
+			for (int g = first; g < lastPlusOne - 1; g++) {
+				for (int c = 0; c < numClasses; c++) {
+					counts[0][c] += groupCounts[g * numClasses + c];
+					counts[1][c] -= groupCounts[g * numClasses + c];
+				}
+				double currentCutPoint = (values[g] + values[g + 1]) / 2.0;
+				double currentEntropy = ContingencyTables.entropyConditionedOnRows(counts);
+				if (currentEntropy < bestEntropy) {
+					bestCutPoint = currentCutPoint;
+					bestEntropy = currentEntropy;
+					bestIndex = g;
+					System.arraycopy(counts[0], 0, bestCounts[0], 0, numClasses);
+					System.arraycopy(counts[1], 0, bestCounts[1], 0, numClasses);
+				}
+				numCutPoints++;
+			}
+
+			double gain = priorEntropy - bestEntropy;
+			if (Utils.smOrEq(gain, 0) || !fayyadAndIranisMDL(priorCounts, bestCounts, numInstances, numCutPoints)) {
+				return null;
+			}
+
+			double[] left = cutPointsForSubset(values, groupCounts, first, bestIndex + 1);
+			double[] right = cutPointsForSubset(values, groupCounts, bestIndex + 1, lastPlusOne);
+			int numLeft = left == null ? 0 : left.length;
+			int numRight = right == null ? 0 : right.length;
+			double[] cutPoints = new double[numLeft + 1 + numRight];
+			if (left != null) {
+				System.arraycopy(left, 0, cutPoints, 0, numLeft);
+			}
+			cutPoints[numLeft] = bestCutPoint;
+			if (right != null) {
+				System.arraycopy(right, 0, cutPoints, numLeft + 1, numRight);
+			}
+			return cutPoints;
+		}
+	}
+
+	private static boolean fayyadAndIranisMDL(double[] priorCounts, double[][] bestCounts, double numInstances,
+			int numCutPoints) {
+
+		double priorEntropy = ContingencyTables.entropy(priorCounts);
+		double entropy = ContingencyTables.entropyConditionedOnRows(bestCounts);
+		double gain = priorEntropy - entropy;
+
+		int numClassesTotal = 0, numClassesLeft = 0, numClassesRight = 0;
+		for (int c = 0; c < priorCounts.length; c++) {
+			if (priorCounts[c] > 0) {
+				numClassesTotal++;
+			}
+			if (bestCounts[0][c] > 0) {
+				numClassesLeft++;
+			}
+			if (bestCounts[1][c] > 0) {
+				numClassesRight++;
+			}
+		}
+
+		double entropyLeft = ContingencyTables.entropy(bestCounts[0]);
+		double entropyRight = ContingencyTables.entropy(bestCounts[1]);
+		double delta = Utils.log2(Math.pow(3, numClassesTotal) - 2)
+				- ((numClassesTotal * priorEntropy) - (numClassesRight * entropyRight) - (numClassesLeft * entropyLeft));
+
+		return Utils.gr(gain, (Utils.log2(numCutPoints) + delta) / numInstances);
+	}
+
+	// index of the first cut point not smaller than the value
+	private static int bin(double[] cutPoints, double value) {
+		if (cutPoints == null) {
+			return 0;
+		}
+		int j = 0;
+		while (j < cutPoints.length && value > cutPoints[j]) {
+			j++;
+		}
+		return j;
+	}
+
+	/**
+	 * Information gain from a contingency table, with missing values
+	 * distributed over the table like InfoGainAttributeEval does.
+	 */
+	static double infoGain(int[][] table, int numClasses) {
+		double[][] counts = new double[table.length][numClasses + 1];
+		for (int i = 0; i < table.length; i++) {
+			for (int j = 0; j <= numClasses; j++) {
+				counts[i][j] = table[i][j];
+			}
+		}
+		return infoGain(counts, numClasses);
+	}
+
+	/**
+	 * Same for a table of instance weights.
+	 */
+	static double infoGain(double[][] counts, int numClasses) {
+		int numValues = counts.length - 1;
+
+		double[] rowSums = new double[numValues];
+		double[] columnSums = new double[numClasses];
+		double sum = 0;
+		for (int i = 0; i < numValues; i++) {
+			for (int j = 0; j < numClasses; j++) {
+				rowSums[i] += counts[i][j];
+				columnSums[j] += counts[i][j];
+			}
+			sum += rowSums[i];
+		}
+
+		if (Utils.gr(sum, 0)) {
+			double[][] additions = new double[numValues][numClasses];
+			for (int i = 0; i < numValues; i++) {
+				for (int j = 0; j < numClasses; j++) {
+					additions[i][j] = (rowSums[i] / sum) * counts[numValues][j];
+				}
+			}
+			for (int i = 0; i < numClasses; i++) {
+				for (int j = 0; j < numValues; j++) {
+					additions[j][i] += (columnSums[i] / sum) * counts[j][numClasses];
+				}
+			}
+			for (int i = 0; i < numClasses; i++) {
+				for (int j = 0; j < numValues; j++) {
+					additions[j][i] += (counts[j][i] / sum) * counts[numValues][numClasses];
+				}
+			}
+			double[][] newTable = new double[numValues][numClasses];
+			for (int i = 0; i < numValues; i++) {
+				for (int j = 0; j < numClasses; j++) {
+					newTable[i][j] = counts[i][j] + additions[i][j];
+				}
+			}
+			counts = newTable;
+		}
+
+		return ContingencyTables.entropyOverColumns(counts) - ContingencyTables.entropyConditionedOnRows(counts);
+	}
+
+}
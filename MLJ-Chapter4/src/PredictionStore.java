@@ -0,0 +1,209 @@
+/**
+ * Chapter 4: Persistent prediction store
+ *
+ * Append-only binary file of float vectors (validation predictions) keyed
+ * by a string. Opening the store indexes the records in the file, a record
+ * is read from its position when it is requested, and new records are
+ * appended and kept in memory until the store is opened again. Positions
+ * are longs, so the file may grow past 2 GB. A record cut short by an
+ * interrupted run is dropped on open.
+ *
+ * A store holds the file open until it is closed. Stores opened on the same
+ * file in this JVM at the same time share one channel, so that appends do
+ * not interleave; the file is closed with the last of them.
+ *
+ * Record layout: key length, UTF-8 key, number of floats, floats.
+ */
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PredictionStore implements Closeable {
+
+	private static final int MAGIC = 0x50524544; // "PRED"
+
+	// stores that are open, by canonical path
+	private static final Map<String, Shared> open = new HashMap<String, Shared>();
+
+	private final Shared shared;
+	private volatile boolean closed;
+
+	/**
+	 * The file and index shared by the stores open on one file.
+	 */
+	private static class Shared {
+		final String path;
+		final RandomAccessFile file;
+		final FileChannel channel;
+		final Map<String, long[]> index = new HashMap<String, long[]>(); // key -> offset, length
+		final Map<String, float[]> appended = new HashMap<String, float[]>();
+		int users;
+
+		Shared(File path, String key) throws IOException {
+			this.path = key;
+			path.getAbsoluteFile().getParentFile().mkdirs();
+			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
+			try {
+				indexRecords(path);
+			} catch (IOException e) {
+				file.close();
+				throw e;
+			}
+		}
+
+		private void indexRecords(File path) throws IOException {
+			if (channel.size() < 4) {
+				ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC);
+				header.flip();
+				channel.truncate(0);
+				channel.write(header, 0);
+			}
+			if (readInt(0) != MAGIC) {
+				throw new IOException(path + " is not a prediction store");
+			}
+
+			// index the complete records
+			long pos = 4, size = channel.size();
+			while (pos + 4 <= size) {
+				int keyLength = readInt(pos);
+				if (keyLength < 0 || pos + 4 + keyLength + 4 > size) {
+					break;
+				}
+				ByteBuffer key = read(pos + 4, keyLength);
+				int length = readInt(pos + 4 + keyLength);
+				long data = pos + 8 + keyLength;
+				if (length < 0 || data + 4L * length > size) {
+					break;
+				}
+				index.put(new String(key.array(), StandardCharsets.UTF_8), new long[] { data, length });
+				pos = data + 4L * length;
+			}
+			if (pos < size) {
+				channel.truncate(pos);
+			}
+		}
+
+		int readInt(long pos) throws IOException {
+			return read(pos, 4).getInt(0);
+		}
+
+		ByteBuffer read(long pos, int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, pos + buffer.position()) < 0) {
+					throw new EOFException();
+				}
+			}
+			buffer.flip();
+			return buffer;
+		}
+	}
+
+	/**
+	 * Opens the store of the file. Close it when done.
+	 */
+	public static PredictionStore open(File path) throws IOException {
+		String key = path.getCanonicalPath();
+		synchronized (open) {
+			Shared shared = open.get(key);
+			if (shared == null) {
+				shared = new Shared(path, key);
+				open.put(key, shared);
+			}
+			shared.users++;
+			return new PredictionStore(shared);
+		}
+	}
+
+	private PredictionStore(Shared shared) {
+		this.shared = shared;
+	}
+
+	public boolean contains(String key) {
+		synchronized (shared) {
+			return shared.index.containsKey(key) || shared.appended.containsKey(key);
+		}
+	}
+
+	/**
+	 * The floats stored under the key, null if there are none.
+	 */
+	public float[] get(String key) throws IOException {
+		synchronized (shared) {
+			checkOpen();
+			float[] values = shared.appended.get(key);
+			if (values != null) {
+				return values.clone();
+			}
+			long[] record = shared.index.get(key);
+			if (record == null) {
+				return null;
+			}
+			values = new float[(int) record[1]];
+			shared.read(record[0], 4 * values.length).asFloatBuffer().get(values);
+			return values;
+		}
+	}
+
+	public void put(String key, float[] values) throws IOException {
+		synchronized (shared) {
+			checkOpen();
+			if (contains(key)) {
+				return;
+			}
+			byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer record = ByteBuffer.allocate(8 + keyBytes.length + 4 * values.length);
+			record.putInt(keyBytes.length).put(keyBytes).putInt(values.length);
+			record.asFloatBuffer().put(values);
+			record.position(record.limit());
+			record.flip();
+			long pos = shared.channel.size();
+			while (record.hasRemaining()) {
+				pos += shared.channel.write(record, pos);
+			}
+			shared.appended.put(key, values.clone());
+		}
+	}
+
+	public void flush() throws IOException {
+		synchronized (shared) {
+			checkOpen();
+			shared.channel.force(false);
+		}
+	}
+
+	/**
+	 * Closes this store, and the file if no other store has it open.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (open) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (--shared.users == 0) {
+				open.remove(shared.path);
+				synchronized (shared) {
+					shared.file.close();
+				}
+			}
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("The prediction store is closed");
+		}
+	}
+
+}
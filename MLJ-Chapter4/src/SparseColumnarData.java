@@ -0,0 +1,303 @@
+/**
+ * Chapter 4: Sparse column-oriented dataset
+ *
+ * The Orange features are mostly missing values. Each column here stores a
+ * bitmap of the rows with a value and only the values present: doubles for
+ * numeric attributes, dictionary codes for nominal ones. The rank of every
+ * 64-row word of the bitmap is kept to find the value of a row in constant
+ * time.
+ *
+ * toInstances() returns rows as MissingSparseInstance, which store only the
+ * values present as well and report every other value as missing, so
+ * NaiveBayes, J48 and the preprocessing read the data without densifying
+ * it. Models with SparseInstance aware filters, such as Logistic and SMO,
+ * need the dense output of the preprocessing instead.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+public class SparseColumnarData {
+
+	final String relationName;
+	final String[] names;
+	final boolean[] nominal;
+	final long[][] present;
+	final int[][] ranks;
+	final double[][] numeric;
+	final int[][] codes;
+	final String[][] dictionaries;
+	final int numRows;
+
+	SparseColumnarData(String relationName, String[] names, boolean[] nominal, long[][] present, double[][] numeric,
+			int[][] codes, String[][] dictionaries, int numRows) {
+		this.relationName = relationName;
+		this.names = names;
+		this.nominal = nominal;
+		this.present = present;
+		this.numeric = numeric;
+		this.codes = codes;
+		this.dictionaries = dictionaries;
+		this.numRows = numRows;
+		ranks = new int[present.length][];
+		for (int j = 0; j < present.length; j++) {
+			ranks[j] = ranks(present[j]);
+		}
+	}
+
+	// number of bits set before each word
+	private static int[] ranks(long[] bitmap) {
+		int[] ranks = new int[bitmap.length];
+		int rank = 0;
+		for (int w = 0; w < bitmap.length; w++) {
+			ranks[w] = rank;
+			rank += Long.bitCount(bitmap[w]);
+		}
+		return ranks;
+	}
+
+	/**
+	 * Compresses a dense dataset.
+	 */
+	public static SparseColumnarData compress(ColumnarData data) {
+		int numColumns = data.numColumns();
+		long[][] present = new long[numColumns][];
+		double[][] numeric = new double[numColumns][];
+		int[][] codes = new int[numColumns][];
+		for (int j = 0; j < numColumns; j++) {
+			present[j] = new long[(data.numRows + 63) >>> 6];
+			int count = 0;
+			for (int i = 0; i < data.numRows; i++) {
+				if (!Double.isNaN(data.value(i, j))) {
+					present[j][i >>> 6] |= 1L << i;
+					count++;
+				}
+			}
+			if (data.nominal[j]) {
+				codes[j] = new int[count];
+			} else {
+				numeric[j] = new double[count];
+			}
+			int k = 0;
+			for (int i = 0; i < data.numRows; i++) {
+				double value = data.value(i, j);
+				if (Double.isNaN(value)) {
+					continue;
+				}
+				if (data.nominal[j]) {
+					codes[j][k++] = (int) value;
+				} else {
+					numeric[j][k++] = value;
+				}
+			}
+		}
+		return new SparseColumnarData(data.relationName, data.names, data.nominal, present, numeric, codes,
+				data.dictionaries, data.numRows);
+	}
+
+	public int numRows() {
+		return numRows;
+	}
+
+	public int numColumns() {
+		return names.length;
+	}
+
+	public String name(int column) {
+		return names[column];
+	}
+
+	public int indexOf(String name) {
+		return Arrays.asList(names).indexOf(name);
+	}
+
+	public boolean isNominal(int column) {
+		return nominal[column];
+	}
+
+	/**
+	 * Distinct values of a nominal column, indexed by code.
+	 */
+	public String[] dictionary(int column) {
+		return dictionaries[column];
+	}
+
+	/**
+	 * Number of rows with a value in the column.
+	 */
+	public int numPresent(int column) {
+		return nominal[column] ? codes[column].length : numeric[column].length;
+	}
+
+	public boolean isMissing(int row, int column) {
+		return (present[column][row >>> 6] & (1L << row)) == 0;
+	}
+
+	/**
+	 * Value of a cell in Weka's internal format: the value of a numeric
+	 * attribute, the code of a nominal one, NaN if missing.
+	 */
+	public double value(int row, int column) {
+		long word = present[column][row >>> 6];
+		if ((word & (1L << row)) == 0) {
+			return Double.NaN;
+		}
+		// values present in the word before this row
+		int k = ranks[column][row >>> 6] + Long.bitCount(word & ((1L << row) - 1));
+		return nominal[column] ? codes[column][k] : numeric[column][k];
+	}
+
+	/**
+	 * Dense copy of a column, NaN for missing values.
+	 */
+	public double[] column(int column) {
+		double[] values = new double[numRows];
+		Arrays.fill(values, Double.NaN);
+		long[] bitmap = present[column];
+		int valueIndex = 0;
+		for (int w = 0; w < bitmap.length; w++) {
+			for (long word = bitmap[w]; word != 0; word &= word - 1) {
+				int row = (w << 6) + Long.numberOfTrailingZeros(word);
+				values[row] = nominal[column] ? codes[column][valueIndex] : numeric[column][valueIndex];
+				valueIndex++;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Weka attribute for a column.
+	 */
+	public Attribute attribute(int column) {
+		if (nominal[column]) {
+			return new Attribute(names[column], Arrays.asList(dictionaries[column]));
+		}
+		return new Attribute(names[column]);
+	}
+
+	/**
+	 * Heap used by the columns, in bytes.
+	 */
+	public long sizeInBytes() {
+		long size = 0;
+		for (int j = 0; j < names.length; j++) {
+			size += 8L * present[j].length + 4L * ranks[j].length;
+			size += nominal[j] ? 4L * codes[j].length : 8L * numeric[j].length;
+		}
+		return size;
+	}
+
+	/**
+	 * Empty Instances with the attributes of all columns.
+	 */
+	public Instances header() {
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(names.length);
+		for (int j = 0; j < names.length; j++) {
+			attributes.add(attribute(j));
+		}
+		return new Instances(relationName, attributes, 0);
+	}
+
+	/**
+	 * Converts all columns to Instances.
+	 */
+	public Instances toInstances() {
+		int[] columns = new int[names.length];
+		for (int j = 0; j < columns.length; j++) {
+			columns[j] = j;
+		}
+		return toInstances(columns);
+	}
+
+	/**
+	 * Converts the given columns to Instances of MissingSparseInstance, in
+	 * the given order.
+	 */
+	public Instances toInstances(int... columns) {
+		// count the values of each row, then fill the rows column by column
+		int[] rowSizes = new int[numRows];
+		for (int column : columns) {
+			long[] bitmap = present[column];
+			for (int w = 0; w < bitmap.length; w++) {
+				for (long word = bitmap[w]; word != 0; word &= word - 1) {
+					rowSizes[(w << 6) + Long.numberOfTrailingZeros(word)]++;
+				}
+			}
+		}
+		int[][] indices = new int[numRows][];
+		double[][] values = new double[numRows][];
+		for (int i = 0; i < numRows; i++) {
+			indices[i] = new int[rowSizes[i]];
+			values[i] = new double[rowSizes[i]];
+		}
+		int[] fill = new int[numRows];
+		for (int k = 0; k < columns.length; k++) {
+			int column = columns[k];
+			long[] bitmap = present[column];
+			int valueIndex = 0;
+			for (int w = 0; w < bitmap.length; w++) {
+				for (long word = bitmap[w]; word != 0; word &= word - 1) {
+					int row = (w << 6) + Long.numberOfTrailingZeros(word);
+					indices[row][fill[row]] = k;
+					values[row][fill[row]++] = nominal[column] ? codes[column][valueIndex] : numeric[column][valueIndex];
+					valueIndex++;
+				}
+			}
+		}
+
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(columns.length);
+		for (int column : columns) {
+			attributes.add(attribute(column));
+		}
+		Instances data = new Instances(relationName, attributes, numRows);
+		for (int i = 0; i < numRows; i++) {
+			data.add(new MissingSparseInstance(1.0, values[i], indices[i], columns.length));
+			// every value present comes back, 0 and the first nominal value included
+			assert keepsValues(data.lastInstance(), indices[i], values[i]);
+			// the instance keeps the arrays, drop the references held here
+			indices[i] = null;
+			values[i] = null;
+		}
+		return data;
+	}
+
+	// run with -ea to check every row
+	private static boolean keepsValues(Instance instance, int[] indices, double[] values) {
+		for (int k = 0; k < indices.length; k++) {
+			if (instance.isMissing(indices[k]) || instance.value(indices[k]) != values[k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A dataset with the columns of this one followed by a column of another
+	 * dataset with the same number of rows. The column arrays are shared,
+	 * not copied.
+	 */
+	public SparseColumnarData withColumn(SparseColumnarData other, int column) {
+		if (other.numRows != numRows) {
+			throw new IllegalArgumentException("Expected " + numRows + " rows, got " + other.numRows);
+		}
+		int n = names.length;
+		String[] names = Arrays.copyOf(this.names, n + 1);
+		boolean[] nominal = Arrays.copyOf(this.nominal, n + 1);
+		long[][] present = Arrays.copyOf(this.present, n + 1);
+		double[][] numeric = Arrays.copyOf(this.numeric, n + 1);
+		int[][] codes = Arrays.copyOf(this.codes, n + 1);
+		String[][] dictionaries = Arrays.copyOf(this.dictionaries, n + 1);
+		names[n] = other.names[column];
+		nominal[n] = other.nominal[column];
+		present[n] = other.present[column];
+		numeric[n] = other.numeric[column];
+		codes[n] = other.codes[column];
+		dictionaries[n] = other.dictionaries[column];
+		return new SparseColumnarData(relationName, names, nominal, present, numeric, codes, dictionaries, numRows);
+	}
+
+}
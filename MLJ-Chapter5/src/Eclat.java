@@ -0,0 +1,255 @@
+/**
+ * Chapter 5: Vertical frequent itemset mining
+ *
+ * Eclat keeps the data vertically: one TidSet (the ids of the transactions
+ * that contain it) per item. The support of an itemset is the cardinality
+ * of the intersection of its items' sets, so the data is scanned only once,
+ * and there is no candidate generation: each itemset is extended by the
+ * items that follow it in its prefix class, intersecting the two sets. The
+ * prefix classes of the first two levels are mined as separate tasks on a
+ * ForkJoin pool, deeper levels depth first within their task.
+ *
+ * The options and the search for rules are those of Apriori: starting at
+ * the upper bound, the minimum support is lowered by delta until numRules
+ * rules reach the minimum confidence or the lower bound is passed, so the
+ * rules are the ones Apriori finds with the same options:
+ *
+ *   Eclat eclat = new Eclat();
+ *   eclat.buildAssociations(data);
+ *   System.out.println(eclat);
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class Eclat {
+
+	// options, with the defaults of Apriori
+	private int numRules = 10;
+	private double minConfidence = 0.9;
+	private double delta = 0.05;
+	private double upperBoundMinSupport = 1.0;
+	private double lowerBoundMinSupport = 0.1;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	// model
+	private Items items;
+	private FrequentItemsets itemsets;
+	private List<ItemsetRule> rules;
+	private double minSupport;
+	private int numTransactions, cycles;
+
+	public void buildAssociations(Instances data) throws Exception {
+		items = Items.allValues(data);
+		numTransactions = data.numInstances();
+		TidSet[] tidsets = vertical(data, items);
+
+		// lower the minimum support until enough rules are found, as in Apriori
+		double lowerBound = (lowerBoundMinSupport * numTransactions < 1.0) ? 1.0 / numTransactions
+				: lowerBoundMinSupport;
+		int maxCount = (int) (upperBoundMinSupport * numTransactions + 0.5);
+		double support = Math.max(upperBoundMinSupport - delta, lowerBound);
+		double necSupport;
+		cycles = 0;
+		do {
+			minSupport = support;
+			itemsets = mine(tidsets, (int) (support * numTransactions + 0.5));
+			rules = itemsets.rules(minConfidence, maxCount, numRules);
+			cycles++;
+			support -= delta;
+			if (support < lowerBound) {
+				support = 0;
+			}
+			necSupport = Math.rint(support * numTransactions);
+		} while (rules.size() < numRules && Utils.grOrEq(support, lowerBound) && necSupport >= 1);
+	}
+
+	/**
+	 * The transaction ids of every item, from one scan of the data.
+	 */
+	static TidSet[] vertical(Instances data, Items items) {
+		int n = data.numInstances();
+		int[][] tids = new int[items.numItems()][];
+		int[] counts = new int[items.numItems()];
+		int[][] transactions = new int[n][];
+		for (int i = 0; i < n; i++) {
+			transactions[i] = items.transaction(data.instance(i));
+			for (int item : transactions[i]) {
+				counts[item]++;
+			}
+		}
+		for (int item = 0; item < tids.length; item++) {
+			tids[item] = new int[counts[item]];
+			counts[item] = 0;
+		}
+		for (int i = 0; i < n; i++) {
+			for (int item : transactions[i]) {
+				tids[item][counts[item]++] = i;
+			}
+		}
+		TidSet[] tidsets = new TidSet[tids.length];
+		for (int item = 0; item < tids.length; item++) {
+			tidsets[item] = TidSet.of(tids[item], tids[item].length, n);
+		}
+		return tidsets;
+	}
+
+	/**
+	 * All itemsets contained in at least minCount transactions.
+	 */
+	FrequentItemsets mine(TidSet[] tidsets, int minCount) {
+		List<Node> roots = new ArrayList<Node>();
+		for (int item = 0; item < tidsets.length; item++) {
+			if (tidsets[item].cardinality() >= minCount) {
+				roots.add(new Node(item, tidsets[item]));
+			}
+		}
+		// rare items first keeps the intersections small
+		Collections.sort(roots, new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				int bySupport = a.tids.cardinality() - b.tids.cardinality();
+				return bySupport != 0 ? bySupport : a.item - b.item;
+			}
+		});
+		int n = tidsets.length > 0 ? tidsets[0].numTransactions() : 0;
+		return pool.invoke(new PrefixClass(new int[0], roots, minCount, n));
+	}
+
+	private static final class Node {
+		final int item;
+		final TidSet tids;
+
+		Node(int item, TidSet tids) {
+			this.item = item;
+			this.tids = tids;
+		}
+	}
+
+	/**
+	 * The itemsets that extend a prefix with the items of its class.
+	 */
+	private static final class PrefixClass extends RecursiveTask<FrequentItemsets> {
+
+		private static final long serialVersionUID = 1L;
+		private static final int PARALLEL_DEPTH = 2;
+
+		final int[] prefix;
+		final List<Node> nodes;
+		final int minCount, numTransactions;
+
+		PrefixClass(int[] prefix, List<Node> nodes, int minCount, int numTransactions) {
+			this.prefix = prefix;
+			this.nodes = nodes;
+			this.minCount = minCount;
+			this.numTransactions = numTransactions;
+		}
+
+		@Override
+		protected FrequentItemsets compute() {
+			FrequentItemsets result = new FrequentItemsets(numTransactions);
+			List<PrefixClass> forked = new ArrayList<PrefixClass>();
+			for (int i = 0; i < nodes.size(); i++) {
+				Node node = nodes.get(i);
+				int[] itemset = Arrays.copyOf(prefix, prefix.length + 1);
+				itemset[prefix.length] = node.item;
+				int[] sorted = itemset.clone();
+				Arrays.sort(sorted);
+				result.add(sorted, node.tids.cardinality());
+
+				List<Node> extensions = new ArrayList<Node>();
+				for (int j = i + 1; j < nodes.size(); j++) {
+					TidSet tids = node.tids.and(nodes.get(j).tids);
+					if (tids.cardinality() >= minCount) {
+						extensions.add(new Node(nodes.get(j).item, tids));
+					}
+				}
+				if (extensions.isEmpty()) {
+					continue;
+				}
+				PrefixClass child = new PrefixClass(itemset, extensions, minCount, numTransactions);
+				if (prefix.length < PARALLEL_DEPTH) {
+					child.fork();
+					forked.add(child);
+				} else {
+					result.addAll(child.compute());
+				}
+			}
+			for (PrefixClass child : forked) {
+				result.addAll(child.join());
+			}
+			return result;
+		}
+	}
+
+	public List<ItemsetRule> getRules() {
+		return rules;
+	}
+
+	public FrequentItemsets getItemsets() {
+		return itemsets;
+	}
+
+	public Items getItems() {
+		return items;
+	}
+
+	/*
+	 * Options
+	 */
+
+	public void setNumRules(int numRules) {
+		this.numRules = numRules;
+	}
+
+	public void setMinMetric(double minConfidence) {
+		this.minConfidence = minConfidence;
+	}
+
+	public void setDelta(double delta) {
+		this.delta = delta;
+	}
+
+	public void setUpperBoundMinSupport(double upperBoundMinSupport) {
+		this.upperBoundMinSupport = upperBoundMinSupport;
+	}
+
+	public void setLowerBoundMinSupport(double lowerBoundMinSupport) {
+		this.lowerBoundMinSupport = lowerBoundMinSupport;
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public String toString() {
+		if (rules == null) {
+			return "Eclat: no model built yet.";
+		}
+		StringBuffer text = new StringBuffer("\nEclat\n=====\n\n");
+		text.append("Minimum support: " + Utils.doubleToString(minSupport, 2) + " ("
+				+ (int) (minSupport * numTransactions + 0.5) + " instances)\n");
+		text.append("Minimum metric <confidence>: " + minConfidence + "\n");
+		text.append("Number of cycles performed: " + cycles + "\n");
+		text.append("\nGenerated sets of large itemsets:\n");
+		int[] sizes = itemsets.sizes();
+		for (int k = 0; k < sizes.length; k++) {
+			text.append("\nSize of set of large itemsets L(" + (k + 1) + "): " + sizes[k] + "\n");
+		}
+		text.append("\nBest rules found:\n\n");
+		for (int r = 0; r < rules.size(); r++) {
+			text.append(Utils.doubleToString(r + 1, (int) (Math.log(numRules) / Math.log(10) + 1), 0) + ". "
+					+ rules.get(r).toString(items) + "\n");
+		}
+		return text.toString();
+	}
+
+}
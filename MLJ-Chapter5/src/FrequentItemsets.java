@@ -0,0 +1,216 @@
+/**
+ * Chapter 5: Frequent itemsets and rule generation
+ *
+ * The frequent itemsets found by a miner, as sorted item arrays with their
+ * counts, and the association rules they give. Rules are generated the way
+ * Apriori does: for every itemset of two or more items, consequences grow
+ * one item at a time from those that reached the minimum confidence, since
+ * moving items from the premise to the consequence can only lower it.
+ * Rules are listed by decreasing confidence, then decreasing support, then
+ * itemset (by size and items) and consequence.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class FrequentItemsets {
+
+	/**
+	 * Sorted item array with value semantics, as hash key.
+	 */
+	static final class Itemset implements Comparable<Itemset> {
+
+		final int[] items;
+		private final int hash;
+
+		Itemset(int[] items) {
+			this.items = items;
+			this.hash = Arrays.hashCode(items);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Itemset && Arrays.equals(items, ((Itemset) o).items);
+		}
+
+		// by size, then item by item
+		public int compareTo(Itemset o) {
+			if (items.length != o.items.length) {
+				return items.length - o.items.length;
+			}
+			for (int i = 0; i < items.length; i++) {
+				if (items[i] != o.items[i]) {
+					return items[i] - o.items[i];
+				}
+			}
+			return 0;
+		}
+	}
+
+	private final int numTransactions;
+	private final Map<Itemset, Integer> counts = new HashMap<Itemset, Integer>();
+
+	public FrequentItemsets(int numTransactions) {
+		this.numTransactions = numTransactions;
+	}
+
+	/**
+	 * Adds an itemset, the items in increasing order.
+	 */
+	public void add(int[] itemset, int count) {
+		counts.put(new Itemset(itemset), count);
+	}
+
+	public void addAll(FrequentItemsets other) {
+		counts.putAll(other.counts);
+	}
+
+	/**
+	 * The count of a frequent itemset, -1 if it is not one.
+	 */
+	public int count(int[] itemset) {
+		Integer count = counts.get(new Itemset(itemset));
+		return count == null ? -1 : count;
+	}
+
+	public int size() {
+		return counts.size();
+	}
+
+	public int getNumTransactions() {
+		return numTransactions;
+	}
+
+	/**
+	 * Number of frequent itemsets of each size, index 0 for size 1.
+	 */
+	public int[] sizes() {
+		int[] sizes = new int[0];
+		for (Itemset itemset : counts.keySet()) {
+			int k = itemset.items.length;
+			if (k > sizes.length) {
+				sizes = Arrays.copyOf(sizes, k);
+			}
+			sizes[k - 1]++;
+		}
+		return sizes;
+	}
+
+	/**
+	 * The itemsets by size and items.
+	 */
+	public List<int[]> itemsets() {
+		List<Itemset> sorted = new ArrayList<Itemset>(counts.keySet());
+		Collections.sort(sorted);
+		List<int[]> itemsets = new ArrayList<int[]>(sorted.size());
+		for (Itemset itemset : sorted) {
+			itemsets.add(itemset.items.clone());
+		}
+		return itemsets;
+	}
+
+	/**
+	 * All rules with at least the minimum confidence from itemsets with at
+	 * most maxCount transactions.
+	 */
+	public List<ItemsetRule> rules(double minConfidence, int maxCount) {
+		List<Itemset> sorted = new ArrayList<Itemset>(counts.keySet());
+		Collections.sort(sorted);
+		List<ItemsetRule> rules = new ArrayList<ItemsetRule>();
+		for (Itemset itemset : sorted) {
+			int count = counts.get(itemset);
+			if (itemset.items.length < 2 || count > maxCount) {
+				continue;
+			}
+			List<int[]> consequences = new ArrayList<int[]>();
+			for (int item : itemset.items) {
+				consequences.add(new int[] { item });
+			}
+			while (!consequences.isEmpty() && consequences.get(0).length < itemset.items.length) {
+				List<int[]> passed = new ArrayList<int[]>();
+				for (int[] consequence : consequences) {
+					int[] premise = minus(itemset.items, consequence);
+					int premiseCount = count(premise);
+					if ((double) count / premiseCount >= minConfidence) {
+						rules.add(new ItemsetRule(premise, consequence, premiseCount, count(consequence), count,
+								numTransactions));
+						passed.add(consequence);
+					}
+				}
+				consequences = extend(passed);
+			}
+		}
+		Collections.sort(rules, new Comparator<ItemsetRule>() {
+			public int compare(ItemsetRule a, ItemsetRule b) {
+				int byConfidence = Double.compare(b.confidence(), a.confidence());
+				return byConfidence != 0 ? byConfidence : b.getCount() - a.getCount();
+			}
+		});
+		return rules;
+	}
+
+	/**
+	 * The first numRules rules.
+	 */
+	public List<ItemsetRule> rules(double minConfidence, int maxCount, int numRules) {
+		List<ItemsetRule> rules = rules(minConfidence, maxCount);
+		return new ArrayList<ItemsetRule>(rules.subList(0, Math.min(numRules, rules.size())));
+	}
+
+	private static int[] minus(int[] itemset, int[] subset) {
+		int[] rest = new int[itemset.length - subset.length];
+		for (int i = 0, s = 0, r = 0; i < itemset.length; i++) {
+			if (s < subset.length && subset[s] == itemset[i]) {
+				s++;
+			} else {
+				rest[r++] = itemset[i];
+			}
+		}
+		return rest;
+	}
+
+	// candidates of one more item whose subsets all passed (apriori-gen)
+	private static List<int[]> extend(List<int[]> passed) {
+		List<int[]> candidates = new ArrayList<int[]>();
+		if (passed.size() < 2) {
+			return candidates;
+		}
+		Set<Itemset> lookup = new HashSet<Itemset>();
+		for (int[] p : passed) {
+			lookup.add(new Itemset(p));
+		}
+		int k = passed.get(0).length;
+		for (int a = 0; a < passed.size(); a++) {
+			for (int b = a + 1; b < passed.size(); b++) {
+				int[] x = passed.get(a), y = passed.get(b);
+				if (!Arrays.equals(Arrays.copyOf(x, k - 1), Arrays.copyOf(y, k - 1))) {
+					continue;
+				}
+				int[] candidate = Arrays.copyOf(x, k + 1);
+				candidate[k - 1] = Math.min(x[k - 1], y[k - 1]);
+				candidate[k] = Math.max(x[k - 1], y[k - 1]);
+				boolean allPassed = true;
+				for (int drop = 0; drop < k + 1 && allPassed; drop++) {
+					allPassed = lookup.contains(new Itemset(minus(candidate, new int[] { candidate[drop] })));
+				}
+				if (allPassed) {
+					candidates.add(candidate);
+				}
+			}
+		}
+		return candidates;
+	}
+
+}
@@ -0,0 +1,114 @@
+/**
+ * Chapter 5: Items of market basket data
+ *
+ * Numbers the items of nominal data so that the miners can work on int
+ * arrays. Apriori makes every attribute=value pair an item, FPGrowth only
+ * the value of unary attributes and the positive value of binary ones; a
+ * missing value is no item. Items are numbered by attribute and value, so
+ * sorted item arrays list them in the order of the attributes.
+ */
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+public class Items {
+
+	private final Instances header;
+	private final int[] attributes, values; // of each item
+	private final int[][] itemOf; // [attribute][value], -1 if the value is no item
+
+	private Items(Instances data, int positiveIndex) {
+		header = new Instances(data, 0);
+		itemOf = new int[data.numAttributes()][];
+		int numItems = 0;
+		for (int j = 0; j < data.numAttributes(); j++) {
+			Attribute attribute = data.attribute(j);
+			if (!attribute.isNominal()) {
+				throw new IllegalArgumentException("Attribute " + attribute.name() + " is not nominal");
+			}
+			itemOf[j] = new int[attribute.numValues()];
+			for (int v = 0; v < attribute.numValues(); v++) {
+				boolean item = positiveIndex < 0 || attribute.numValues() == 1 || v == positiveIndex;
+				itemOf[j][v] = item ? numItems++ : -1;
+			}
+		}
+		attributes = new int[numItems];
+		values = new int[numItems];
+		for (int j = 0; j < itemOf.length; j++) {
+			for (int v = 0; v < itemOf[j].length; v++) {
+				if (itemOf[j][v] >= 0) {
+					attributes[itemOf[j][v]] = j;
+					values[itemOf[j][v]] = v;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Every value of every attribute is an item, as in Apriori.
+	 */
+	public static Items allValues(Instances data) {
+		return new Items(data, -1);
+	}
+
+	/**
+	 * The value of unary attributes and the value with the given index of
+	 * the others, as in FPGrowth (-P is that index plus one).
+	 */
+	public static Items positiveValues(Instances data, int positiveIndex) {
+		return new Items(data, positiveIndex);
+	}
+
+	public int numItems() {
+		return attributes.length;
+	}
+
+	public int attribute(int item) {
+		return attributes[item];
+	}
+
+	public int value(int item) {
+		return values[item];
+	}
+
+	/**
+	 * The item of an attribute value, -1 if it is none.
+	 */
+	public int item(int attribute, int value) {
+		return itemOf[attribute][value];
+	}
+
+	public String name(int item) {
+		Attribute attribute = header.attribute(attributes[item]);
+		return attribute.name() + "=" + attribute.value(values[item]);
+	}
+
+	/**
+	 * The items of an instance in increasing order.
+	 */
+	public int[] transaction(Instance instance) {
+		int[] buffer = new int[itemOf.length];
+		int size = 0;
+		for (int j = 0; j < itemOf.length; j++) {
+			if (!instance.isMissing(j)) {
+				int item = itemOf[j][(int) instance.value(j)];
+				if (item >= 0) {
+					buffer[size++] = item;
+				}
+			}
+		}
+		int[] transaction = new int[size];
+		System.arraycopy(buffer, 0, transaction, 0, size);
+		return transaction;
+	}
+
+	public String toString(int[] itemset) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < itemset.length; i++) {
+			text.append(i > 0 ? " " : "").append(name(itemset[i]));
+		}
+		return text.toString();
+	}
+
+}
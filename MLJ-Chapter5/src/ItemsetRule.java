@@ -0,0 +1,96 @@
+/**
+ * Chapter 5: Association rule over numbered items
+ *
+ * Premise ==> consequence, with the counts of the premise, the consequence
+ * and the whole itemset, and the metrics Weka prints for its rules.
+ */
+
+import java.util.Arrays;
+
+import weka.core.Utils;
+
+public class ItemsetRule {
+
+	private final int[] premise, consequence;
+	private final int premiseCount, consequenceCount, count, numTransactions;
+
+	public ItemsetRule(int[] premise, int[] consequence, int premiseCount, int consequenceCount, int count,
+			int numTransactions) {
+		this.premise = premise;
+		this.consequence = consequence;
+		this.premiseCount = premiseCount;
+		this.consequenceCount = consequenceCount;
+		this.count = count;
+		this.numTransactions = numTransactions;
+	}
+
+	public int[] getPremise() {
+		return premise.clone();
+	}
+
+	public int[] getConsequence() {
+		return consequence.clone();
+	}
+
+	public int getPremiseCount() {
+		return premiseCount;
+	}
+
+	public int getConsequenceCount() {
+		return consequenceCount;
+	}
+
+	/**
+	 * Number of transactions with premise and consequence.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public double confidence() {
+		return (double) count / premiseCount;
+	}
+
+	public double lift() {
+		return confidence() / ((double) consequenceCount / numTransactions);
+	}
+
+	public double leverage() {
+		return (double) count / numTransactions
+				- ((double) premiseCount / numTransactions) * ((double) consequenceCount / numTransactions);
+	}
+
+	/**
+	 * Conviction as Weka computes it, with one added to the count of the
+	 * counterexamples so that exact rules do not divide by zero.
+	 */
+	public double conviction() {
+		return (double) premiseCount * (numTransactions - consequenceCount) / numTransactions
+				/ (premiseCount - count + 1);
+	}
+
+	/**
+	 * The rule without counts, e.g. "biscuits=t fruit=t ==> bread and
+	 * cake=t", to compare rule sets of different miners.
+	 */
+	public String key(Items items) {
+		return items.toString(premise) + " ==> " + items.toString(consequence);
+	}
+
+	/**
+	 * The rule as Apriori prints it.
+	 */
+	public String toString(Items items) {
+		return items.toString(premise) + " " + premiseCount + " ==> " + items.toString(consequence) + " " + count
+				+ "    <conf:(" + Utils.doubleToString(confidence(), 2) + ")> lift:("
+				+ Utils.doubleToString(lift(), 2) + ") lev:(" + Utils.doubleToString(leverage(), 2) + ") ["
+				+ (int) (leverage() * numTransactions) + "] conv:(" + Utils.doubleToString(conviction(), 2) + ")";
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(premise) + " ==> " + Arrays.toString(consequence) + " <conf:("
+				+ Utils.doubleToString(confidence(), 2) + ")>";
+	}
+
+}
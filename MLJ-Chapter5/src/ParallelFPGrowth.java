@@ -0,0 +1,389 @@
+/**
+ * Chapter 5: Parallel FP-Growth on an array-based FP-tree
+ *
+ * FP-Growth with the tree kept in parallel int arrays (item, count, parent,
+ * first child, next sibling and the node-link of each node) instead of
+ * node objects, so a tree of millions of nodes is a handful of arrays
+ * without per-object headers and pointers, and conditional trees are cheap
+ * to build and drop.
+ *
+ * The header items are split into groups of about equal work, as PFP
+ * shards its item groups; each group is mined by a worker. PFP gives each
+ * group its own copy of the transactions it needs; in a single JVM the
+ * workers share the global tree, which is not changed after it is built,
+ * and each builds the conditional trees of its own items.
+ *
+ * Items, options and the search for rules are those of FPGrowth: the value
+ * of unary attributes and the positive value (-P) of binary ones are items,
+ * the minimum support is lowered from the upper bound by delta until
+ * numRulesToFind rules reach the minimum confidence, and all rules of that
+ * support level are kept:
+ *
+ *   ParallelFPGrowth fpGrowth = new ParallelFPGrowth();
+ *   fpGrowth.buildAssociations(data);
+ *   System.out.println(fpGrowth);
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class ParallelFPGrowth {
+
+	// options, with the defaults of FPGrowth
+	private int positiveIndex = 2;
+	private int numRulesToFind = 10;
+	private double minConfidence = 0.9;
+	private double delta = 0.05;
+	private double upperBoundMinSupport = 1.0;
+	private double lowerBoundMinSupport = 0.1;
+	private int numGroups = Runtime.getRuntime().availableProcessors();
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	// model
+	private Items items;
+	private FrequentItemsets itemsets;
+	private List<ItemsetRule> rules;
+	private double minSupport;
+
+	public void buildAssociations(Instances data) throws Exception {
+		items = Items.positiveValues(data, positiveIndex - 1);
+		int numTransactions = data.numInstances();
+		int[][] transactions = new int[numTransactions][];
+		int[] itemCounts = new int[items.numItems()];
+		for (int i = 0; i < numTransactions; i++) {
+			transactions[i] = items.transaction(data.instance(i));
+			for (int item : transactions[i]) {
+				itemCounts[item]++;
+			}
+		}
+
+		// lower the minimum support until enough rules are found, as in FPGrowth
+		int maxCount = (int) Math.ceil(upperBoundMinSupport * numTransactions);
+		double support = upperBoundMinSupport;
+		while (true) {
+			minSupport = support;
+			itemsets = mine(transactions, itemCounts, (int) Math.ceil(support * numTransactions));
+			rules = itemsets.rules(minConfidence, maxCount);
+			if (rules.size() >= numRulesToFind) {
+				break;
+			}
+			support -= delta;
+			if (support < lowerBoundMinSupport) {
+				if (support + delta > lowerBoundMinSupport) {
+					// one pass at the lower bound
+					support = lowerBoundMinSupport;
+				} else {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * All itemsets contained in at least minCount transactions.
+	 */
+	FrequentItemsets mine(int[][] transactions, final int[] itemCounts, int minCount) throws Exception {
+		// frequent items by decreasing count
+		List<Integer> frequent = new ArrayList<Integer>();
+		for (int item = 0; item < itemCounts.length; item++) {
+			if (itemCounts[item] >= minCount) {
+				frequent.add(item);
+			}
+		}
+		Collections.sort(frequent, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return itemCounts[a] != itemCounts[b] ? itemCounts[b] - itemCounts[a] : a - b;
+			}
+		});
+		final int[] itemOfRank = new int[frequent.size()];
+		int[] rankOf = new int[itemCounts.length];
+		Arrays.fill(rankOf, -1);
+		for (int r = 0; r < itemOfRank.length; r++) {
+			itemOfRank[r] = frequent.get(r);
+			rankOf[itemOfRank[r]] = r;
+		}
+
+		// global tree of the transactions, items by rank
+		final FPTree tree = new FPTree(itemOfRank.length, 1024);
+		int[] path = new int[itemOfRank.length];
+		for (int[] transaction : transactions) {
+			int length = 0;
+			for (int item : transaction) {
+				if (rankOf[item] >= 0) {
+					path[length++] = rankOf[item];
+				}
+			}
+			Arrays.sort(path, 0, length);
+			tree.insert(path, length, 1);
+		}
+
+		// item groups of about equal work, largest node-link chains first
+		Integer[] byWork = new Integer[itemOfRank.length];
+		final int[] chainLength = new int[itemOfRank.length];
+		for (int r = 0; r < itemOfRank.length; r++) {
+			byWork[r] = r;
+			for (int node = tree.head[r]; node >= 0; node = tree.next[node]) {
+				chainLength[r] += tree.depth(node);
+			}
+		}
+		Arrays.sort(byWork, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return chainLength[b] - chainLength[a];
+			}
+		});
+		int groups = Math.max(1, Math.min(numGroups, itemOfRank.length));
+		final List<List<Integer>> group = new ArrayList<List<Integer>>();
+		long[] load = new long[groups];
+		for (int g = 0; g < groups; g++) {
+			group.add(new ArrayList<Integer>());
+		}
+		for (int r : byWork) {
+			int lightest = 0;
+			for (int g = 1; g < groups; g++) {
+				if (load[g] < load[lightest]) {
+					lightest = g;
+				}
+			}
+			group.get(lightest).add(r);
+			load[lightest] += chainLength[r] + 1;
+		}
+
+		final int numTransactions = transactions.length, min = minCount;
+		List<Callable<FrequentItemsets>> tasks = new ArrayList<Callable<FrequentItemsets>>();
+		for (final List<Integer> ranks : group) {
+			tasks.add(new Callable<FrequentItemsets>() {
+				public FrequentItemsets call() {
+					FrequentItemsets found = new FrequentItemsets(numTransactions);
+					for (int r : ranks) {
+						growth(tree, r, new int[0], min, itemOfRank, found);
+					}
+					return found;
+				}
+			});
+		}
+		FrequentItemsets result = new FrequentItemsets(numTransactions);
+		for (Future<FrequentItemsets> found : pool.invokeAll(tasks)) {
+			try {
+				result.addAll(found.get());
+			} catch (ExecutionException e) {
+				throw (Exception) e.getCause();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the itemset of rank r and the suffix, and mines the conditional
+	 * tree of r.
+	 */
+	private static void growth(FPTree tree, int r, int[] suffix, int minCount, int[] itemOfRank,
+			FrequentItemsets found) {
+		if (tree.headCount[r] < minCount) {
+			return;
+		}
+		int[] itemset = Arrays.copyOf(suffix, suffix.length + 1);
+		itemset[suffix.length] = itemOfRank[r];
+		int[] sorted = itemset.clone();
+		Arrays.sort(sorted);
+		found.add(sorted, tree.headCount[r]);
+
+		// conditional pattern base: the prefix paths of the nodes of r
+		int[] counts = new int[r];
+		boolean any = false;
+		for (int node = tree.head[r]; node >= 0; node = tree.next[node]) {
+			for (int p = tree.parent[node]; p > 0; p = tree.parent[p]) {
+				counts[tree.item[p]] += tree.count[node];
+			}
+		}
+		for (int q = 0; q < r && !any; q++) {
+			any = counts[q] >= minCount;
+		}
+		if (!any) {
+			return;
+		}
+		FPTree conditional = new FPTree(r, 64);
+		int[] path = new int[r];
+		for (int node = tree.head[r]; node >= 0; node = tree.next[node]) {
+			int length = 0;
+			for (int p = tree.parent[node]; p > 0; p = tree.parent[p]) {
+				if (counts[tree.item[p]] >= minCount) {
+					path[length++] = tree.item[p];
+				}
+			}
+			// leaf to root, reverse into rank order
+			for (int a = 0, b = length - 1; a < b; a++, b--) {
+				int tmp = path[a];
+				path[a] = path[b];
+				path[b] = tmp;
+			}
+			conditional.insert(path, length, tree.count[node]);
+		}
+		for (int q = r - 1; q >= 0; q--) {
+			growth(conditional, q, itemset, minCount, itemOfRank, found);
+		}
+	}
+
+	/**
+	 * FP-tree in parallel arrays; node 0 is the root. Items are ranks, the
+	 * nodes of each rank are linked from its header.
+	 */
+	static final class FPTree {
+
+		int size;
+		int[] item, count, parent, firstChild, sibling, next;
+		final int[] head, tail, headCount;
+
+		FPTree(int numRanks, int capacity) {
+			item = new int[capacity];
+			count = new int[capacity];
+			parent = new int[capacity];
+			firstChild = new int[capacity];
+			sibling = new int[capacity];
+			next = new int[capacity];
+			head = new int[numRanks];
+			tail = new int[numRanks];
+			headCount = new int[numRanks];
+			Arrays.fill(head, -1);
+			Arrays.fill(tail, -1);
+			size = 1;
+			item[0] = -1;
+			parent[0] = -1;
+			firstChild[0] = -1;
+			sibling[0] = -1;
+			next[0] = -1;
+		}
+
+		/**
+		 * Adds a path of increasing ranks with the given count.
+		 */
+		void insert(int[] ranks, int length, int weight) {
+			int node = 0;
+			for (int i = 0; i < length; i++) {
+				int rank = ranks[i];
+				int child = firstChild[node];
+				while (child >= 0 && item[child] != rank) {
+					child = sibling[child];
+				}
+				if (child < 0) {
+					child = newNode(rank, node);
+				}
+				count[child] += weight;
+				headCount[rank] += weight;
+				node = child;
+			}
+		}
+
+		private int newNode(int rank, int parentNode) {
+			if (size == item.length) {
+				int capacity = item.length * 2;
+				item = Arrays.copyOf(item, capacity);
+				count = Arrays.copyOf(count, capacity);
+				parent = Arrays.copyOf(parent, capacity);
+				firstChild = Arrays.copyOf(firstChild, capacity);
+				sibling = Arrays.copyOf(sibling, capacity);
+				next = Arrays.copyOf(next, capacity);
+			}
+			int node = size++;
+			item[node] = rank;
+			count[node] = 0;
+			parent[node] = parentNode;
+			firstChild[node] = -1;
+			sibling[node] = firstChild[parentNode];
+			firstChild[parentNode] = node;
+			next[node] = -1;
+			if (tail[rank] < 0) {
+				head[rank] = node;
+			} else {
+				next[tail[rank]] = node;
+			}
+			tail[rank] = node;
+			return node;
+		}
+
+		int depth(int node) {
+			int depth = 0;
+			for (int p = parent[node]; p > 0; p = parent[p]) {
+				depth++;
+			}
+			return depth;
+		}
+	}
+
+	public List<ItemsetRule> getRules() {
+		return rules;
+	}
+
+	public FrequentItemsets getItemsets() {
+		return itemsets;
+	}
+
+	public Items getItems() {
+		return items;
+	}
+
+	/*
+	 * Options
+	 */
+
+	/**
+	 * Index, starting at 1, of the value of binary attributes that is an
+	 * item.
+	 */
+	public void setPositiveIndex(int positiveIndex) {
+		this.positiveIndex = positiveIndex;
+	}
+
+	public void setNumRulesToFind(int numRulesToFind) {
+		this.numRulesToFind = numRulesToFind;
+	}
+
+	public void setMinMetric(double minConfidence) {
+		this.minConfidence = minConfidence;
+	}
+
+	public void setDelta(double delta) {
+		this.delta = delta;
+	}
+
+	public void setUpperBoundMinSupport(double upperBoundMinSupport) {
+		this.upperBoundMinSupport = upperBoundMinSupport;
+	}
+
+	public void setLowerBoundMinSupport(double lowerBoundMinSupport) {
+		this.lowerBoundMinSupport = lowerBoundMinSupport;
+	}
+
+	public void setNumGroups(int numGroups) {
+		this.numGroups = numGroups;
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public String toString() {
+		if (rules == null) {
+			return "ParallelFPGrowth: no model built yet.";
+		}
+		StringBuffer text = new StringBuffer();
+		text.append("ParallelFPGrowth found " + rules.size() + " rules (displaying top "
+				+ Math.min(numRulesToFind, rules.size()) + ") at minimum support "
+				+ Utils.doubleToString(minSupport, 2) + "\n\n");
+		for (int r = 0; r < rules.size() && r < numRulesToFind; r++) {
+			text.append((r + 1) + ". " + rules.get(r).toString(items) + "\n");
+		}
+		return text.toString();
+	}
+
+}
@@ -0,0 +1,200 @@
+/**
+ * Chapter 5: Rule index for basket-time recommendations
+ *
+ * Answers "the k best rules whose premise is contained in this basket"
+ * from an immutable snapshot of the rules:
+ *
+ * - rules are ranked once, by confidence or lift, and referred to by rank;
+ * - every rule is listed under one item of its premise, the one that is
+ *   in the fewest premises, so a basket only visits the rules listed under
+ *   its own items, and each of them once;
+ * - the premise and consequence of each rule are bitmasks over the items,
+ *   so a candidate is checked with a few AND operations;
+ * - the lists are in rank order, so a list is left as soon as its next
+ *   rule ranks below the k-th rule found.
+ *
+ * Rules whose consequence is already in the basket recommend nothing and
+ * are skipped. A retrained model is published by building a new snapshot
+ * and swapping the reference, so queries never lock and always see one
+ * consistent rule set:
+ *
+ *   RuleIndex index = new RuleIndex(items, RuleIndex.Metric.CONFIDENCE);
+ *   index.publish(eclat.getItemsets().rules(0.9, Integer.MAX_VALUE));
+ *   List<ItemsetRule> top = index.topRules(basketItems, 5);
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class RuleIndex {
+
+	public enum Metric {
+		CONFIDENCE, LIFT
+	}
+
+	private final Items items;
+	private final Metric metric;
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Immutable rule set with its index.
+	 */
+	private static final class Snapshot {
+		final ItemsetRule[] rules; // by rank
+		final int words;
+		final long[] premises, consequences; // masks, words per rule
+		final int[][] postings; // item -> ranks in increasing order
+
+		Snapshot(List<ItemsetRule> ranked, int numItems) {
+			rules = ranked.toArray(new ItemsetRule[0]);
+			words = (numItems + 63) >>> 6;
+			premises = new long[rules.length * words];
+			consequences = new long[rules.length * words];
+			int[] premiseCounts = new int[numItems];
+			for (int r = 0; r < rules.length; r++) {
+				for (int item : rules[r].getPremise()) {
+					premises[r * words + (item >>> 6)] |= 1L << item;
+					premiseCounts[item]++;
+				}
+				for (int item : rules[r].getConsequence()) {
+					consequences[r * words + (item >>> 6)] |= 1L << item;
+				}
+			}
+
+			// each rule under its least common premise item
+			int[] key = new int[rules.length];
+			int[] listSizes = new int[numItems];
+			for (int r = 0; r < rules.length; r++) {
+				int best = -1;
+				for (int item : rules[r].getPremise()) {
+					if (best < 0 || premiseCounts[item] < premiseCounts[best]) {
+						best = item;
+					}
+				}
+				key[r] = best;
+				listSizes[best]++;
+			}
+			postings = new int[numItems][];
+			for (int item = 0; item < numItems; item++) {
+				postings[item] = new int[listSizes[item]];
+				listSizes[item] = 0;
+			}
+			for (int r = 0; r < rules.length; r++) {
+				postings[key[r]][listSizes[key[r]]++] = r;
+			}
+		}
+
+		boolean matches(int r, long[] basket) {
+			int base = r * words;
+			boolean recommends = false;
+			for (int w = 0; w < words; w++) {
+				if ((premises[base + w] & ~basket[w]) != 0) {
+					return false;
+				}
+				recommends |= (consequences[base + w] & ~basket[w]) != 0;
+			}
+			return recommends;
+		}
+	}
+
+	public RuleIndex(Items items, Metric metric) {
+		this.items = items;
+		this.metric = metric;
+		this.snapshot = new Snapshot(new ArrayList<ItemsetRule>(), items.numItems());
+	}
+
+	/**
+	 * Replaces the rules; queries running meanwhile finish on the old ones.
+	 */
+	public void publish(List<ItemsetRule> rules) {
+		List<ItemsetRule> ranked = new ArrayList<ItemsetRule>(rules);
+		Collections.sort(ranked, new Comparator<ItemsetRule>() {
+			public int compare(ItemsetRule a, ItemsetRule b) {
+				double first = metric == Metric.LIFT ? b.lift() - a.lift() : b.confidence() - a.confidence();
+				if (first != 0) {
+					return first > 0 ? 1 : -1;
+				}
+				double second = metric == Metric.LIFT ? b.confidence() - a.confidence() : b.lift() - a.lift();
+				return second > 0 ? 1 : second < 0 ? -1 : b.getCount() - a.getCount();
+			}
+		});
+		snapshot = new Snapshot(ranked, items.numItems());
+	}
+
+	/**
+	 * The k best rules whose premise is in the basket and whose consequence
+	 * is not, best first. Items outside the item range are ignored.
+	 */
+	public List<ItemsetRule> topRules(int[] basketItems, int k) {
+		if (k <= 0) {
+			return new ArrayList<ItemsetRule>();
+		}
+		Snapshot current = snapshot;
+		long[] basket = new long[current.words];
+		int[] distinct = new int[basketItems.length];
+		int numDistinct = 0;
+		for (int item : basketItems) {
+			if (item >= 0 && item < current.postings.length && (basket[item >>> 6] & (1L << item)) == 0) {
+				basket[item >>> 6] |= 1L << item;
+				distinct[numDistinct++] = item;
+			}
+		}
+
+		int[] best = new int[k];
+		int found = 0;
+		for (int d = 0; d < numDistinct; d++) {
+			for (int r : current.postings[distinct[d]]) {
+				if (found == k && r >= best[k - 1]) {
+					break;
+				}
+				if (!current.matches(r, basket)) {
+					continue;
+				}
+				// insert by rank
+				int at = found < k ? found++ : k - 1;
+				while (at > 0 && best[at - 1] > r) {
+					best[at] = best[at - 1];
+					at--;
+				}
+				best[at] = r;
+			}
+		}
+		List<ItemsetRule> top = new ArrayList<ItemsetRule>(found);
+		for (int i = 0; i < found; i++) {
+			top.add(current.rules[best[i]]);
+		}
+		return top;
+	}
+
+	/**
+	 * Number of rules of the current snapshot.
+	 */
+	public int size() {
+		return snapshot.rules.length;
+	}
+
+	/**
+	 * Bytes held by the masks and lists of the current snapshot.
+	 */
+	public long sizeInBytes() {
+		Snapshot current = snapshot;
+		long bytes = 16L * current.premises.length;
+		for (int[] list : current.postings) {
+			bytes += 4L * list.length + 16;
+		}
+		return bytes;
+	}
+
+	public Items getItems() {
+		return items;
+	}
+
+	@Override
+	public String toString() {
+		return "RuleIndex: " + size() + " rules by " + metric.name().toLowerCase() + ", " + sizeInBytes()
+				+ " bytes";
+	}
+
+}
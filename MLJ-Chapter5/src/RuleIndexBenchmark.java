@@ -0,0 +1,172 @@
+/**
+ * Chapter 5: Throughput of the rule index
+ *
+ * Mines the supermarket baskets at a low support and confidence, which
+ * gives rule sets of the size a store would serve, indexes the rules and
+ * queries the index with the baskets of the data from 1, 2, 4, ... threads
+ * while another thread publishes a retrained rule set every 500 ms.
+ * Prints the queries per second and the median and 99th percentile
+ * latency for each number of threads.
+ *
+ *   java RuleIndexBenchmark [minSupport] [minConfidence] [k]
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import weka.core.Instances;
+
+public class RuleIndexBenchmark {
+
+	private static final long RUN_MILLIS = 2000;
+	private static final long RETRAIN_MILLIS = 500;
+	private static final int CHECKED_BASKETS = 100;
+
+	public static void main(String args[]) throws Exception {
+		double minSupport = args.length > 0 ? Double.parseDouble(args[0]) : 0.1;
+		double minConfidence = args.length > 1 ? Double.parseDouble(args[1]) : 0.5;
+		final int k = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		Instances data = new Instances(new BufferedReader(new FileReader("data/supermarket.arff")));
+		Items items = Items.allValues(data);
+		final int[][] baskets = new int[data.numInstances()][];
+		for (int i = 0; i < baskets.length; i++) {
+			baskets[i] = items.transaction(data.instance(i));
+		}
+
+		// rules at two confidence levels, published in turn during the runs
+		long start = System.currentTimeMillis();
+		FrequentItemsets itemsets = new Eclat().mine(Eclat.vertical(data, items),
+				(int) Math.ceil(minSupport * data.numInstances()));
+		final List<ItemsetRule> rules = itemsets.rules(minConfidence, Integer.MAX_VALUE);
+		final List<ItemsetRule> retrained = itemsets.rules(minConfidence + 0.05, Integer.MAX_VALUE);
+		System.out.println(itemsets.size() + " itemsets, " + rules.size() + " rules mined in "
+				+ (System.currentTimeMillis() - start) + " ms");
+
+		final RuleIndex index = new RuleIndex(items, RuleIndex.Metric.CONFIDENCE);
+		start = System.currentTimeMillis();
+		index.publish(rules);
+		System.out.println(index + ", built in " + (System.currentTimeMillis() - start) + " ms");
+		check(index, rules, baskets, k);
+
+		for (int numThreads = 1; numThreads <= Runtime.getRuntime().availableProcessors(); numThreads *= 2) {
+			final AtomicBoolean running = new AtomicBoolean(true);
+			Thread retrainer = new Thread() {
+				public void run() {
+					for (int swap = 0; running.get(); swap++) {
+						index.publish(swap % 2 == 0 ? retrained : rules);
+						try {
+							Thread.sleep(RETRAIN_MILLIS);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			};
+			final long[][] latencies = new long[numThreads][];
+			final int[] counts = new int[numThreads];
+			Thread[] threads = new Thread[numThreads];
+			for (int t = 0; t < numThreads; t++) {
+				final int thread = t;
+				threads[t] = new Thread() {
+					public void run() {
+						long[] sample = new long[1 << 20];
+						int n = 0;
+						long end = System.currentTimeMillis() + RUN_MILLIS;
+						for (int q = thread; System.currentTimeMillis() < end; q++) {
+							long begin = System.nanoTime();
+							index.topRules(baskets[q % baskets.length], k);
+							long time = System.nanoTime() - begin;
+							if (n < sample.length) {
+								sample[n] = time;
+							}
+							n++;
+						}
+						counts[thread] = n;
+						latencies[thread] = Arrays.copyOf(sample, Math.min(n, sample.length));
+					}
+				};
+			}
+			retrainer.start();
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			running.set(false);
+			retrainer.join();
+
+			long total = 0;
+			List<Long> all = new ArrayList<Long>();
+			for (int t = 0; t < numThreads; t++) {
+				total += counts[t];
+				for (long latency : latencies[t]) {
+					all.add(latency);
+				}
+			}
+			long[] sorted = new long[all.size()];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = all.get(i);
+			}
+			Arrays.sort(sorted);
+			System.out.printf("%2d threads: %,12d queries/s  p50 %6.2f us  p99 %6.2f us%n", numThreads,
+					total * 1000 / RUN_MILLIS, sorted[sorted.length / 2] / 1e3,
+					sorted[(int) (sorted.length * 0.99)] / 1e3);
+		}
+	}
+
+	/**
+	 * Compares the index with a scan of all rules on a sample of the baskets.
+	 */
+	static void check(RuleIndex index, List<ItemsetRule> rules, int[][] baskets, int k) {
+		int mismatches = 0, checked = 0;
+		List<ItemsetRule> ranked = new ArrayList<ItemsetRule>();
+		for (int b = 0; b < baskets.length; b += Math.max(1, baskets.length / CHECKED_BASKETS)) {
+			int[] basket = baskets[b];
+			checked++;
+			List<ItemsetRule> top = index.topRules(basket, k);
+			ranked.clear();
+			for (ItemsetRule rule : rules) {
+				if (containsAll(basket, rule.getPremise()) && !containsAll(basket, rule.getConsequence())) {
+					ranked.add(rule);
+				}
+			}
+			int expected = Math.min(k, ranked.size());
+			if (top.size() != expected) {
+				mismatches++;
+				continue;
+			}
+			for (int i = 0; i < expected; i++) {
+				if (!ranked.contains(top.get(i))
+						|| (i > 0 && top.get(i).confidence() > top.get(i - 1).confidence())) {
+					mismatches++;
+					break;
+				}
+			}
+			// nothing left out ranks above the last rule returned
+			for (ItemsetRule rule : ranked) {
+				if (expected > 0 && !top.contains(rule) && rule.confidence() > top.get(expected - 1).confidence()) {
+					mismatches++;
+					break;
+				}
+			}
+		}
+		System.out.println("Checked " + checked + " baskets against a scan of all rules: " + mismatches
+				+ " mismatches");
+	}
+
+	private static boolean containsAll(int[] basket, int[] itemset) {
+		for (int item : itemset) {
+			if (Arrays.binarySearch(basket, item) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
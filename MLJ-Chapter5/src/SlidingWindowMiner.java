@@ -0,0 +1,380 @@
+/**
+ * Chapter 5: Association rules over a sliding window of baskets
+ *
+ * Keeps the counts of the frequent and near-frequent itemsets of the last
+ * windowSize baskets while baskets stream in. The tracked itemsets live in
+ * a prefix tree; adding a basket walks the tree along the basket's items
+ * and increments every tracked itemset it contains, and the basket that
+ * leaves the window is walked again with a decrement, so an update costs
+ * the number of tracked subsets of the two baskets, whatever the length of
+ * the history. With tumbling windows the counts are reset instead when the
+ * window is full.
+ *
+ * Which itemsets are tracked is revised on demand (refresh(), rules(),
+ * changedRules()): level by level, the itemsets whose subsets are all
+ * near-frequent (count at least nearFrequentRatio times the minimum) are
+ * kept or added, and only the added ones are counted with a scan of the
+ * window. The counts of tracked itemsets are therefore always exact, and
+ * the rules right after a refresh are the rules a batch miner finds on the
+ * baskets of the window. Memory is bounded by the window and the tracked
+ * itemsets.
+ *
+ *   SlidingWindowMiner miner = new SlidingWindowMiner(items, 1000, 0.15, 0.9);
+ *   for (Instance basket : stream) {
+ *       miner.add(basket);
+ *   }
+ *   SlidingWindowMiner.Changes changes = miner.changedRules();
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import weka.core.Instance;
+
+public class SlidingWindowMiner {
+
+	private final Items items;
+	private final int windowSize;
+	private final double minSupport, minConfidence;
+	private double nearFrequentRatio = 0.8;
+	private int maxItemsetSize = Integer.MAX_VALUE;
+	private boolean tumbling = false;
+
+	// window
+	private final int[][] window;
+	private int first, size;
+	private long numAdded;
+
+	// counts
+	private final int[] itemCounts;
+	private Node root = new Node(-1);
+	private Map<String, ItemsetRule> emitted = new LinkedHashMap<String, ItemsetRule>();
+
+	/**
+	 * Tracked itemset; the path from the root spells its items.
+	 */
+	private static final class Node {
+		final int item;
+		int count;
+		boolean fresh;
+		int[] childItems = new int[0];
+		Node[] children = new Node[0];
+
+		Node(int item) {
+			this.item = item;
+		}
+
+		Node child(int item) {
+			int i = Arrays.binarySearch(childItems, item);
+			return i >= 0 ? children[i] : null;
+		}
+
+		Node addChild(int item) {
+			int i = -Arrays.binarySearch(childItems, item) - 1;
+			Node child = new Node(item);
+			childItems = insert(childItems, i, item);
+			Node[] grown = new Node[children.length + 1];
+			System.arraycopy(children, 0, grown, 0, i);
+			grown[i] = child;
+			System.arraycopy(children, i, grown, i + 1, children.length - i);
+			children = grown;
+			return child;
+		}
+
+		private static int[] insert(int[] array, int i, int value) {
+			int[] grown = new int[array.length + 1];
+			System.arraycopy(array, 0, grown, 0, i);
+			grown[i] = value;
+			System.arraycopy(array, i, grown, i + 1, array.length - i);
+			return grown;
+		}
+	}
+
+	/**
+	 * Rules that appeared and disappeared since the previous call of
+	 * changedRules().
+	 */
+	public static class Changes {
+		public final List<ItemsetRule> added, removed;
+
+		Changes(List<ItemsetRule> added, List<ItemsetRule> removed) {
+			this.added = added;
+			this.removed = removed;
+		}
+
+		public boolean isEmpty() {
+			return added.isEmpty() && removed.isEmpty();
+		}
+	}
+
+	public SlidingWindowMiner(Items items, int windowSize, double minSupport, double minConfidence) {
+		this.items = items;
+		this.windowSize = windowSize;
+		this.minSupport = minSupport;
+		this.minConfidence = minConfidence;
+		window = new int[windowSize][];
+		itemCounts = new int[items.numItems()];
+	}
+
+	public synchronized void add(Instance basket) {
+		add(items.transaction(basket));
+	}
+
+	/**
+	 * Adds a basket, its items in increasing order, and expires the oldest
+	 * one if the window is full.
+	 */
+	public synchronized void add(int[] basket) {
+		if (size == windowSize) {
+			if (tumbling) {
+				clear();
+			} else {
+				update(window[first], -1);
+				first = (first + 1) % windowSize;
+				size--;
+			}
+		}
+		window[(first + size) % windowSize] = basket;
+		size++;
+		numAdded++;
+		update(basket, 1);
+	}
+
+	private void clear() {
+		first = 0;
+		size = 0;
+		Arrays.fill(itemCounts, 0);
+		root = new Node(-1);
+	}
+
+	private void update(int[] basket, int delta) {
+		for (int item : basket) {
+			itemCounts[item] += delta;
+		}
+		update(root, basket, 0, delta);
+	}
+
+	private static void update(Node node, int[] basket, int from, int delta) {
+		for (int i = from; i < basket.length && node.children.length > 0; i++) {
+			Node child = node.child(basket[i]);
+			if (child != null) {
+				child.count += delta;
+				update(child, basket, i + 1, delta);
+			}
+		}
+	}
+
+	/**
+	 * Count an itemset needs to be frequent in the current window.
+	 */
+	public synchronized int minCount() {
+		return Math.max(1, (int) Math.ceil(minSupport * size));
+	}
+
+	private int nearCount() {
+		return Math.max(1, (int) Math.ceil(nearFrequentRatio * minSupport * size));
+	}
+
+	/**
+	 * Revises the tracked itemsets: all itemsets whose subsets are
+	 * near-frequent, counting the new ones over the window.
+	 */
+	public synchronized void refresh() {
+		int near = nearCount();
+		Node fresh = new Node(-1);
+		List<Node> level = new ArrayList<Node>();
+		List<int[]> levelSets = new ArrayList<int[]>();
+		for (int item = 0; item < itemCounts.length; item++) {
+			if (itemCounts[item] >= near) {
+				Node node = fresh.addChild(item);
+				node.count = itemCounts[item];
+				level.add(node);
+				levelSets.add(new int[] { item });
+			}
+		}
+		for (int k = 2; k <= maxItemsetSize && !levelSets.isEmpty(); k++) {
+			List<Node> nextLevel = new ArrayList<Node>();
+			List<int[]> nextSets = new ArrayList<int[]>();
+			boolean counting = false;
+			for (int p = 0; p < level.size(); p++) {
+				Node parent = level.get(p);
+				int[] prefix = levelSets.get(p);
+				// join with the near-frequent siblings that follow, i.e. the
+				// near-frequent children of the grandparent after this item
+				Node grandParent = find(fresh, Arrays.copyOf(prefix, k - 2));
+				for (Node sibling : grandParent.children) {
+					if (sibling.item <= parent.item || sibling.count < near) {
+						continue;
+					}
+					int[] candidate = Arrays.copyOf(prefix, k);
+					candidate[k - 1] = sibling.item;
+					if (!subsetsNearFrequent(fresh, candidate, near)) {
+						continue;
+					}
+					Node node = parent.addChild(sibling.item);
+					Node old = find(root, candidate);
+					if (old != null) {
+						node.count = old.count;
+					} else {
+						node.fresh = true;
+						counting = true;
+					}
+					nextLevel.add(node);
+					nextSets.add(candidate);
+				}
+			}
+			if (counting) {
+				for (int b = 0; b < size; b++) {
+					countFresh(fresh, window[(first + b) % windowSize], 0, 1, k);
+				}
+			}
+			level = new ArrayList<Node>();
+			levelSets = new ArrayList<int[]>();
+			for (int c = 0; c < nextLevel.size(); c++) {
+				nextLevel.get(c).fresh = false;
+				if (nextLevel.get(c).count >= near) {
+					level.add(nextLevel.get(c));
+					levelSets.add(nextSets.get(c));
+				}
+			}
+		}
+		root = fresh;
+	}
+
+	private static Node find(Node node, int[] itemset) {
+		for (int i = 0; i < itemset.length && node != null; i++) {
+			node = node.child(itemset[i]);
+		}
+		return node;
+	}
+
+	private static boolean subsetsNearFrequent(Node root, int[] candidate, int near) {
+		// the two subsets that made the candidate are near-frequent already
+		for (int drop = 0; drop < candidate.length - 2; drop++) {
+			int[] subset = new int[candidate.length - 1];
+			for (int i = 0, s = 0; i < candidate.length; i++) {
+				if (i != drop) {
+					subset[s++] = candidate[i];
+				}
+			}
+			Node node = find(root, subset);
+			if (node == null || node.count < near) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// increments the fresh itemsets of the given size contained in the basket
+	private static void countFresh(Node node, int[] basket, int from, int depth, int size) {
+		for (int i = from; i < basket.length && node.children.length > 0; i++) {
+			Node child = node.child(basket[i]);
+			if (child == null) {
+				continue;
+			}
+			if (depth == size) {
+				if (child.fresh) {
+					child.count++;
+				}
+			} else {
+				countFresh(child, basket, i + 1, depth + 1, size);
+			}
+		}
+	}
+
+	/**
+	 * The frequent itemsets of the window, as of the last refresh.
+	 */
+	public synchronized FrequentItemsets itemsets() {
+		FrequentItemsets itemsets = new FrequentItemsets(size);
+		collect(root, new int[0], minCount(), itemsets);
+		return itemsets;
+	}
+
+	private static void collect(Node node, int[] prefix, int minCount, FrequentItemsets itemsets) {
+		for (Node child : node.children) {
+			if (child.count >= minCount) {
+				int[] itemset = Arrays.copyOf(prefix, prefix.length + 1);
+				itemset[prefix.length] = child.item;
+				itemsets.add(itemset, child.count);
+				collect(child, itemset, minCount, itemsets);
+			}
+		}
+	}
+
+	/**
+	 * The rules of the current window, after a refresh.
+	 */
+	public synchronized List<ItemsetRule> rules() {
+		refresh();
+		return itemsets().rules(minConfidence, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * The rules that are new or gone since the previous call.
+	 */
+	public synchronized Changes changedRules() {
+		Map<String, ItemsetRule> current = new LinkedHashMap<String, ItemsetRule>();
+		for (ItemsetRule rule : rules()) {
+			current.put(rule.key(items), rule);
+		}
+		List<ItemsetRule> added = new ArrayList<ItemsetRule>(), removed = new ArrayList<ItemsetRule>();
+		for (Map.Entry<String, ItemsetRule> rule : current.entrySet()) {
+			if (!emitted.containsKey(rule.getKey())) {
+				added.add(rule.getValue());
+			}
+		}
+		for (Map.Entry<String, ItemsetRule> rule : emitted.entrySet()) {
+			if (!current.containsKey(rule.getKey())) {
+				removed.add(rule.getValue());
+			}
+		}
+		emitted = current;
+		return new Changes(added, removed);
+	}
+
+	/**
+	 * Number of baskets in the window.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Number of baskets added since the miner was created.
+	 */
+	public synchronized long numAdded() {
+		return numAdded;
+	}
+
+	public Items getItems() {
+		return items;
+	}
+
+	/*
+	 * Options
+	 */
+
+	/**
+	 * Itemsets with at least this fraction of the minimum count are tracked,
+	 * so that they are counted when they become frequent.
+	 */
+	public synchronized void setNearFrequentRatio(double nearFrequentRatio) {
+		this.nearFrequentRatio = nearFrequentRatio;
+	}
+
+	public synchronized void setMaxItemsetSize(int maxItemsetSize) {
+		this.maxItemsetSize = maxItemsetSize;
+	}
+
+	/**
+	 * Tumbling windows: a full window is emptied instead of sliding.
+	 */
+	public synchronized void setTumbling(boolean tumbling) {
+		this.tumbling = tumbling;
+	}
+
+}
@@ -7,9 +7,18 @@
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
 import weka.core.Instances;
 import weka.associations.Apriori;
+import weka.associations.AssociationRule;
 import weka.associations.FPGrowth;
+import weka.associations.Item;
 
 
 public class Supermarket {
@@ -18,14 +27,84 @@ public class Supermarket {
 		// load data
 		Instances data = new Instances(new BufferedReader(new FileReader("data/supermarket.arff")));
 		// build model
+		long start = System.currentTimeMillis();
 		Apriori model = new Apriori();
 		model.buildAssociations(data);
 		System.out.println(model);
+		System.out.println("Apriori: " + (System.currentTimeMillis() - start) + " ms");
+		
+		// same rules from the vertical miner
+		start = System.currentTimeMillis();
+		Eclat eclat = new Eclat();
+		eclat.buildAssociations(data);
+		System.out.println(eclat);
+		System.out.println("Eclat: " + (System.currentTimeMillis() - start) + " ms, same rules as Apriori: "
+				+ ruleSet(model.getAssociationRules().getRules()).equals(ruleSet(eclat.getRules(), eclat.getItems())));
 		
+		start = System.currentTimeMillis();
 		FPGrowth fpgModel = new FPGrowth();
 		fpgModel.buildAssociations(data);
 		System.out.println(fpgModel);
+		System.out.println("FPGrowth: " + (System.currentTimeMillis() - start) + " ms");
+		
+		// same rules from the array-based tree, mined in parallel
+		start = System.currentTimeMillis();
+		ParallelFPGrowth parallelFpg = new ParallelFPGrowth();
+		parallelFpg.buildAssociations(data);
+		System.out.println(parallelFpg);
+		System.out.println("ParallelFPGrowth: " + (System.currentTimeMillis() - start) + " ms, same rules as FPGrowth: "
+				+ ruleSet(fpgModel.getAssociationRules().getRules())
+						.equals(ruleSet(parallelFpg.getRules(), parallelFpg.getItems())));
 		
+		// the baskets as a stream, rules of the last 1000 baskets
+		SlidingWindowMiner stream = new SlidingWindowMiner(Items.allValues(data), 1000, 0.15, 0.9);
+		for (int i = 0; i < data.numInstances(); i++) {
+			stream.add(data.instance(i));
+			if ((i + 1) % 1000 == 0) {
+				SlidingWindowMiner.Changes changes = stream.changedRules();
+				System.out.println("After " + (i + 1) + " baskets: " + changes.added.size() + " new rules, "
+						+ changes.removed.size() + " rules gone");
+			}
+		}
 		
+		
+	}
+
+	/**
+	 * The rules of a Weka associator as "premise ==> consequence" strings,
+	 * the items of both sides in alphabetical order.
+	 */
+	static Set<String> ruleSet(List<AssociationRule> rules) {
+		Set<String> set = new TreeSet<String>();
+		for (AssociationRule rule : rules) {
+			set.add(itemNames(rule.getPremise()) + " ==> " + itemNames(rule.getConsequence()));
+		}
+		return set;
+	}
+
+	static Set<String> ruleSet(List<ItemsetRule> rules, Items items) {
+		Set<String> set = new TreeSet<String>();
+		for (ItemsetRule rule : rules) {
+			set.add(itemNames(rule.getPremise(), items) + " ==> " + itemNames(rule.getConsequence(), items));
+		}
+		return set;
+	}
+
+	private static String itemNames(Collection<Item> itemset) {
+		List<String> names = new ArrayList<String>();
+		for (Item item : itemset) {
+			names.add(item.toString());
+		}
+		Collections.sort(names);
+		return names.toString();
+	}
+
+	private static String itemNames(int[] itemset, Items items) {
+		List<String> names = new ArrayList<String>();
+		for (int item : itemset) {
+			names.add(items.name(item));
+		}
+		Collections.sort(names);
+		return names.toString();
 	}
 }
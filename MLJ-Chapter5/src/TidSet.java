@@ -0,0 +1,119 @@
+/**
+ * Chapter 5: Compressed transaction id set
+ *
+ * The transactions that contain an itemset, stored the way roaring bitmaps
+ * store a container: a sorted int array while the set is sparse, a bitmap
+ * of long words once it holds more than one transaction in 32 (where the
+ * bitmap is the smaller of the two). Intersections pick the cheapest
+ * method for the two representations: word-wise AND with popcount, bit
+ * probes, or a merge of the sorted arrays.
+ */
+
+import java.util.Arrays;
+
+public final class TidSet {
+
+	private final int numTransactions;
+	private final long[] words; // null when sparse
+	private final int[] tids; // null when dense
+	private final int cardinality;
+
+	private TidSet(int numTransactions, long[] words, int[] tids, int cardinality) {
+		this.numTransactions = numTransactions;
+		this.words = words;
+		this.tids = tids;
+		this.cardinality = cardinality;
+	}
+
+	/**
+	 * The set of the first count ids of the sorted array.
+	 */
+	public static TidSet of(int[] sortedTids, int count, int numTransactions) {
+		if (isDense(count, numTransactions)) {
+			long[] words = new long[(numTransactions + 63) >>> 6];
+			for (int i = 0; i < count; i++) {
+				words[sortedTids[i] >>> 6] |= 1L << sortedTids[i];
+			}
+			return new TidSet(numTransactions, words, null, count);
+		}
+		return new TidSet(numTransactions, null, Arrays.copyOf(sortedTids, count), count);
+	}
+
+	private static boolean isDense(int cardinality, int numTransactions) {
+		return cardinality > numTransactions >>> 5;
+	}
+
+	public int numTransactions() {
+		return numTransactions;
+	}
+
+	public int cardinality() {
+		return cardinality;
+	}
+
+	public boolean contains(int tid) {
+		if (words != null) {
+			return (words[tid >>> 6] & (1L << tid)) != 0;
+		}
+		return Arrays.binarySearch(tids, tid) >= 0;
+	}
+
+	/**
+	 * The intersection with the other set.
+	 */
+	public TidSet and(TidSet other) {
+		if (words != null && other.words != null) {
+			long[] result = new long[words.length];
+			int count = 0;
+			for (int w = 0; w < words.length; w++) {
+				result[w] = words[w] & other.words[w];
+				count += Long.bitCount(result[w]);
+			}
+			if (isDense(count, numTransactions)) {
+				return new TidSet(numTransactions, result, null, count);
+			}
+			int[] sparse = new int[count];
+			for (int w = 0, i = 0; w < result.length; w++) {
+				for (long word = result[w]; word != 0; word &= word - 1) {
+					sparse[i++] = (w << 6) + Long.numberOfTrailingZeros(word);
+				}
+			}
+			return new TidSet(numTransactions, null, sparse, count);
+		}
+		if (words != null) {
+			return other.and(this);
+		}
+		int[] result = new int[Math.min(cardinality, other.cardinality)];
+		int count = 0;
+		if (other.words != null) {
+			for (int tid : tids) {
+				if ((other.words[tid >>> 6] & (1L << tid)) != 0) {
+					result[count++] = tid;
+				}
+			}
+		} else {
+			int[] a = tids, b = other.tids;
+			for (int i = 0, j = 0; i < a.length && j < b.length;) {
+				if (a[i] < b[j]) {
+					i++;
+				} else if (a[i] > b[j]) {
+					j++;
+				} else {
+					result[count++] = a[i];
+					i++;
+					j++;
+				}
+			}
+		}
+		return new TidSet(numTransactions, null, count == result.length ? result : Arrays.copyOf(result, count),
+				count);
+	}
+
+	/**
+	 * Bytes held by the set.
+	 */
+	public long sizeInBytes() {
+		return words != null ? 8L * words.length : 4L * tids.length;
+	}
+
+}
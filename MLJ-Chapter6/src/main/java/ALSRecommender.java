@@ -0,0 +1,570 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+
+/**
+ * Matrix factorization recommender trained with alternating least squares.
+ *
+ * Every user and item gets a vector of numFeatures factors, stored row
+ * after row in one float[] per side. Training alternates between the two
+ * sides: with the item factors fixed, each user's factors are the solution
+ * of a k x k least squares problem over the items the user rated, and the
+ * other way round. The rows of a side are independent, so they are solved
+ * in blocks on a ForkJoinPool.
+ *
+ * Explicit training fits the ratings, regularized by lambda times the
+ * number of ratings of the row (ALS-WR). Implicit training treats every
+ * rating as an interaction with confidence 1 + alpha * rating, negative
+ * ratings counting as 0, and fits all the cells of the matrix, the unrated
+ * ones as 0 with confidence 1 (Hu, Koren and Volinsky); the sum over the
+ * unrated cells comes from the Gram matrix of the fixed side, computed
+ * once per sweep. The 0 ratings of the BX data are interactions too.
+ *
+ * A recommendation is the top of the dot products of the user's factors
+ * with all item factors, scanned in blocks. Users that are not in the
+ * factors, such as anonymous sessions or users added to the model since
+ * training, are folded in: their factors are one k x k solve against the
+ * item factors, so the cost of a request does not depend on how many
+ * neighbours the user's items have. refresh() retrains; until then,
+ * changed ratings of trained users are not reflected.
+ */
+public class ALSRecommender implements Recommender {
+
+	private static final int USER_BLOCK = 256;
+	private static final int SCAN_BLOCK = 1024;
+	private static final long SEED = 1234L;
+
+	private final DataModel dataModel;
+	private final int numFeatures;
+	private final double lambda;
+	private final int numIterations;
+	private final boolean implicit;
+	private final double alpha;
+	private final ForkJoinPool pool;
+
+	private volatile Factors factors;
+
+	/**
+	 * The ratings in compressed rows and the factors trained on them;
+	 * replaced as a whole by refresh().
+	 */
+	private static final class Factors {
+		final int k;
+		final long[] userIDs, itemIDs;
+		// ratings by user and by item, positions in the other side's IDs
+		final int[] userOffsets, userItems;
+		final float[] userValues;
+		final int[] itemOffsets, itemUsers;
+		final float[] itemValues;
+		final float[] x, y;
+		// y^T y, for folding in implicit users
+		double[] itemGram;
+
+		Factors(DataModel model, int k) throws TasteException {
+			this.k = k;
+			userIDs = ids(model.getUserIDs(), model.getNumUsers());
+			itemIDs = ids(model.getItemIDs(), model.getNumItems());
+
+			userOffsets = new int[userIDs.length + 1];
+			PreferenceArray[] rows = new PreferenceArray[userIDs.length];
+			for (int u = 0; u < userIDs.length; u++) {
+				rows[u] = model.getPreferencesFromUser(userIDs[u]);
+				userOffsets[u + 1] = userOffsets[u] + rows[u].length();
+			}
+			userItems = new int[userOffsets[userIDs.length]];
+			userValues = new float[userItems.length];
+			int[] counts = new int[itemIDs.length + 1];
+			for (int u = 0; u < userIDs.length; u++) {
+				PreferenceArray prefs = rows[u];
+				rows[u] = null;
+				for (int p = 0, at = userOffsets[u]; p < prefs.length(); p++, at++) {
+					userItems[at] = Arrays.binarySearch(itemIDs, prefs.getItemID(p));
+					userValues[at] = prefs.getValue(p);
+					counts[userItems[at] + 1]++;
+				}
+			}
+
+			itemOffsets = counts;
+			for (int i = 0; i < itemIDs.length; i++) {
+				itemOffsets[i + 1] += itemOffsets[i];
+			}
+			itemUsers = new int[userItems.length];
+			itemValues = new float[userItems.length];
+			int[] next = Arrays.copyOf(itemOffsets, itemIDs.length);
+			for (int u = 0; u < userIDs.length; u++) {
+				for (int at = userOffsets[u]; at < userOffsets[u + 1]; at++) {
+					int item = userItems[at];
+					itemUsers[next[item]] = u;
+					itemValues[next[item]++] = userValues[at];
+				}
+			}
+
+			x = new float[userIDs.length * k];
+			y = new float[itemIDs.length * k];
+			Random random = new Random(SEED);
+			for (int i = 0; i < y.length; i++) {
+				y[i] = (float) (random.nextGaussian() * 0.1);
+			}
+		}
+
+		private static long[] ids(LongPrimitiveIterator it, int count) {
+			long[] ids = new long[count];
+			int n = 0;
+			while (it.hasNext() && n < count) {
+				ids[n++] = it.nextLong();
+			}
+			ids = Arrays.copyOf(ids, n);
+			Arrays.sort(ids);
+			return ids;
+		}
+	}
+
+	public ALSRecommender(DataModel dataModel, int numFeatures, double lambda, int numIterations)
+			throws TasteException {
+		this(dataModel, numFeatures, lambda, numIterations, false, 0.0, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Trains on the pool; alpha is the confidence per rating point of
+	 * implicit training, ignored otherwise.
+	 */
+	public ALSRecommender(DataModel dataModel, int numFeatures, double lambda, int numIterations, boolean implicit,
+			double alpha, ForkJoinPool pool) throws TasteException {
+		if (numFeatures <= 0 || numIterations <= 0) {
+			throw new IllegalArgumentException("numFeatures and numIterations must be positive");
+		}
+		if (!(lambda > 0.0)) {
+			// keeps every system positive definite
+			throw new IllegalArgumentException("lambda must be positive: " + lambda);
+		}
+		this.dataModel = dataModel;
+		this.numFeatures = numFeatures;
+		this.lambda = lambda;
+		this.numIterations = numIterations;
+		this.implicit = implicit;
+		this.alpha = alpha;
+		this.pool = pool;
+		factors = train();
+	}
+
+	/*
+	 * Training
+	 */
+
+	private Factors train() throws TasteException {
+		Factors f = new Factors(dataModel, numFeatures);
+		for (int iteration = 0; iteration < numIterations; iteration++) {
+			double[] itemGram = implicit ? gram(f.y, f.itemIDs.length, f.k) : null;
+			pool.invoke(new Solve(f.userOffsets, f.userItems, f.userValues, f.y, itemGram, f.x, 0,
+					f.userIDs.length));
+			double[] userGram = implicit ? gram(f.x, f.userIDs.length, f.k) : null;
+			pool.invoke(new Solve(f.itemOffsets, f.itemUsers, f.itemValues, f.x, userGram, f.y, 0,
+					f.itemIDs.length));
+		}
+		if (implicit) {
+			f.itemGram = gram(f.y, f.itemIDs.length, f.k);
+		}
+		return f;
+	}
+
+	// m^T m of the rows x k matrix
+	private static double[] gram(float[] m, int rows, int k) {
+		double[] gram = new double[k * k];
+		for (int r = 0; r < rows; r++) {
+			int base = r * k;
+			for (int a = 0; a < k; a++) {
+				double ma = m[base + a];
+				for (int b = a; b < k; b++) {
+					gram[a * k + b] += ma * m[base + b];
+				}
+			}
+		}
+		mirror(gram, k);
+		return gram;
+	}
+
+	private static void mirror(double[] a, int k) {
+		for (int i = 0; i < k; i++) {
+			for (int j = 0; j < i; j++) {
+				a[i * k + j] = a[j * k + i];
+			}
+		}
+	}
+
+	/**
+	 * Solves the rows [from, to) of one side against the fixed factors of
+	 * the other.
+	 */
+	private final class Solve extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] offsets, others;
+		private final float[] values, fixed, target;
+		private final double[] fixedGram;
+		private final int from, to;
+
+		Solve(int[] offsets, int[] others, float[] values, float[] fixed, double[] fixedGram, float[] target,
+				int from, int to) {
+			this.offsets = offsets;
+			this.others = others;
+			this.values = values;
+			this.fixed = fixed;
+			this.fixedGram = fixedGram;
+			this.target = target;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > USER_BLOCK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Solve(offsets, others, values, fixed, fixedGram, target, from, mid), new Solve(offsets,
+						others, values, fixed, fixedGram, target, mid, to));
+				return;
+			}
+			double[] a = new double[numFeatures * numFeatures];
+			double[] b = new double[numFeatures];
+			for (int row = from; row < to; row++) {
+				solveRow(fixed, fixedGram, others, values, offsets[row], offsets[row + 1], a, b);
+				for (int c = 0; c < numFeatures; c++) {
+					target[row * numFeatures + c] = (float) b[c];
+				}
+			}
+		}
+	}
+
+	/**
+	 * The factors that best fit the ratings [start, end) against the fixed
+	 * factors, left in b; a is scratch space.
+	 */
+	private void solveRow(float[] fixed, double[] fixedGram, int[] others, float[] values, int start, int end,
+			double[] a, double[] b) {
+		int k = numFeatures;
+		Arrays.fill(b, 0.0);
+		if (start == end) {
+			return;
+		}
+		if (implicit) {
+			System.arraycopy(fixedGram, 0, a, 0, a.length);
+		} else {
+			Arrays.fill(a, 0.0);
+		}
+		for (int p = start; p < end; p++) {
+			int base = others[p] * k;
+			// explicit: weight 1, target the rating; implicit: confidence c, target 1
+			double value = implicit ? Math.max(0.0, values[p]) : values[p];
+			double weight = implicit ? alpha * value : 1.0;
+			double rhs = implicit ? 1.0 + alpha * value : value;
+			for (int i = 0; i < k; i++) {
+				double fi = fixed[base + i];
+				b[i] += rhs * fi;
+				double wfi = weight * fi;
+				for (int j = i; j < k; j++) {
+					a[i * k + j] += wfi * fixed[base + j];
+				}
+			}
+		}
+		double regularization = implicit ? lambda : lambda * (end - start);
+		for (int i = 0; i < k; i++) {
+			a[i * k + i] += regularization;
+		}
+		mirror(a, k);
+		choleskySolve(a, b, k);
+	}
+
+	/**
+	 * Solves a x = b for a symmetric positive definite a, in place: a is
+	 * overwritten by its Cholesky factor and b by x.
+	 */
+	static void choleskySolve(double[] a, double[] b, int k) {
+		for (int j = 0; j < k; j++) {
+			double d = a[j * k + j];
+			for (int p = 0; p < j; p++) {
+				d -= a[j * k + p] * a[j * k + p];
+			}
+			d = Math.sqrt(Math.max(d, Double.MIN_NORMAL));
+			a[j * k + j] = d;
+			for (int i = j + 1; i < k; i++) {
+				double s = a[i * k + j];
+				for (int p = 0; p < j; p++) {
+					s -= a[i * k + p] * a[j * k + p];
+				}
+				a[i * k + j] = s / d;
+			}
+		}
+		// L z = b, then L^T x = z
+		for (int i = 0; i < k; i++) {
+			double s = b[i];
+			for (int p = 0; p < i; p++) {
+				s -= a[i * k + p] * b[p];
+			}
+			b[i] = s / a[i * k + i];
+		}
+		for (int i = k - 1; i >= 0; i--) {
+			double s = b[i];
+			for (int p = i + 1; p < k; p++) {
+				s -= a[p * k + i] * b[p];
+			}
+			b[i] = s / a[i * k + i];
+		}
+	}
+
+	/*
+	 * Fold-in
+	 */
+
+	/**
+	 * The factors of a user with these preferences, solved against the
+	 * current item factors; null when none of the items is known.
+	 */
+	public float[] foldIn(PreferenceArray preferences) {
+		return foldIn(factors, preferences);
+	}
+
+	// against the item factors of f, which the caller keeps using
+	private float[] foldIn(Factors f, PreferenceArray preferences) {
+		int[] items = new int[preferences.length()];
+		float[] values = new float[items.length];
+		int n = 0;
+		for (int p = 0; p < items.length; p++) {
+			int item = Arrays.binarySearch(f.itemIDs, preferences.getItemID(p));
+			if (item >= 0) {
+				items[n] = item;
+				values[n++] = preferences.getValue(p);
+			}
+		}
+		if (n == 0) {
+			return null;
+		}
+		double[] b = new double[numFeatures];
+		solveRow(f.y, f.itemGram, items, values, 0, n, new double[numFeatures * numFeatures], b);
+		float[] user = new float[numFeatures];
+		for (int c = 0; c < numFeatures; c++) {
+			user[c] = (float) b[c];
+		}
+		return user;
+	}
+
+	/**
+	 * Recommendations for a session that is not in the model, such as an
+	 * anonymous visitor; the items of the session are left out.
+	 */
+	public List<RecommendedItem> recommend(PreferenceArray preferences, int howMany, IDRescorer rescorer) {
+		Factors f = factors;
+		float[] user = foldIn(f, preferences);
+		if (user == null) {
+			return new ArrayList<RecommendedItem>();
+		}
+		return topN(f, user, 0, known(f, preferences), howMany, rescorer);
+	}
+
+	// positions of the session's items that are in the factors, sorted
+	private static int[] known(Factors f, PreferenceArray preferences) {
+		int[] items = new int[preferences.length()];
+		int n = 0;
+		for (int p = 0; p < items.length; p++) {
+			int item = Arrays.binarySearch(f.itemIDs, preferences.getItemID(p));
+			if (item >= 0) {
+				items[n++] = item;
+			}
+		}
+		items = Arrays.copyOf(items, n);
+		Arrays.sort(items);
+		return items;
+	}
+
+	/*
+	 * Recommender
+	 */
+
+	public List<RecommendedItem> recommend(long userID, int howMany) throws TasteException {
+		return recommend(userID, howMany, null, false);
+	}
+
+	public List<RecommendedItem> recommend(long userID, int howMany, boolean includeKnownItems)
+			throws TasteException {
+		return recommend(userID, howMany, null, includeKnownItems);
+	}
+
+	public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+		return recommend(userID, howMany, rescorer, false);
+	}
+
+	public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer, boolean includeKnownItems)
+			throws TasteException {
+		Factors f = factors;
+		int u = Arrays.binarySearch(f.userIDs, userID);
+		if (u >= 0) {
+			int[] knownItems = new int[0];
+			if (!includeKnownItems) {
+				knownItems = Arrays.copyOfRange(f.userItems, f.userOffsets[u], f.userOffsets[u + 1]);
+				Arrays.sort(knownItems);
+			}
+			return topN(f, f.x, u * f.k, knownItems, howMany, rescorer);
+		}
+		// not trained on, fold in the user's current ratings
+		PreferenceArray preferences = dataModel.getPreferencesFromUser(userID);
+		float[] user = foldIn(f, preferences);
+		if (user == null) {
+			return new ArrayList<RecommendedItem>();
+		}
+		return topN(f, user, 0, includeKnownItems ? new int[0] : known(f, preferences), howMany, rescorer);
+	}
+
+	/**
+	 * The howMany items with the largest dot product with the user's
+	 * factors at offset, leaving out the sorted known item positions.
+	 * Scores are computed a block of items at a time and only those that
+	 * beat the current N-th best reach the heap.
+	 */
+	private static List<RecommendedItem> topN(Factors f, float[] users, int offset, int[] knownItems, int howMany,
+			IDRescorer rescorer) {
+		int k = f.k;
+		int numItems = f.itemIDs.length;
+		howMany = Math.min(howMany, numItems);
+		if (howMany <= 0) {
+			return new ArrayList<RecommendedItem>();
+		}
+		int[] heapItems = new int[howMany];
+		float[] heapValues = new float[howMany];
+		int size = 0;
+		float[] scores = new float[SCAN_BLOCK];
+		int nextKnown = 0;
+
+		for (int blockStart = 0; blockStart < numItems; blockStart += SCAN_BLOCK) {
+			int blockEnd = Math.min(numItems, blockStart + SCAN_BLOCK);
+			for (int item = blockStart, base = blockStart * k; item < blockEnd; item++, base += k) {
+				float dot = 0.0f;
+				for (int c = 0; c < k; c++) {
+					dot += users[offset + c] * f.y[base + c];
+				}
+				scores[item - blockStart] = dot;
+			}
+			for (int item = blockStart; item < blockEnd; item++) {
+				while (nextKnown < knownItems.length && knownItems[nextKnown] < item) {
+					nextKnown++;
+				}
+				if (nextKnown < knownItems.length && knownItems[nextKnown] == item) {
+					continue;
+				}
+				float value = scores[item - blockStart];
+				if (rescorer == null) {
+					if (size == howMany && value <= heapValues[0]) {
+						continue;
+					}
+				} else {
+					long itemID = f.itemIDs[item];
+					if (rescorer.isFiltered(itemID)) {
+						continue;
+					}
+					value = (float) rescorer.rescore(itemID, value);
+					if (Float.isNaN(value) || size == howMany && value <= heapValues[0]) {
+						continue;
+					}
+				}
+				if (size < howMany) {
+					TopKItemSimilarity.siftUp(heapItems, heapValues, size++, item, value);
+				} else {
+					TopKItemSimilarity.siftDown(heapItems, heapValues, size, item, value);
+				}
+			}
+		}
+
+		RecommendedItem[] result = new RecommendedItem[size];
+		while (size > 0) {
+			result[size - 1] = new GenericRecommendedItem(f.itemIDs[heapItems[0]], heapValues[0]);
+			size--;
+			TopKItemSimilarity.siftDown(heapItems, heapValues, size, heapItems[size], heapValues[size]);
+		}
+		return new ArrayList<RecommendedItem>(Arrays.asList(result));
+	}
+
+	/**
+	 * The rating if the user has one, otherwise the dot product of the
+	 * factors.
+	 */
+	public float estimatePreference(long userID, long itemID) throws TasteException {
+		Float actual = dataModel.getPreferenceValue(userID, itemID);
+		if (actual != null) {
+			return actual;
+		}
+		Factors f = factors;
+		int item = Arrays.binarySearch(f.itemIDs, itemID);
+		if (item < 0) {
+			throw new NoSuchItemException(itemID);
+		}
+		float[] users = f.x;
+		int offset;
+		int u = Arrays.binarySearch(f.userIDs, userID);
+		if (u >= 0) {
+			offset = u * f.k;
+		} else {
+			users = foldIn(f, dataModel.getPreferencesFromUser(userID));
+			if (users == null) {
+				throw new NoSuchUserException(userID);
+			}
+			offset = 0;
+		}
+		float dot = 0.0f;
+		for (int c = 0; c < f.k; c++) {
+			dot += users[offset + c] * f.y[item * f.k + c];
+		}
+		return dot;
+	}
+
+	/**
+	 * Passed to the model; trained users keep their factors until refresh().
+	 */
+	public void setPreference(long userID, long itemID, float value) throws TasteException {
+		dataModel.setPreference(userID, itemID, value);
+	}
+
+	public void removePreference(long userID, long itemID) throws TasteException {
+		dataModel.removePreference(userID, itemID);
+	}
+
+	public DataModel getDataModel() {
+		return dataModel;
+	}
+
+	/**
+	 * Refreshes the model and retrains; requests are served from the old
+	 * factors meanwhile.
+	 */
+	public synchronized void refresh(Collection<Refreshable> alreadyRefreshed) {
+		if (!alreadyRefreshed.contains(dataModel)) {
+			alreadyRefreshed.add(dataModel);
+			dataModel.refresh(alreadyRefreshed);
+		}
+		try {
+			factors = train();
+		} catch (TasteException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		Factors f = factors;
+		return "ALSRecommender[" + (implicit ? "implicit" : "explicit") + ", features:" + numFeatures + ", users:"
+				+ f.userIDs.length + ", items:" + f.itemIDs.length + "]";
+	}
+
+}
@@ -0,0 +1,262 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Titles and authors of the books, looked up by ISBN in a memory-mapped
+ * file instead of a map built at every start.
+ *
+ * build() converts BX-Books.csv once into:
+ *
+ *   int magic, version, numBooks
+ *   int[numBooks + 1] offsets of the ISBNs in the key blob
+ *   int[2 * numBooks + 1] offsets of the titles and authors in the text blob
+ *   key blob: the ISBNs in UTF-8, sorted by their bytes
+ *   text blob: title and author of each book in UTF-8, in ISBN order
+ *
+ * open() maps the file without reading it, so a start costs nothing and
+ * only the pages touched by lookups are ever loaded. A lookup is a binary
+ * search that compares the ISBN with the key blob in place; only the
+ * title or author found is decoded into a String.
+ */
+public class BookMetadataStore {
+
+	private static final int MAGIC = 0x424f4f4b; // "BOOK"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 12;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// the BX dump is in Latin-1
+	public static final Charset BX_CHARSET = Charset.forName("ISO-8859-1");
+
+	private final int numBooks;
+	private final IntBuffer keyOffsets, textOffsets;
+	private final ByteBuffer keys, texts;
+
+	private BookMetadataStore(MappedByteBuffer buffer) throws IOException {
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a book metadata store");
+		}
+		numBooks = buffer.getInt(8);
+		int position = HEADER_BYTES;
+		keyOffsets = slice(buffer, position).asIntBuffer();
+		position += 4 * (numBooks + 1);
+		textOffsets = slice(buffer, position).asIntBuffer();
+		position += 4 * (2 * numBooks + 1);
+		keys = slice(buffer, position);
+		position += keyOffsets.get(numBooks);
+		texts = slice(buffer, position);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int position) {
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(position);
+		return duplicate.slice();
+	}
+
+	public static BookMetadataStore open(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Book metadata store larger than 2 GB: " + file);
+			}
+			return new BookMetadataStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Whether the store is missing or older than the CSV file.
+	 */
+	public static boolean isStale(File store, File csv) {
+		return !store.isFile() || store.lastModified() < csv.lastModified();
+	}
+
+	public int size() {
+		return numBooks;
+	}
+
+	/**
+	 * The title of the book, or null for an unknown ISBN.
+	 */
+	public String get(String isbn) {
+		return getTitle(isbn);
+	}
+
+	public String getTitle(String isbn) {
+		int book = indexOf(isbn);
+		return book < 0 ? null : text(2 * book);
+	}
+
+	public String getAuthor(String isbn) {
+		int book = indexOf(isbn);
+		return book < 0 ? null : text(2 * book + 1);
+	}
+
+	public boolean contains(String isbn) {
+		return indexOf(isbn) >= 0;
+	}
+
+	private String text(int field) {
+		int from = textOffsets.get(field);
+		byte[] bytes = new byte[textOffsets.get(field + 1) - from];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = texts.get(from + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	private int indexOf(String isbn) {
+		byte[] key = isbn.getBytes(UTF8);
+		int low = 0, high = numBooks - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compareKey(mid, key);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	// the stored key of the book against the given one, by unsigned bytes
+	private int compareKey(int book, byte[] key) {
+		int from = keyOffsets.get(book), length = keyOffsets.get(book + 1) - from;
+		for (int i = 0; i < length && i < key.length; i++) {
+			int cmp = (keys.get(from + i) & 0xff) - (key[i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return length - key.length;
+	}
+
+	@Override
+	public String toString() {
+		return "BookMetadataStore[books:" + numBooks + "]";
+	}
+
+	/*
+	 * Offline conversion
+	 */
+
+	public static void build(File csv, File store) throws IOException {
+		build(csv, BX_CHARSET, store);
+	}
+
+	/**
+	 * Converts a BX-Books.csv file, "ISBN";"Book-Title";"Book-Author";...
+	 * with a header line, into a store. The first line of a repeated ISBN
+	 * wins.
+	 */
+	public static void build(File csv, Charset charset, File store) throws IOException {
+		List<byte[][]> books = new ArrayList<byte[][]>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(csv), charset));
+		try {
+			String line = in.readLine(); // header
+			while ((line = in.readLine()) != null) {
+				String[] parts = splitFields(line);
+				if (parts.length < 3) {
+					continue;
+				}
+				books.add(new byte[][] { parts[0].getBytes(UTF8), parts[1].getBytes(UTF8),
+						parts[2].getBytes(UTF8) });
+			}
+		} finally {
+			in.close();
+		}
+		// stable, so the first of equal ISBNs stays first
+		Collections.sort(books, new Comparator<byte[][]>() {
+			public int compare(byte[][] a, byte[][] b) {
+				return compareBytes(a[0], b[0]);
+			}
+		});
+		List<byte[][]> unique = new ArrayList<byte[][]>(books.size());
+		for (byte[][] book : books) {
+			if (unique.isEmpty() || compareBytes(unique.get(unique.size() - 1)[0], book[0]) != 0) {
+				unique.add(book);
+			}
+		}
+
+		File tmp = new File(store.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(unique.size());
+			long offset = 0;
+			out.writeInt(0);
+			for (byte[][] book : unique) {
+				offset += book[0].length;
+				out.writeInt((int) offset);
+			}
+			offset = 0;
+			out.writeInt(0);
+			for (byte[][] book : unique) {
+				offset += book[1].length;
+				out.writeInt((int) offset);
+				offset += book[2].length;
+				out.writeInt((int) offset);
+			}
+			if (offset > Integer.MAX_VALUE) {
+				throw new IOException("Book metadata larger than 2 GB: " + csv);
+			}
+			for (byte[][] book : unique) {
+				out.write(book[0]);
+			}
+			for (byte[][] book : unique) {
+				out.write(book[1]);
+				out.write(book[2]);
+			}
+		} finally {
+			out.close();
+		}
+		if (store.exists() && !store.delete() || !tmp.renameTo(store)) {
+			throw new IOException("Cannot replace " + store);
+		}
+	}
+
+	// "a";"b;c";"d" -> a, b;c, d
+	private static String[] splitFields(String line) {
+		String trimmed = line.trim();
+		if (trimmed.startsWith("\"")) {
+			trimmed = trimmed.substring(1);
+		}
+		if (trimmed.endsWith("\"")) {
+			trimmed = trimmed.substring(0, trimmed.length() - 1);
+		}
+		return trimmed.split("\";\"", -1);
+	}
+
+	private static int compareBytes(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return a.length - b.length;
+	}
+
+}
@@ -1,20 +1,17 @@
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.eval.RecommenderBuilder;
-import org.apache.mahout.cf.taste.eval.RecommenderEvaluator;
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
-import org.apache.mahout.cf.taste.impl.eval.AverageAbsoluteDifferenceRecommenderEvaluator;
 import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
 import org.apache.mahout.cf.taste.impl.model.file.FileDataModel;
 import org.apache.mahout.cf.taste.impl.neighborhood.ThresholdUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.recommender.AllSimilarItemsCandidateItemsStrategy;
 import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
 import org.apache.mahout.cf.taste.impl.recommender.GenericUserBasedRecommender;
 import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
@@ -39,7 +36,11 @@ import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
  */
 public class BookRecommender implements RecommenderBuilder  {
 
-	static HashMap<String, String> books;
+	static BookMetadataStore books;
+	static final int SIMILAR_ITEMS = 50;
+	static final int FEATURES = 20;
+	static final double LAMBDA = 0.065;
+	static final int ITERATIONS = 10;
 
 	public static void main(String[] args) throws Exception {
 
@@ -47,22 +48,21 @@ public class BookRecommender implements RecommenderBuilder  {
 
 		itemBased();
 //		 userBased();
+//		 factorized();
 		evaluateRecommender();
 
 	}
 
-	public static HashMap<String, String> loadBooks(String filename) throws Exception {
-		HashMap<String, String> map = new HashMap<String, String>();
-		BufferedReader in = new BufferedReader(new FileReader(filename));
-		String line = "";
-		while ((line = in.readLine()) != null) {
-			String parts[] = line.replace("\"", "").split(";");
-			map.put(parts[0], parts[1]);
+	public static BookMetadataStore loadBooks(String filename) throws Exception {
+		// converted once to a memory-mapped store, only mapped afterwards
+		File csv = new File(filename);
+		File store = new File(filename.replaceFirst("\\.csv$", "") + ".store");
+		if (BookMetadataStore.isStale(store, csv)) {
+			BookMetadataStore.build(csv, store);
 		}
-		in.close();
-		// System.out.println(map.toString());
-		System.out.println("Total items: " + map.size());
-		return map;
+		BookMetadataStore metadata = BookMetadataStore.open(store);
+		System.out.println("Total items: " + metadata.size());
+		return metadata;
 	}
 
 	public static ItemBasedRecommender itemBased() throws Exception {
@@ -74,10 +74,10 @@ public class BookRecommender implements RecommenderBuilder  {
 		// ItemItemSimilarity iis = new ItemItemSimilarity(0, 0, 0);
 		// ItemSimilarity itemSimilarity = new
 		// GenericItemSimilarity(correlations);
-		ItemSimilarity itemSimilarity = new PearsonCorrelationSimilarity(dataModel);
+		// ItemSimilarity itemSimilarity = new PearsonCorrelationSimilarity(dataModel);
 
-		ItemBasedRecommender recommender = new GenericItemBasedRecommender(
-				dataModel, itemSimilarity);
+		ItemBasedRecommender recommender = new CachingItemBasedRecommender(itemBased(dataModel,
+				similarityIndex(dataModel)), 10000, 10, TimeUnit.MINUTES);
 
 		IDRescorer rescorer = new MyRescorer();
 
@@ -100,6 +100,81 @@ public class BookRecommender implements RecommenderBuilder  {
 		return recommender;
 	}
 
+	// Pearson neighbours precomputed once, memory-mapped afterwards
+	private static TopKItemSimilarity similarityIndex(StringItemIdFileDataModel dataModel) throws Exception {
+		File index = new File("data/BX-Book-Ratings.topk");
+		if (TopKItemSimilarity.isStale(index, dataModel.getDataFile(), SIMILAR_ITEMS)) {
+			TopKItemSimilarity.build(dataModel, index, SIMILAR_ITEMS);
+		}
+		return TopKItemSimilarity.open(index);
+	}
+
+	public static ItemBasedRecommender itemBased(DataModel dataModel, ItemSimilarity itemSimilarity) {
+		AllSimilarItemsCandidateItemsStrategy candidates = new AllSimilarItemsCandidateItemsStrategy(itemSimilarity);
+		return new GenericItemBasedRecommender(dataModel, itemSimilarity, candidates, candidates);
+	}
+
+	public static ItemBasedRecommender incrementalUpdates() throws Exception {
+
+		// Ratings change in place, the similarity sums of the indexed neighbours follow them
+		StringItemIdFileDataModel fileModel = loadFromFile("data/BX-Book-Ratings.csv", ";");
+		MutableDataModel dataModel = new MutableDataModel(fileModel);
+		IncrementalItemSimilarity similarity = new IncrementalItemSimilarity(dataModel,
+				similarityIndex(fileModel));
+		CachingItemBasedRecommender recommender = new CachingItemBasedRecommender(itemBased(dataModel,
+				similarity), 10000, 10, TimeUnit.MINUTES);
+
+		long userID = 276704;
+		long itemID = fileModel.readItemIDFromString("042513976X");
+		int noItems = 10;
+
+		long start = System.nanoTime();
+		recommender.setPreference(userID, itemID, 10);
+		System.out.println("Rating applied in " + (System.nanoTime() - start) / 1000 + " us");
+
+		System.out.println("\nRecommended items:");
+		for (RecommendedItem item : recommender.recommend(userID, noItems)) {
+			String itemISBN = fileModel.getItemIDAsString(item.getItemID());
+			System.out.println("Item: " + books.get(itemISBN) + " | Item id: "
+					+ itemISBN + " | Value: " + item.getValue());
+		}
+
+		return recommender;
+	}
+
+	public static ALSRecommender factorized() throws Exception {
+
+		// 20 factors per user and item, 10 sweeps of alternating least squares
+		StringItemIdFileDataModel model = loadFromFile("data/BX-Book-Ratings.csv", ";");
+		long start = System.currentTimeMillis();
+		ALSRecommender recommender = new ALSRecommender(model, FEATURES, LAMBDA, ITERATIONS);
+		System.out.println(recommender + " trained in " + (System.currentTimeMillis() - start) + " ms");
+
+		long userID = 276704;
+		int noItems = 10;
+
+		System.out.println("\nRecommended items:");
+		for (RecommendedItem item : recommender.recommend(userID, noItems)) {
+			String itemISBN = model.getItemIDAsString(item.getItemID());
+			System.out.println("Item: " + books.get(itemISBN) + " | Item id: "
+					+ itemISBN + " | Value: " + item.getValue());
+		}
+
+		// a visitor who only rated one book, folded into the item factors
+		PreferenceArray session = new GenericUserPreferenceArray(1);
+		session.setUserID(0, -1);
+		session.setItemID(0, model.readItemIDFromString("042513976X"));
+		session.setValue(0, 10);
+		System.out.println("\nRecommended for the session:");
+		for (RecommendedItem item : recommender.recommend(session, noItems, null)) {
+			String itemISBN = model.getItemIDAsString(item.getItemID());
+			System.out.println("Item: " + books.get(itemISBN) + " | Item id: "
+					+ itemISBN + " | Value: " + item.getValue());
+		}
+
+		return recommender;
+	}
+
 	public static void userBased() throws Exception {
 		
 		StringItemIdFileDataModel model = loadFromFile("data/BX-Book-Ratings.csv",";");
@@ -197,21 +272,30 @@ public class BookRecommender implements RecommenderBuilder  {
 	}
 	
 	public static void evaluateRecommender() throws Exception{
+		// parsed once, split and rebuilt on the training part only
 		StringItemIdFileDataModel dataModel = loadFromFile("data/BX-Book-Ratings.csv",";");
-		RecommenderEvaluator evaluator = new AverageAbsoluteDifferenceRecommenderEvaluator();
+		RecommenderEvaluation evaluation = new RecommenderEvaluation(dataModel);
 		RecommenderBuilder builder = new BookRecommender();
-		double result = evaluator.evaluate(builder, null, dataModel, 0.9, 1.0);
+		RecommenderEvaluation.Result result = evaluation.evaluate(builder, 0.9, 1.0, 10);
 		System.out.println(result);
+
+		RecommenderBuilder factorization = new RecommenderBuilder() {
+			public Recommender buildRecommender(DataModel trainingModel) throws TasteException {
+				return new ALSRecommender(trainingModel, FEATURES, LAMBDA, ITERATIONS);
+			}
+		};
+		System.out.println("ALS: " + evaluation.evaluate(factorization, 0.9, 1.0, 10));
 	}
 
-	public Recommender buildRecommender(DataModel arg0) {
+	public Recommender buildRecommender(DataModel trainingModel) throws TasteException {
 		try {
-			return BookRecommender.itemBased();
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			File index = File.createTempFile("training", ".topk");
+			index.deleteOnExit();
+			TopKItemSimilarity.build(trainingModel, index, SIMILAR_ITEMS);
+			return itemBased(trainingModel, TopKItemSimilarity.open(index));
+		} catch (IOException e) {
+			throw new TasteException(e);
 		}
-		return null;
 	}
 
 }
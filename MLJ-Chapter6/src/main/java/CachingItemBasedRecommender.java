@@ -0,0 +1,296 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPair;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.Rescorer;
+
+/**
+ * Item-based recommender that caches the recommendations of users and the
+ * most similar items of items in a WTinyLfuCache.
+ *
+ * Unlike Mahout's CachingRecommender, a preference change only drops what
+ * it can affect: the lists of the user, the similar items of the item and
+ * every cached list the item appears in. This is exact when the item
+ * similarities are precomputed (TopKItemSimilarity) and do not change.
+ * With similarities that follow the ratings (IncrementalItemSimilarity) a
+ * change also moves the similarities of the item with its neighbours,
+ * and so the lists of other users who rated those neighbours and the
+ * similar items of the neighbours; these are not dropped and may be stale
+ * for up to the time to live. Calls with a rescorer, several items or
+ * known items are passed through, as are estimates.
+ *
+ * A list that is being computed while its user or one of its items
+ * changes is not linked yet, so it cannot be dropped. Every change stamps
+ * the user and the item (by stripe) with the cache's invalidation clock,
+ * whether anything of them is cached or not, and a list is only cached if
+ * neither its user or item nor any item in it changed after its load
+ * started.
+ *
+ * Recommendations for the temporary users of
+ * PlusAnonymousConcurrentUserDataModel must not go through the cache: the
+ * same user ID stands for a different session every time.
+ */
+public class CachingItemBasedRecommender implements ItemBasedRecommender {
+
+	private final ItemBasedRecommender delegate;
+	private final WTinyLfuCache<Key, List<RecommendedItem>> cache;
+
+	// cached keys by the user and the items they depend on, under the cache's lock
+	private final Map<Long, Set<Key>> byUser = new HashMap<Long, Set<Key>>();
+	private final Map<Long, Set<Key>> byItem = new HashMap<Long, Set<Key>>();
+
+	// last change of the users and items of each stripe, under the cache's lock
+	private static final int STRIPES = 4096;
+	private final long[] userChangedAt = new long[STRIPES];
+	private final long[] itemChangedAt = new long[STRIPES];
+
+	private static final class Key {
+		final boolean similarItems;
+		final long id;
+		final int howMany;
+
+		Key(boolean similarItems, long id, int howMany) {
+			this.similarItems = similarItems;
+			this.id = id;
+			this.howMany = howMany;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return similarItems == other.similarItems && id == other.id && howMany == other.howMany;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = id * 0x9e3779b97f4a7c15L + howMany * 31 + (similarItems ? 1 : 0);
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+
+	public CachingItemBasedRecommender(ItemBasedRecommender delegate, int maximumSize, long timeToLive,
+			TimeUnit unit) {
+		this.delegate = delegate;
+		cache = new WTinyLfuCache<Key, List<RecommendedItem>>(maximumSize, timeToLive, unit);
+		cache.setListener(new WTinyLfuCache.Listener<Key, List<RecommendedItem>>() {
+			public void added(Key key, List<RecommendedItem> value) {
+				link(key.similarItems ? byItem : byUser, key.id, key);
+				for (RecommendedItem item : value) {
+					link(byItem, item.getItemID(), key);
+				}
+			}
+
+			public void removed(Key key, List<RecommendedItem> value, WTinyLfuCache.Cause cause) {
+				unlink(key.similarItems ? byItem : byUser, key.id, key);
+				for (RecommendedItem item : value) {
+					unlink(byItem, item.getItemID(), key);
+				}
+			}
+		});
+		cache.setValidator(new WTinyLfuCache.Validator<Key, List<RecommendedItem>>() {
+			public boolean isCurrent(Key key, List<RecommendedItem> value, long loadStart) {
+				long[] changedAt = key.similarItems ? itemChangedAt : userChangedAt;
+				if (changedAt[stripe(key.id)] > loadStart) {
+					return false;
+				}
+				for (RecommendedItem item : value) {
+					if (itemChangedAt[stripe(item.getItemID())] > loadStart) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+	}
+
+	private static int stripe(long id) {
+		long h = id * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) & (STRIPES - 1);
+	}
+
+	private static void link(Map<Long, Set<Key>> index, long id, Key key) {
+		Set<Key> keys = index.get(id);
+		if (keys == null) {
+			keys = new HashSet<Key>();
+			index.put(id, keys);
+		}
+		keys.add(key);
+	}
+
+	private static void unlink(Map<Long, Set<Key>> index, long id, Key key) {
+		Set<Key> keys = index.get(id);
+		if (keys != null && keys.remove(key) && keys.isEmpty()) {
+			index.remove(id);
+		}
+	}
+
+	private List<RecommendedItem> cached(Key key, Callable<List<RecommendedItem>> loader) throws TasteException {
+		try {
+			return cache.get(key, loader);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof TasteException ? (TasteException) e.getCause() : new TasteException(
+					e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TasteException(e);
+		}
+	}
+
+	public WTinyLfuCache<?, ?> getCache() {
+		return cache;
+	}
+
+	/*
+	 * Invalidation
+	 */
+
+	/**
+	 * Drops the cached recommendations of the user.
+	 */
+	public void invalidateUser(long userID) {
+		invalidate(byUser, userChangedAt, userID);
+	}
+
+	/**
+	 * Drops the similar items of the item and every cached list that
+	 * contains it.
+	 */
+	public void invalidateItem(long itemID) {
+		invalidate(byItem, itemChangedAt, itemID);
+	}
+
+	private void invalidate(Map<Long, Set<Key>> index, long[] changedAt, long id) {
+		Set<Key> keys;
+		synchronized (cache) {
+			// loads running now are not cached, even if nothing is linked yet
+			changedAt[stripe(id)] = cache.tick();
+			Set<Key> linked = index.get(id);
+			keys = linked == null ? Collections.<Key> emptySet() : new HashSet<Key>(linked);
+		}
+		for (Key key : keys) {
+			cache.invalidate(key);
+		}
+	}
+
+	public void setPreference(long userID, long itemID, float value) throws TasteException {
+		delegate.setPreference(userID, itemID, value);
+		invalidateUser(userID);
+		invalidateItem(itemID);
+	}
+
+	public void removePreference(long userID, long itemID) throws TasteException {
+		delegate.removePreference(userID, itemID);
+		invalidateUser(userID);
+		invalidateItem(itemID);
+	}
+
+	/**
+	 * Reloads the delegate; everything may have changed, so the cache is
+	 * emptied.
+	 */
+	public void refresh(Collection<Refreshable> alreadyRefreshed) {
+		delegate.refresh(alreadyRefreshed);
+		cache.invalidateAll();
+	}
+
+	/*
+	 * Cached calls
+	 */
+
+	public List<RecommendedItem> recommend(final long userID, final int howMany) throws TasteException {
+		return cached(new Key(false, userID, howMany), new Callable<List<RecommendedItem>>() {
+			public List<RecommendedItem> call() throws TasteException {
+				return Collections.unmodifiableList(delegate.recommend(userID, howMany));
+			}
+		});
+	}
+
+	public List<RecommendedItem> recommend(long userID, int howMany, boolean includeKnownItems)
+			throws TasteException {
+		return includeKnownItems ? delegate.recommend(userID, howMany, true) : recommend(userID, howMany);
+	}
+
+	public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+		return rescorer == null ? recommend(userID, howMany) : delegate.recommend(userID, howMany, rescorer);
+	}
+
+	public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer,
+			boolean includeKnownItems) throws TasteException {
+		if (rescorer == null && !includeKnownItems) {
+			return recommend(userID, howMany);
+		}
+		return delegate.recommend(userID, howMany, rescorer, includeKnownItems);
+	}
+
+	public List<RecommendedItem> mostSimilarItems(final long itemID, final int howMany) throws TasteException {
+		return cached(new Key(true, itemID, howMany), new Callable<List<RecommendedItem>>() {
+			public List<RecommendedItem> call() throws TasteException {
+				return Collections.unmodifiableList(delegate.mostSimilarItems(itemID, howMany));
+			}
+		});
+	}
+
+	public List<RecommendedItem> mostSimilarItems(long itemID, int howMany, Rescorer<LongPair> rescorer)
+			throws TasteException {
+		return rescorer == null ? mostSimilarItems(itemID, howMany) : delegate.mostSimilarItems(itemID, howMany,
+				rescorer);
+	}
+
+	/*
+	 * Passed through
+	 */
+
+	public List<RecommendedItem> mostSimilarItems(long[] itemIDs, int howMany) throws TasteException {
+		return delegate.mostSimilarItems(itemIDs, howMany);
+	}
+
+	public List<RecommendedItem> mostSimilarItems(long[] itemIDs, int howMany, boolean excludeItemIfNotSimilarToAll)
+			throws TasteException {
+		return delegate.mostSimilarItems(itemIDs, howMany, excludeItemIfNotSimilarToAll);
+	}
+
+	public List<RecommendedItem> mostSimilarItems(long[] itemIDs, int howMany, Rescorer<LongPair> rescorer)
+			throws TasteException {
+		return delegate.mostSimilarItems(itemIDs, howMany, rescorer);
+	}
+
+	public List<RecommendedItem> mostSimilarItems(long[] itemIDs, int howMany, Rescorer<LongPair> rescorer,
+			boolean excludeItemIfNotSimilarToAll) throws TasteException {
+		return delegate.mostSimilarItems(itemIDs, howMany, rescorer, excludeItemIfNotSimilarToAll);
+	}
+
+	public List<RecommendedItem> recommendedBecause(long userID, long itemID, int howMany) throws TasteException {
+		return delegate.recommendedBecause(userID, itemID, howMany);
+	}
+
+	public float estimatePreference(long userID, long itemID) throws TasteException {
+		return delegate.estimatePreference(userID, itemID);
+	}
+
+	public DataModel getDataModel() {
+		return delegate.getDataModel();
+	}
+
+	@Override
+	public String toString() {
+		return "CachingItemBasedRecommender[" + cache + "]";
+	}
+
+}
@@ -0,0 +1,343 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.StampedLock;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+
+/**
+ * Pearson item similarity kept up to date while the ratings of a
+ * MutableDataModel change.
+ *
+ * It tracks the pairs of each item with its neighbours in a precomputed
+ * similarity, usually the lists of a TopKItemSimilarity index, in both
+ * directions. For every tracked pair it keeps the sums the correlation is
+ * made of (count, sum of x, y, x^2, y^2 and xy over the common users), in
+ * a table per item keyed by the other item, so memory grows with the
+ * number of items times K rather than with the number of co-rated pairs.
+ * The sums are computed from the current ratings in parallel, one block of
+ * items per task. A changed rating of a user only affects the pairs of
+ * that item with the user's other items, so only those of them that are
+ * tracked are updated: the old rating's terms are subtracted and the new
+ * one's added, which is exact for the integer ratings of the BX data. The
+ * similarity is then computed from the sums when asked, the same value as
+ * PearsonCorrelationSimilarity on the current ratings. Pairs that are not
+ * tracked have no similarity (NaN), as in the index; new pairs and items
+ * are picked up when the index is rebuilt and the sums seeded again.
+ *
+ * Updates come from the model one at a time; reads use the optimistic
+ * mode of each table's StampedLock and only fall back to a read lock if
+ * the table changed meanwhile.
+ */
+public class IncrementalItemSimilarity implements ItemSimilarity, MutableDataModel.Listener {
+
+	private static final int BLOCK_SIZE = 64;
+
+	private final MutableDataModel model;
+	private final ConcurrentHashMap<Long, PairTable> tables = new ConcurrentHashMap<Long, PairTable>();
+
+	/**
+	 * The sums of one item with each of its co-rated items; x is the
+	 * rating of this item, y the other's.
+	 */
+	private static final class PairTable {
+		final StampedLock lock = new StampedLock();
+		volatile Slots slots = new Slots(8);
+
+		// while seeding, before the table is shared
+		void track(long other) {
+			Slots current = slots;
+			if (current.find(other) >= 0) {
+				return;
+			}
+			if (2 * (current.size + 1) > current.keys.length) {
+				current = current.grown();
+				slots = current;
+			}
+			current.insert(other);
+		}
+	}
+
+	// open addressing by the other item's ID; the keys are fixed once seeded
+	private static final class Slots {
+		final long[] keys;
+		final boolean[] used;
+		final double[] sums;
+		final int[] counts;
+		int size;
+
+		Slots(int capacity) {
+			keys = new long[capacity];
+			used = new boolean[capacity];
+			sums = new double[5 * capacity];
+			counts = new int[capacity];
+		}
+
+		int find(long key) {
+			int mask = keys.length - 1;
+			for (int slot = hash(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+				if (keys[slot] == key) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		int insert(long key) {
+			int mask = keys.length - 1;
+			int slot = hash(key) & mask;
+			while (used[slot]) {
+				slot = (slot + 1) & mask;
+			}
+			used[slot] = true;
+			keys[slot] = key;
+			size++;
+			return slot;
+		}
+
+		// under the table's write lock once seeded
+		void add(int slot, double x, double y, int sign) {
+			int base = 5 * slot;
+			sums[base] += sign * x;
+			sums[base + 1] += sign * y;
+			sums[base + 2] += sign * x * x;
+			sums[base + 3] += sign * y * y;
+			sums[base + 4] += sign * x * y;
+			counts[slot] += sign;
+		}
+
+		Slots grown() {
+			Slots grown = new Slots(2 * keys.length);
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (used[slot]) {
+					int to = grown.insert(keys[slot]);
+					System.arraycopy(sums, 5 * slot, grown.sums, 5 * to, 5);
+					grown.counts[to] = counts[slot];
+				}
+			}
+			return grown;
+		}
+
+		private static int hash(long key) {
+			long h = key * 0x9e3779b97f4a7c15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+
+	public IncrementalItemSimilarity(MutableDataModel model, ItemSimilarity neighbours) throws TasteException {
+		this(model, neighbours, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Tracks each item's pairs with its neighbours in the given similarity,
+	 * sums them over the current ratings on the pool and follows the
+	 * changes of the model from then on.
+	 */
+	public IncrementalItemSimilarity(MutableDataModel model, ItemSimilarity neighbours, ForkJoinPool pool)
+			throws TasteException {
+		this.model = model;
+		synchronized (model) {
+			long[] itemIDs = new long[model.getNumItems()];
+			int numItems = 0;
+			for (LongPrimitiveIterator it = model.getItemIDs(); it.hasNext();) {
+				long itemID = it.nextLong();
+				itemIDs[numItems++] = itemID;
+				long[] similar;
+				try {
+					similar = neighbours.allSimilarItemIDs(itemID);
+				} catch (NoSuchItemException e) {
+					continue; // not in the index yet
+				}
+				for (long other : similar) {
+					table(itemID).track(other);
+					table(other).track(itemID);
+				}
+			}
+			pool.invoke(new Seed(itemIDs, 0, numItems));
+			model.addListener(this);
+		}
+	}
+
+	/**
+	 * Sums the tracked pairs of a block of items over their users' rows;
+	 * each task only writes the tables of its own items.
+	 */
+	private final class Seed extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final long[] itemIDs;
+		private final int from, to;
+
+		Seed(long[] itemIDs, int from, int to) {
+			this.itemIDs = itemIDs;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BLOCK_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Seed(itemIDs, from, mid), new Seed(itemIDs, mid, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				long itemID = itemIDs[i];
+				PairTable table = tables.get(itemID);
+				if (table == null) {
+					continue;
+				}
+				Slots slots = table.slots;
+				MutableDataModel.Row users = model.itemRow(itemID);
+				for (int u = 0; u < users.ids.length; u++) {
+					MutableDataModel.Row row = model.userRow(users.ids[u]);
+					for (int p = 0; p < row.ids.length; p++) {
+						int slot = row.ids[p] == itemID ? -1 : slots.find(row.ids[p]);
+						if (slot >= 0) {
+							slots.add(slot, users.values[u], row.values[p], 1);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void add(long item1, long item2, float value1, float value2, int sign) {
+		update(tables.get(item1), item2, value1, value2, sign);
+		update(tables.get(item2), item1, value2, value1, sign);
+	}
+
+	// the keys do not change once seeded, so untracked pairs are skipped without locking
+	private static void update(PairTable table, long other, double x, double y, int sign) {
+		if (table == null) {
+			return;
+		}
+		int slot = table.slots.find(other);
+		if (slot < 0) {
+			return;
+		}
+		long stamp = table.lock.writeLock();
+		try {
+			table.slots.add(slot, x, y, sign);
+		} finally {
+			table.lock.unlockWrite(stamp);
+		}
+	}
+
+	private PairTable table(long itemID) {
+		PairTable table = tables.get(itemID);
+		if (table == null) {
+			table = new PairTable();
+			tables.put(itemID, table);
+		}
+		return table;
+	}
+
+	public void preferenceChanged(long userID, long itemID, Float oldValue, Float newValue, long[] userItemIDs,
+			float[] userValues) {
+		for (int j = 0; j < userItemIDs.length; j++) {
+			if (oldValue != null) {
+				add(itemID, userItemIDs[j], oldValue, userValues[j], -1);
+			}
+			if (newValue != null) {
+				add(itemID, userItemIDs[j], newValue, userValues[j], 1);
+			}
+		}
+	}
+
+	public double itemSimilarity(long itemID1, long itemID2) throws TasteException {
+		if (model.getNumUsersWithPreferenceFor(itemID1) == 0) {
+			throw new NoSuchItemException(itemID1);
+		}
+		if (model.getNumUsersWithPreferenceFor(itemID2) == 0) {
+			throw new NoSuchItemException(itemID2);
+		}
+		PairTable table = tables.get(itemID1);
+		if (table == null) {
+			return Double.NaN;
+		}
+		double[] sums = new double[6];
+		long stamp = table.lock.tryOptimisticRead();
+		read(table.slots, itemID2, sums);
+		if (!table.lock.validate(stamp)) {
+			stamp = table.lock.readLock();
+			try {
+				read(table.slots, itemID2, sums);
+			} finally {
+				table.lock.unlockRead(stamp);
+			}
+		}
+		return TopKItemSimilarity.pearson((int) sums[5], sums[0], sums[1], sums[2], sums[3], sums[4]);
+	}
+
+	private static void read(Slots slots, long other, double[] sums) {
+		int slot = slots.find(other);
+		if (slot < 0) {
+			sums[5] = 0;
+			return;
+		}
+		System.arraycopy(slots.sums, 5 * slot, sums, 0, 5);
+		sums[5] = slots.counts[slot];
+	}
+
+	public double[] itemSimilarities(long itemID1, long[] itemID2s) throws TasteException {
+		double[] result = new double[itemID2s.length];
+		for (int i = 0; i < itemID2s.length; i++) {
+			result[i] = itemSimilarity(itemID1, itemID2s[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * The tracked items co-rated with the item.
+	 */
+	public long[] allSimilarItemIDs(long itemID) throws TasteException {
+		PairTable table = tables.get(itemID);
+		if (table == null) {
+			if (model.getNumUsersWithPreferenceFor(itemID) == 0) {
+				throw new NoSuchItemException(itemID);
+			}
+			return new long[0];
+		}
+		long stamp = table.lock.tryOptimisticRead();
+		long[] ids = coRated(table.slots);
+		if (!table.lock.validate(stamp)) {
+			stamp = table.lock.readLock();
+			try {
+				ids = coRated(table.slots);
+			} finally {
+				table.lock.unlockRead(stamp);
+			}
+		}
+		return ids;
+	}
+
+	// the keys are fixed, only the counts may change under an optimistic read
+	private static long[] coRated(Slots slots) {
+		long[] ids = new long[slots.size];
+		int n = 0;
+		for (int slot = 0; slot < slots.keys.length; slot++) {
+			if (slots.used[slot] && slots.counts[slot] > 0) {
+				ids[n++] = slots.keys[slot];
+			}
+		}
+		long[] result = new long[n];
+		System.arraycopy(ids, 0, result, 0, n);
+		return result;
+	}
+
+	public void refresh(Collection<Refreshable> alreadyRefreshed) {
+		// follows the model's changes as they happen
+	}
+
+	@Override
+	public String toString() {
+		return "IncrementalItemSimilarity[items:" + tables.size() + "]";
+	}
+
+}
@@ -1,26 +1,41 @@
 import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.model.AbstractIDMigrator;
 
 
 public class ItemMemIDMigrator extends AbstractIDMigrator {
 
-	private FastByIDMap<String> longToString;
+	// ISBNs packed in one byte arena instead of a String per item
+	private StringIDDictionary longToString;
 
 	public ItemMemIDMigrator() {
-		this.longToString = new FastByIDMap<String>(10000);
+		this.longToString = new StringIDDictionary(300000);
 	}
 
-	public void storeMapping(long longID, String stringID) {
-		longToString.put(longID, stringID);
+	@Override
+	public long toLongID(String stringID) {
+		return longToString.getID(stringID, super.toLongID(stringID));
 	}
 
-	public void singleInit(String stringID) throws TasteException {
-		storeMapping(toLongID(stringID), stringID);
+	public void storeMapping(long longID, String stringID) throws TasteException {
+		if (!longToString.put(longID, stringID)) {
+			throw new TasteException("ID " + longID + " or " + stringID + " is mapped already");
+		}
+	}
+
+	/**
+	 * Maps the string to its hash, or to the next free ID if the hash is
+	 * taken by another string, and returns the ID.
+	 */
+	public long singleInit(String stringID) {
+		return longToString.add(stringID, super.toLongID(stringID));
 	}
 
 	public String toStringID(long longID) {
-		return longToString.get(longID);
+		return longToString.getString(longID);
+	}
+
+	public int size() {
+		return longToString.size();
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds.
+ *
+ * Values are counted in log-linear buckets, 16 per power of two, so a
+ * percentile is exact to within 1/16 of its value whatever the range, and
+ * recording is a single atomic increment.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		total.incrementAndGet();
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+		}
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// middle of the values counted in the bucket
+	private static long value(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + ((1L << shift) >>> 1);
+	}
+
+	public long count() {
+		return total.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * The latency below which the fraction p of the recorded ones fall, in
+	 * nanoseconds; 0 when nothing was recorded.
+	 */
+	public long percentile(double p) {
+		long n = 0;
+		long[] snapshot = new long[counts.length()];
+		for (int b = 0; b < snapshot.length; b++) {
+			snapshot[b] = counts.get(b);
+			n += snapshot[b];
+		}
+		long rank = Math.max(1, (long) Math.ceil(p * n));
+		long seen = 0;
+		for (int b = 0; b < snapshot.length; b++) {
+			seen += snapshot[b];
+			if (seen >= rank) {
+				return Math.min(value(b), max.get());
+			}
+		}
+		return 0;
+	}
+
+	public void reset() {
+		for (int b = 0; b < counts.length(); b++) {
+			counts.set(b, 0);
+		}
+		total.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n %d, p50 %.2f ms, p99 %.2f ms, max %.2f ms", count(), percentile(0.5) / 1e6,
+				percentile(0.99) / 1e6, max() / 1e6);
+	}
+
+}
@@ -0,0 +1,435 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/**
+ * Data model that takes rating changes while it is being read.
+ *
+ * Every user and every item has an immutable row: its IDs in increasing
+ * order and the ratings alongside. A change builds the new rows of the
+ * user and the item and swaps them in, so readers never lock and always
+ * see a whole row, and the change is visible as soon as setPreference()
+ * returns. Changes are applied one at a time; listeners, such as
+ * IncrementalItemSimilarity, are told about each one before the next.
+ * Reads are consistent per row only: the item row of a change is swapped
+ * in just before the user row, so a reader may see one without the other
+ * until setPreference() returns.
+ *
+ *   MutableDataModel model = new MutableDataModel(fileModel);
+ *   model.setPreference(276704, itemID, 9);
+ */
+public class MutableDataModel implements DataModel {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Sorted IDs and their ratings; never modified once published.
+	 */
+	static final class Row {
+		static final Row EMPTY = new Row(new long[0], new float[0]);
+
+		final long[] ids;
+		final float[] values;
+
+		Row(long[] ids, float[] values) {
+			this.ids = ids;
+			this.values = values;
+		}
+
+		int indexOf(long id) {
+			return Arrays.binarySearch(ids, id);
+		}
+
+		Row with(long id, float value) {
+			int i = indexOf(id);
+			if (i >= 0) {
+				float[] changed = values.clone();
+				changed[i] = value;
+				return new Row(ids, changed);
+			}
+			i = -i - 1;
+			long[] grownIDs = new long[ids.length + 1];
+			float[] grownValues = new float[ids.length + 1];
+			System.arraycopy(ids, 0, grownIDs, 0, i);
+			System.arraycopy(values, 0, grownValues, 0, i);
+			grownIDs[i] = id;
+			grownValues[i] = value;
+			System.arraycopy(ids, i, grownIDs, i + 1, ids.length - i);
+			System.arraycopy(values, i, grownValues, i + 1, ids.length - i);
+			return new Row(grownIDs, grownValues);
+		}
+
+		Row without(long id) {
+			int i = indexOf(id);
+			if (i < 0) {
+				return this;
+			}
+			long[] shrunkIDs = new long[ids.length - 1];
+			float[] shrunkValues = new float[ids.length - 1];
+			System.arraycopy(ids, 0, shrunkIDs, 0, i);
+			System.arraycopy(values, 0, shrunkValues, 0, i);
+			System.arraycopy(ids, i + 1, shrunkIDs, i, ids.length - i - 1);
+			System.arraycopy(values, i + 1, shrunkValues, i, ids.length - i - 1);
+			return new Row(shrunkIDs, shrunkValues);
+		}
+	}
+
+	/**
+	 * Told about every change, after it is visible and before the next one.
+	 * oldValue or newValue is null when the rating is added or removed;
+	 * the user's other ratings come alongside.
+	 */
+	public interface Listener {
+		void preferenceChanged(long userID, long itemID, Float oldValue, Float newValue, long[] userItemIDs,
+				float[] userValues);
+	}
+
+	private final ConcurrentHashMap<Long, Row> users = new ConcurrentHashMap<Long, Row>();
+	private final ConcurrentHashMap<Long, Row> items = new ConcurrentHashMap<Long, Row>();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	// sorted IDs for iteration, rebuilt when the version moved on
+	private static final class IDs {
+		final int version;
+		final long[] ids;
+
+		IDs(int version, long[] ids) {
+			this.version = version;
+			this.ids = ids;
+		}
+	}
+
+	private volatile int userVersion, itemVersion;
+	private volatile IDs userIDs, itemIDs;
+	private volatile float minPreference = Float.POSITIVE_INFINITY, maxPreference = Float.NEGATIVE_INFINITY;
+
+	/**
+	 * A copy of the ratings of the model.
+	 */
+	public MutableDataModel(DataModel model) throws TasteException {
+		for (LongPrimitiveIterator it = model.getUserIDs(); it.hasNext();) {
+			long userID = it.nextLong();
+			PreferenceArray prefs = model.getPreferencesFromUser(userID);
+			long[] ids = new long[prefs.length()];
+			float[] values = new float[prefs.length()];
+			for (int p = 0; p < ids.length; p++) {
+				ids[p] = prefs.getItemID(p);
+				values[p] = prefs.getValue(p);
+			}
+			users.put(userID, sorted(ids, values));
+		}
+		for (LongPrimitiveIterator it = model.getItemIDs(); it.hasNext();) {
+			long itemID = it.nextLong();
+			PreferenceArray prefs = model.getPreferencesForItem(itemID);
+			long[] ids = new long[prefs.length()];
+			float[] values = new float[prefs.length()];
+			for (int p = 0; p < ids.length; p++) {
+				ids[p] = prefs.getUserID(p);
+				values[p] = prefs.getValue(p);
+				updateRange(values[p]);
+			}
+			items.put(itemID, sorted(ids, values));
+		}
+	}
+
+	private static Row sorted(long[] ids, float[] values) {
+		Integer[] order = new Integer[ids.length];
+		boolean isSorted = true;
+		for (int i = 0; i < ids.length; i++) {
+			order[i] = i;
+			isSorted &= i == 0 || ids[i - 1] < ids[i];
+		}
+		if (isSorted) {
+			return new Row(ids, values);
+		}
+		final long[] unsorted = ids;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return unsorted[a] < unsorted[b] ? -1 : unsorted[a] > unsorted[b] ? 1 : 0;
+			}
+		});
+		long[] sortedIDs = new long[ids.length];
+		float[] sortedValues = new float[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			sortedIDs[i] = ids[order[i]];
+			sortedValues[i] = values[order[i]];
+		}
+		return new Row(sortedIDs, sortedValues);
+	}
+
+	private void updateRange(float value) {
+		if (value < minPreference) {
+			minPreference = value;
+		}
+		if (value > maxPreference) {
+			maxPreference = value;
+		}
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	Row userRow(long userID) {
+		Row row = users.get(userID);
+		return row == null ? Row.EMPTY : row;
+	}
+
+	Row itemRow(long itemID) {
+		Row row = items.get(itemID);
+		return row == null ? Row.EMPTY : row;
+	}
+
+	/*
+	 * Changes
+	 */
+
+	/**
+	 * Adds or updates the rating.
+	 */
+	public synchronized void setPreference(long userID, long itemID, float value) {
+		Row userRow = userRow(userID);
+		int i = userRow.indexOf(itemID);
+		Float oldValue = i >= 0 ? userRow.values[i] : null;
+		Row changedUser = userRow.with(itemID, value);
+		items.put(itemID, itemRow(itemID).with(userID, value));
+		users.put(userID, changedUser);
+		updateRange(value);
+		if (userRow.ids.length == 0) {
+			userVersion++;
+		}
+		if (oldValue == null && items.get(itemID).ids.length == 1) {
+			itemVersion++;
+		}
+		notify(userID, itemID, oldValue, value, changedUser);
+	}
+
+	public synchronized void removePreference(long userID, long itemID) {
+		Row userRow = userRow(userID);
+		int i = userRow.indexOf(itemID);
+		if (i < 0) {
+			return;
+		}
+		Float oldValue = userRow.values[i];
+		Row changedUser = userRow.without(itemID);
+		Row changedItem = itemRow(itemID).without(userID);
+		if (changedItem.ids.length == 0) {
+			items.remove(itemID);
+			itemVersion++;
+		} else {
+			items.put(itemID, changedItem);
+		}
+		if (changedUser.ids.length == 0) {
+			users.remove(userID);
+			userVersion++;
+		} else {
+			users.put(userID, changedUser);
+		}
+		notify(userID, itemID, oldValue, null, changedUser);
+	}
+
+	private void notify(long userID, long itemID, Float oldValue, Float newValue, Row userRow) {
+		if (listeners.isEmpty()) {
+			return;
+		}
+		Row others = userRow.without(itemID);
+		for (Listener listener : listeners) {
+			listener.preferenceChanged(userID, itemID, oldValue, newValue, others.ids, others.values);
+		}
+	}
+
+	/*
+	 * DataModel
+	 */
+
+	public LongPrimitiveIterator getUserIDs() {
+		int version = userVersion;
+		IDs ids = userIDs;
+		if (ids == null || ids.version != version) {
+			ids = new IDs(version, sortedKeys(users));
+			userIDs = ids;
+		}
+		return new IDIterator(ids.ids);
+	}
+
+	public LongPrimitiveIterator getItemIDs() {
+		int version = itemVersion;
+		IDs ids = itemIDs;
+		if (ids == null || ids.version != version) {
+			ids = new IDs(version, sortedKeys(items));
+			itemIDs = ids;
+		}
+		return new IDIterator(ids.ids);
+	}
+
+	private static long[] sortedKeys(ConcurrentHashMap<Long, Row> rows) {
+		long[] ids = new long[rows.size()];
+		int n = 0;
+		for (Long id : rows.keySet()) {
+			if (n == ids.length) {
+				ids = Arrays.copyOf(ids, 2 * n + 1);
+			}
+			ids[n++] = id;
+		}
+		ids = Arrays.copyOf(ids, n);
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	public PreferenceArray getPreferencesFromUser(long userID) throws TasteException {
+		Row row = users.get(userID);
+		if (row == null) {
+			throw new NoSuchUserException(userID);
+		}
+		PreferenceArray prefs = new GenericUserPreferenceArray(row.ids.length);
+		prefs.setUserID(0, userID);
+		for (int i = 0; i < row.ids.length; i++) {
+			prefs.setItemID(i, row.ids[i]);
+			prefs.setValue(i, row.values[i]);
+		}
+		return prefs;
+	}
+
+	public FastIDSet getItemIDsFromUser(long userID) throws TasteException {
+		Row row = users.get(userID);
+		if (row == null) {
+			throw new NoSuchUserException(userID);
+		}
+		FastIDSet ids = new FastIDSet(row.ids.length);
+		for (long id : row.ids) {
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	public PreferenceArray getPreferencesForItem(long itemID) throws TasteException {
+		Row row = items.get(itemID);
+		if (row == null) {
+			throw new NoSuchItemException(itemID);
+		}
+		PreferenceArray prefs = new GenericItemPreferenceArray(row.ids.length);
+		prefs.setItemID(0, itemID);
+		for (int i = 0; i < row.ids.length; i++) {
+			prefs.setUserID(i, row.ids[i]);
+			prefs.setValue(i, row.values[i]);
+		}
+		return prefs;
+	}
+
+	public Float getPreferenceValue(long userID, long itemID) throws TasteException {
+		Row row = users.get(userID);
+		if (row == null) {
+			throw new NoSuchUserException(userID);
+		}
+		int i = row.indexOf(itemID);
+		return i >= 0 ? row.values[i] : null;
+	}
+
+	public Long getPreferenceTime(long userID, long itemID) {
+		return null;
+	}
+
+	public int getNumItems() {
+		return items.size();
+	}
+
+	public int getNumUsers() {
+		return users.size();
+	}
+
+	public int getNumUsersWithPreferenceFor(long itemID) {
+		return itemRow(itemID).ids.length;
+	}
+
+	public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) {
+		long[] a = itemRow(itemID1).ids, b = itemRow(itemID2).ids;
+		int count = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length;) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				count++;
+				i++;
+				j++;
+			}
+		}
+		return count;
+	}
+
+	public boolean hasPreferenceValues() {
+		return true;
+	}
+
+	public float getMaxPreference() {
+		return maxPreference;
+	}
+
+	public float getMinPreference() {
+		return minPreference;
+	}
+
+	public void refresh(Collection<Refreshable> alreadyRefreshed) {
+		// changes are applied as they come
+	}
+
+	@Override
+	public String toString() {
+		return "MutableDataModel[users:" + getNumUsers() + ", items:" + getNumItems() + "]";
+	}
+
+	private static final class IDIterator implements LongPrimitiveIterator {
+		private final long[] ids;
+		private int next;
+
+		IDIterator(long[] ids) {
+			this.ids = ids;
+		}
+
+		public boolean hasNext() {
+			return next < ids.length;
+		}
+
+		public Long next() {
+			return nextLong();
+		}
+
+		public long nextLong() {
+			if (next >= ids.length) {
+				throw new NoSuchElementException();
+			}
+			return ids[next++];
+		}
+
+		public long peek() {
+			if (next >= ids.length) {
+				throw new NoSuchElementException();
+			}
+			return ids[next];
+		}
+
+		public void skip(int n) {
+			next = Math.min(ids.length, next + n);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+}
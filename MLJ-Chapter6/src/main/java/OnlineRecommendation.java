@@ -1,56 +1,231 @@
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.model.PlusAnonymousConcurrentUserDataModel;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
 
-
+/**
+ * Recommendations for known users and for anonymous sessions that bring
+ * their own preferences.
+ *
+ * Anonymous sessions borrow one of the concurrentUsers temporary users of
+ * a PlusAnonymousConcurrentUserDataModel. The temporary users are guarded
+ * by a semaphore: a session waits at most slotTimeoutMillis for one, then
+ * fails with NoAnonymousSlotException instead of running on a null user,
+ * and the user is always cleared and returned. Requests submitted with
+ * submit() run on a bounded executor whose queue rejects work when full,
+ * so an overloaded service sheds load instead of queueing without limit.
+ * The default executor is a fixed pool of platform threads; on a JVM with
+ * virtual threads, pass Executors.newVirtualThreadPerTaskExecutor() and
+ * the slot semaphore still bounds the anonymous sessions.
+ *
+ * When factorization is set, anonymous sessions are folded into its item
+ * factors instead: one k x k solve and a scan, no temporary user needed.
+ *
+ * Recommendations of known users are cached until their ratings change.
+ * Latencies of known and anonymous requests, and of the wait for a slot,
+ * are kept in histograms.
+ */
 public class OnlineRecommendation {
 	Recommender recommender;
+	CachingItemBasedRecommender knownUsers;
+	ALSRecommender factorization;
 	int concurrentUsers = 100;
 	int noItems = 10;
+	long slotTimeoutMillis = 100;
+
+	private final DataModel model;
+	private final PlusAnonymousConcurrentUserDataModel plusModel;
+	private final Semaphore anonymousSlots;
+	private final ExecutorService executor;
+
+	final LatencyHistogram knownLatency = new LatencyHistogram();
+	final LatencyHistogram anonymousLatency = new LatencyHistogram();
+	final LatencyHistogram slotWait = new LatencyHistogram();
+	final AtomicLong rejected = new AtomicLong();
+	final AtomicLong slotTimeouts = new AtomicLong(); // no anonymous user free in time
+	final AtomicLong requestTimeouts = new AtomicLong(); // no result within the request timeout
+
+	/**
+	 * No anonymous user became free in time.
+	 */
+	public static class NoAnonymousSlotException extends TasteException {
+		private static final long serialVersionUID = 1L;
+
+		public NoAnonymousSlotException(String message) {
+			super(message);
+		}
+	}
 
-	public OnlineRecommendation() throws IOException {
+	public OnlineRecommendation() throws IOException, TasteException {
+		this(new StringItemIdFileDataModel(new File("data/chap6/BX-Book-Ratings.csv"), ";"), new File(
+				"data/chap6/BX-Book-Ratings.topk"));
+	}
+
+	private OnlineRecommendation(StringItemIdFileDataModel model, File index) throws IOException, TasteException {
+		this(model, similarity(model, index), 100, Runtime.getRuntime().availableProcessors(), 1000);
+	}
+
+	private static ItemSimilarity similarity(StringItemIdFileDataModel model, File index) throws IOException,
+			TasteException {
+		if (TopKItemSimilarity.isStale(index, model.getDataFile(), BookRecommender.SIMILAR_ITEMS)) {
+			TopKItemSimilarity.build(model, index, BookRecommender.SIMILAR_ITEMS);
+		}
+		return TopKItemSimilarity.open(index);
+	}
 
-		DataModel model = new StringItemIdFileDataModel(new File("data/chap6/BX-Book-Ratings.csv"), ";");
-		PlusAnonymousConcurrentUserDataModel plusModel = new PlusAnonymousConcurrentUserDataModel(model, concurrentUsers);
-		// recommender = ...;
+	public OnlineRecommendation(DataModel model, ItemSimilarity similarity, int concurrentUsers, int numThreads,
+			int queueSize) {
+		this(model, similarity, concurrentUsers, new ThreadPoolExecutor(numThreads, numThreads, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize)));
+	}
 
+	/**
+	 * Runs submitted requests on the given executor.
+	 */
+	public OnlineRecommendation(DataModel model, ItemSimilarity similarity, int concurrentUsers,
+			ExecutorService executor) {
+		this.model = model;
+		this.concurrentUsers = concurrentUsers;
+		this.executor = executor;
+		plusModel = new PlusAnonymousConcurrentUserDataModel(model, concurrentUsers);
+		anonymousSlots = new Semaphore(concurrentUsers, true);
+		ItemBasedRecommender itemBased = BookRecommender.itemBased(plusModel, similarity);
+		recommender = itemBased;
+		// only known users are cached, anonymous IDs are reused by other sessions
+		knownUsers = new CachingItemBasedRecommender(itemBased, 100000, 10, TimeUnit.MINUTES);
 	}
 
 	public List<RecommendedItem> recommend(long userId, PreferenceArray preferences) throws TasteException {
 
 		if (userExistsInDataModel(userId)) {
-			return recommender.recommend(userId, noItems);
+			long start = System.nanoTime();
+			List<RecommendedItem> results = knownUsers.recommend(userId, noItems);
+			knownLatency.record(System.nanoTime() - start);
+			return results;
 		}
 		else {
-			PlusAnonymousConcurrentUserDataModel plusModel = (PlusAnonymousConcurrentUserDataModel) recommender.getDataModel();
+			if (preferences == null || preferences.length() == 0) {
+				// nothing to recommend from
+				return new ArrayList<RecommendedItem>();
+			}
+			long start = System.nanoTime();
+			if (factorization != null) {
+				List<RecommendedItem> results = factorization.recommend(preferences, noItems, null);
+				anonymousLatency.record(System.nanoTime() - start);
+				return results;
+			}
 
-			// Take an available anonymous user form the poll
+			// Take an available anonymous user from the pool, waiting a little
+			try {
+				if (!anonymousSlots.tryAcquire(slotTimeoutMillis, TimeUnit.MILLISECONDS)) {
+					slotTimeouts.incrementAndGet();
+					throw new NoAnonymousSlotException("No anonymous user free within " + slotTimeoutMillis + " ms");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new TasteException(e);
+			}
+			slotWait.record(System.nanoTime() - start);
 			Long anonymousUserID = plusModel.takeAvailableUser();
+			if (anonymousUserID == null) {
+				anonymousSlots.release();
+				throw new NoAnonymousSlotException("Anonymous user pool exhausted");
+			}
 
-			// Set temporary preferences
-			PreferenceArray tempPrefs = preferences;
-			tempPrefs.setUserID(0, anonymousUserID);
-			// tempPrefs.setItemID(0, itemID);
-			plusModel.setTempPrefs(tempPrefs, anonymousUserID);
+			try {
+				// Set temporary preferences, on a copy the caller keeps
+				PreferenceArray tempPrefs = preferences.clone();
+				tempPrefs.setUserID(0, anonymousUserID);
+				plusModel.setTempPrefs(tempPrefs, anonymousUserID);
 
-			List<RecommendedItem> results = recommender.recommend(anonymousUserID, noItems);
-
-			// Release the user back to the poll
-			plusModel.releaseUser(anonymousUserID);
+				List<RecommendedItem> results = recommender.recommend(anonymousUserID, noItems);
+				anonymousLatency.record(System.nanoTime() - start);
+				return results;
+			} finally {
+				// Release the user back to the pool
+				plusModel.clearTempPrefs(anonymousUserID);
+				plusModel.releaseUser(anonymousUserID);
+				anonymousSlots.release();
+			}
+		}
+	}
 
-			return results;
+	/**
+	 * Queues the request; throws RejectedExecutionException when the queue
+	 * is full.
+	 */
+	public Future<List<RecommendedItem>> submit(final long userId, final PreferenceArray preferences) {
+		try {
+			return executor.submit(new Callable<List<RecommendedItem>>() {
+				public List<RecommendedItem> call() throws TasteException {
+					return recommend(userId, preferences);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+	}
 
+	/**
+	 * Runs the request on the executor and waits at most timeoutMillis for
+	 * it, queueing included.
+	 */
+	public List<RecommendedItem> recommend(long userId, PreferenceArray preferences, long timeoutMillis)
+			throws TasteException {
+		Future<List<RecommendedItem>> future;
+		try {
+			future = submit(userId, preferences);
+		} catch (RejectedExecutionException e) {
+			throw new TasteException("Too many requests", e);
+		}
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			requestTimeouts.incrementAndGet();
+			throw new TasteException("No recommendation within " + timeoutMillis + " ms", e);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new TasteException(e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof TasteException ? (TasteException) e.getCause() : new TasteException(
+					e.getCause());
 		}
 	}
-	private boolean userExistsInDataModel(long userId) {
-		// TODO Auto-generated method stub
-		return false;
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private boolean userExistsInDataModel(long userId) throws TasteException {
+		try {
+			model.getPreferencesFromUser(userId);
+			return true;
+		} catch (NoSuchUserException e) {
+			return false;
+		}
 	}
 }
@@ -0,0 +1,126 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/**
+ * Load generator for OnlineRecommendation.
+ *
+ * Runs closed-loop clients against the service for a few seconds at a
+ * time, from fewer clients than anonymous users to several times more.
+ * A fifth of the requests are for known users, the rest are anonymous
+ * sessions that rated a few random books. Prints the throughput, the
+ * latency percentiles of each kind of request and the requests that were
+ * turned away: rejected by the full queue, without an anonymous slot in
+ * time, or not served within the request timeout. The service gets twice
+ * as many threads as anonymous slots, so that beyond anonymousUsers
+ * concurrent sessions requests contend for the slots and the slot
+ * timeout and backpressure show up.
+ *
+ * With "als" as the last argument, anonymous sessions are folded into an
+ * ALSRecommender instead of borrowing a temporary user.
+ *
+ *   java OnlineRecommendationBenchmark [ratings.csv] [anonymousUsers] [timeoutMillis] [als]
+ */
+public class OnlineRecommendationBenchmark {
+
+	private static final long RUN_MILLIS = 5000;
+	private static final int SESSION_ITEMS = 5;
+	private static final double KNOWN_FRACTION = 0.2;
+
+	public static void main(String[] args) throws Exception {
+		String ratings = args.length > 0 ? args[0] : "data/BX-Book-Ratings.csv";
+		int anonymousUsers = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		final long timeoutMillis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+		boolean foldIn = args.length > 3 && args[3].equals("als");
+
+		long start = System.currentTimeMillis();
+		StringItemIdFileDataModel model = BookRecommender.loadFromFile(ratings, ";");
+		File index = new File(ratings.replaceFirst("\\.csv$", "") + ".topk");
+		if (TopKItemSimilarity.isStale(index, model.getDataFile(), BookRecommender.SIMILAR_ITEMS)) {
+			TopKItemSimilarity.build(model, index, BookRecommender.SIMILAR_ITEMS);
+		}
+		TopKItemSimilarity similarity = TopKItemSimilarity.open(index);
+		System.out.println("Model and " + similarity + " ready in " + (System.currentTimeMillis() - start) + " ms");
+		ALSRecommender factorization = null;
+		if (foldIn) {
+			start = System.currentTimeMillis();
+			factorization = new ALSRecommender(model, BookRecommender.FEATURES, BookRecommender.LAMBDA,
+					BookRecommender.ITERATIONS);
+			System.out.println(factorization + " trained in " + (System.currentTimeMillis() - start) + " ms");
+		}
+
+		final long[] userIDs = ids(model.getUserIDs(), model.getNumUsers());
+		final long[] itemIDs = ids(model.getItemIDs(), model.getNumItems());
+		int numThreads = 2 * anonymousUsers;
+
+		for (int clients = Math.max(1, anonymousUsers / 2); clients <= anonymousUsers * 8; clients *= 2) {
+			final OnlineRecommendation service = new OnlineRecommendation(model, similarity, anonymousUsers,
+					numThreads, anonymousUsers * 4);
+			service.factorization = factorization;
+			final AtomicLong served = new AtomicLong(), failed = new AtomicLong();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int c = 0; c < clients; c++) {
+				final Random random = new Random(c);
+				threads.add(new Thread() {
+					public void run() {
+						long end = System.currentTimeMillis() + RUN_MILLIS;
+						while (System.currentTimeMillis() < end) {
+							try {
+								if (random.nextDouble() < KNOWN_FRACTION) {
+									service.recommend(userIDs[random.nextInt(userIDs.length)], null, timeoutMillis);
+								} else {
+									service.recommend(-1, session(itemIDs, random), timeoutMillis);
+								}
+								served.incrementAndGet();
+							} catch (TasteException e) {
+								failed.incrementAndGet();
+							}
+						}
+					}
+				});
+			}
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			service.shutdown();
+
+			System.out.printf("%4d clients: %,8d requests/s, %d failed (%d rejected, %d without a slot, %d timed out)%n",
+					clients, served.get() * 1000 / RUN_MILLIS, failed.get(), service.rejected.get(),
+					service.slotTimeouts.get(), service.requestTimeouts.get());
+			System.out.println("  known:     " + service.knownLatency);
+			System.out.println("  anonymous: " + service.anonymousLatency);
+			System.out.println("  slot wait: " + service.slotWait);
+			System.out.println("  cache:     " + service.knownUsers.getCache());
+		}
+	}
+
+	private static long[] ids(LongPrimitiveIterator it, int count) {
+		long[] ids = new long[count];
+		for (int i = 0; i < count && it.hasNext(); i++) {
+			ids[i] = it.nextLong();
+		}
+		return ids;
+	}
+
+	// a few books the visitor liked
+	private static PreferenceArray session(long[] itemIDs, Random random) {
+		PreferenceArray prefs = new GenericUserPreferenceArray(SESSION_ITEMS);
+		for (int i = 0; i < SESSION_ITEMS; i++) {
+			prefs.setUserID(i, -1);
+			prefs.setItemID(i, itemIDs[random.nextInt(itemIDs.length)]);
+			prefs.setValue(i, 5 + random.nextInt(6));
+		}
+		return prefs;
+	}
+
+}
@@ -0,0 +1,252 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.eval.RecommenderBuilder;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+
+/**
+ * Hold-out evaluation of a recommender on one parsed data model.
+ *
+ * The ratings of a sample of the users are split at random into training
+ * and test ratings; everything else is training data. The recommender is
+ * built by the RecommenderBuilder on the training model only, then the
+ * test users are scored in parallel: every test rating is estimated, for
+ * MAE and RMSE as AverageAbsoluteDifferenceRecommenderEvaluator and
+ * RMSRecommenderEvaluator compute them, and the top k recommendations are
+ * compared with the test ratings above the user's relevance threshold
+ * (mean plus one standard deviation of the user's ratings), for precision
+ * at k. The base model is only read, so one instance can evaluate any
+ * number of builders.
+ *
+ *   RecommenderEvaluation evaluation = new RecommenderEvaluation(dataModel);
+ *   System.out.println(evaluation.evaluate(builder, 0.9, 1.0, 10));
+ */
+public class RecommenderEvaluation {
+
+	private final DataModel base;
+	private long seed = 1;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	public RecommenderEvaluation(DataModel base) {
+		this.base = base;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Error and ranking measures of one evaluation, with the time spent in
+	 * each phase.
+	 */
+	public static class Result {
+		public int numUsers, numEstimates, numMissing, numRanked;
+		public double mae, rmse, precision;
+		public long splitMillis, buildMillis, scoreMillis;
+		int k;
+
+		public double estimatesPerSecond() {
+			return scoreMillis == 0 ? 0 : 1000.0 * numEstimates / scoreMillis;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Users: %d, estimates: %d (%d without estimate)%n"
+					+ "MAE: %.4f, RMSE: %.4f, precision@%d: %.4f (%d users)%n"
+					+ "split %d ms, build %d ms, score %d ms, %.0f estimates/s", numUsers, numEstimates,
+					numMissing, mae, rmse, k, precision, numRanked, splitMillis, buildMillis, scoreMillis,
+					estimatesPerSecond());
+		}
+	}
+
+	// one user's held-out ratings
+	private static final class TestUser {
+		final long userID;
+		final PreferenceArray test;
+		final double relevanceThreshold;
+
+		TestUser(long userID, PreferenceArray test, double relevanceThreshold) {
+			this.userID = userID;
+			this.test = test;
+			this.relevanceThreshold = relevanceThreshold;
+		}
+	}
+
+	// sums over a chunk of the test users
+	private static final class Partial {
+		double absolute, squared, precision;
+		int estimates, missing, ranked;
+	}
+
+	/**
+	 * Holds out 1 - trainingPercentage of the ratings of an
+	 * evaluationPercentage sample of the users.
+	 */
+	public Result evaluate(RecommenderBuilder builder, double trainingPercentage, double evaluationPercentage,
+			int k) throws TasteException {
+		Result result = new Result();
+		result.k = k;
+		Random random = new Random(seed);
+
+		// split
+		long start = System.currentTimeMillis();
+		FastByIDMap<PreferenceArray> training = new FastByIDMap<PreferenceArray>(base.getNumUsers());
+		List<TestUser> testUsers = new ArrayList<TestUser>();
+		for (LongPrimitiveIterator it = base.getUserIDs(); it.hasNext();) {
+			long userID = it.nextLong();
+			PreferenceArray prefs = base.getPreferencesFromUser(userID);
+			if (random.nextDouble() >= evaluationPercentage) {
+				training.put(userID, prefs.clone());
+				continue;
+			}
+			List<Preference> trainingPrefs = new ArrayList<Preference>();
+			List<Preference> testPrefs = new ArrayList<Preference>();
+			double sum = 0, sum2 = 0;
+			for (int i = 0; i < prefs.length(); i++) {
+				Preference pref = new GenericPreference(userID, prefs.getItemID(i), prefs.getValue(i));
+				(random.nextDouble() < trainingPercentage ? trainingPrefs : testPrefs).add(pref);
+				sum += prefs.getValue(i);
+				sum2 += prefs.getValue(i) * prefs.getValue(i);
+			}
+			if (!trainingPrefs.isEmpty()) {
+				training.put(userID, new GenericUserPreferenceArray(trainingPrefs));
+			}
+			if (!testPrefs.isEmpty() && !trainingPrefs.isEmpty()) {
+				double mean = sum / prefs.length();
+				double variance = Math.max(0, sum2 / prefs.length() - mean * mean);
+				testUsers.add(new TestUser(userID, new GenericUserPreferenceArray(testPrefs), mean
+						+ Math.sqrt(variance)));
+			}
+		}
+		result.numUsers = testUsers.size();
+		result.splitMillis = System.currentTimeMillis() - start;
+
+		// build
+		start = System.currentTimeMillis();
+		Recommender recommender = builder.buildRecommender(new GenericDataModel(training));
+		result.buildMillis = System.currentTimeMillis() - start;
+
+		// score
+		start = System.currentTimeMillis();
+		List<Partial> partials = score(recommender, testUsers, k);
+		result.scoreMillis = System.currentTimeMillis() - start;
+
+		double absolute = 0, squared = 0, precision = 0;
+		for (Partial partial : partials) {
+			absolute += partial.absolute;
+			squared += partial.squared;
+			precision += partial.precision;
+			result.numEstimates += partial.estimates;
+			result.numMissing += partial.missing;
+			result.numRanked += partial.ranked;
+		}
+		result.mae = absolute / result.numEstimates;
+		result.rmse = Math.sqrt(squared / result.numEstimates);
+		result.precision = precision / result.numRanked;
+		return result;
+	}
+
+	private List<Partial> score(final Recommender recommender, final List<TestUser> testUsers, final int k)
+			throws TasteException {
+		final float min = base.getMinPreference(), max = base.getMaxPreference();
+		int numChunks = Math.max(1, Math.min(testUsers.size(), numThreads * 8));
+		List<Callable<Partial>> tasks = new ArrayList<Callable<Partial>>();
+		for (int c = 0; c < numChunks; c++) {
+			final int from = c * testUsers.size() / numChunks, to = (c + 1) * testUsers.size() / numChunks;
+			tasks.add(new Callable<Partial>() {
+				public Partial call() throws TasteException {
+					Partial partial = new Partial();
+					for (int u = from; u < to; u++) {
+						score(recommender, testUsers.get(u), k, min, max, partial);
+					}
+					return partial;
+				}
+			});
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		try {
+			List<Partial> partials = new ArrayList<Partial>();
+			for (Future<Partial> future : pool.invokeAll(tasks)) {
+				partials.add(future.get());
+			}
+			return partials;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TasteException(e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof TasteException ? (TasteException) e.getCause() : new TasteException(
+					e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void score(Recommender recommender, TestUser user, int k, float min, float max,
+			Partial partial) throws TasteException {
+		PreferenceArray test = user.test;
+		int relevant = 0;
+		for (int i = 0; i < test.length(); i++) {
+			float estimate;
+			try {
+				estimate = recommender.estimatePreference(user.userID, test.getItemID(i));
+			} catch (NoSuchItemException e) {
+				// the item only occurs in test data
+				estimate = Float.NaN;
+			} catch (NoSuchUserException e) {
+				estimate = Float.NaN;
+			}
+			if (Float.isNaN(estimate)) {
+				partial.missing++;
+			} else {
+				double error = Math.max(min, Math.min(max, estimate)) - test.getValue(i);
+				partial.absolute += Math.abs(error);
+				partial.squared += error * error;
+				partial.estimates++;
+			}
+			if (test.getValue(i) >= user.relevanceThreshold) {
+				relevant++;
+			}
+		}
+		if (relevant == 0 || k <= 0) {
+			return;
+		}
+		List<RecommendedItem> recommended = recommender.recommend(user.userID, k);
+		if (recommended.isEmpty()) {
+			return;
+		}
+		int hits = 0;
+		for (RecommendedItem item : recommended) {
+			for (int i = 0; i < test.length(); i++) {
+				if (test.getItemID(i) == item.getItemID() && test.getValue(i) >= user.relevanceThreshold) {
+					hits++;
+					break;
+				}
+			}
+		}
+		partial.precision += (double) hits / recommended.size();
+		partial.ranked++;
+	}
+
+}
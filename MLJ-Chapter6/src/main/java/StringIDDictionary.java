@@ -0,0 +1,282 @@
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Two-way map between string IDs and long IDs without a String object per
+ * entry.
+ *
+ * The strings are packed one after the other as UTF-8 in a single byte
+ * arena; entry i is the bytes from starts[i] to starts[i + 1] and has the
+ * long ID ids[i]. Two open-addressing tables of entry numbers index the
+ * entries, one by long ID and one by the hash of the bytes, so both
+ * directions are O(1) and the whole dictionary is a handful of primitive
+ * arrays. Mapping a long ID that is taken by another string is refused;
+ * add() resolves such collisions by probing for the next free ID.
+ *
+ * Lookups take a read lock and run concurrently; add() and put() take the
+ * write lock. Strings are encoded into a buffer of the calling thread.
+ */
+public class StringIDDictionary {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte[] arena;
+	private int[] starts;
+	private long[] ids;
+	private int[] hashes;
+	private int size;
+
+	// entry + 1, 0 when empty
+	private int[] byID, byString;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * A string encoded as UTF-8.
+	 */
+	private static class Scratch {
+		byte[] bytes = new byte[64];
+		int length;
+	}
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	public StringIDDictionary() {
+		this(1024);
+	}
+
+	public StringIDDictionary(int expectedSize) {
+		int capacity = Math.max(16, expectedSize);
+		arena = new byte[capacity * 12];
+		starts = new int[capacity + 1];
+		ids = new long[capacity];
+		hashes = new int[capacity];
+		int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		byID = new int[tableSize];
+		byString = new int[tableSize];
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The long ID of the string, or fallback if it is not in the dictionary.
+	 */
+	public long getID(String stringID, long fallback) {
+		Scratch encoded = encode(stringID);
+		lock.readLock().lock();
+		try {
+			int entry = findString(encoded);
+			return entry >= 0 ? ids[entry] : fallback;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The string of the long ID, or null.
+	 */
+	public String getString(long id) {
+		lock.readLock().lock();
+		try {
+			int entry = findID(id);
+			if (entry < 0) {
+				return null;
+			}
+			return new String(arena, starts[entry], starts[entry + 1] - starts[entry], UTF8);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean containsID(long id) {
+		lock.readLock().lock();
+		try {
+			return findID(id) >= 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds the string with the preferred ID, or with the next free ID after
+	 * it if another string has that one, and returns the ID of the string.
+	 * A string already in the dictionary keeps its ID.
+	 */
+	public long add(String stringID, long preferredID) {
+		Scratch encoded = encode(stringID);
+		lock.writeLock().lock();
+		try {
+			int entry = findString(encoded);
+			if (entry >= 0) {
+				return ids[entry];
+			}
+			long id = preferredID;
+			while (findID(id) >= 0) {
+				id++;
+			}
+			insert(id, encoded);
+			return id;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Maps the ID to the string; false if either is mapped to something
+	 * else already.
+	 */
+	public boolean put(long id, String stringID) {
+		Scratch encoded = encode(stringID);
+		lock.writeLock().lock();
+		try {
+			int entry = findString(encoded);
+			if (entry >= 0) {
+				return ids[entry] == id;
+			}
+			if (findID(id) >= 0) {
+				return false;
+			}
+			insert(id, encoded);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Bytes held by the arrays of the dictionary.
+	 */
+	public long sizeInBytes() {
+		lock.readLock().lock();
+		try {
+			return arena.length + 4L * starts.length + 8L * ids.length + 4L * hashes.length + 4L * byID.length + 4L
+					* byString.length;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void insert(long id, Scratch encoded) {
+		int length = encoded.length;
+		if (size == ids.length) {
+			int capacity = ids.length * 2;
+			starts = Arrays.copyOf(starts, capacity + 1);
+			ids = Arrays.copyOf(ids, capacity);
+			hashes = Arrays.copyOf(hashes, capacity);
+		}
+		if (starts[size] + length > arena.length) {
+			arena = Arrays.copyOf(arena, Math.max(arena.length * 2, starts[size] + length));
+		}
+		System.arraycopy(encoded.bytes, 0, arena, starts[size], length);
+		starts[size + 1] = starts[size] + length;
+		ids[size] = id;
+		hashes[size] = hash(encoded.bytes, length);
+		size++;
+		if (2 * size > byID.length) {
+			byID = new int[byID.length * 2];
+			byString = new int[byString.length * 2];
+			for (int entry = 0; entry < size; entry++) {
+				index(entry);
+			}
+		} else {
+			index(size - 1);
+		}
+	}
+
+	private void index(int entry) {
+		int mask = byID.length - 1;
+		int slot = mix(ids[entry]) & mask;
+		while (byID[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		byID[slot] = entry + 1;
+		slot = hashes[entry] & mask;
+		while (byString[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		byString[slot] = entry + 1;
+	}
+
+	private int findID(long id) {
+		int mask = byID.length - 1;
+		for (int slot = mix(id) & mask; byID[slot] != 0; slot = (slot + 1) & mask) {
+			if (ids[byID[slot] - 1] == id) {
+				return byID[slot] - 1;
+			}
+		}
+		return -1;
+	}
+
+	private int findString(Scratch encoded) {
+		int hash = hash(encoded.bytes, encoded.length);
+		int mask = byString.length - 1;
+		for (int slot = hash & mask; byString[slot] != 0; slot = (slot + 1) & mask) {
+			int entry = byString[slot] - 1;
+			if (hashes[entry] == hash && equalsEncoded(entry, encoded)) {
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+	private boolean equalsEncoded(int entry, Scratch encoded) {
+		int start = starts[entry];
+		if (starts[entry + 1] - start != encoded.length) {
+			return false;
+		}
+		for (int i = 0; i < encoded.length; i++) {
+			if (arena[start + i] != encoded.bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// ISBNs are ASCII; anything else goes through the charset
+	private static Scratch encode(String stringID) {
+		Scratch encoded = scratch.get();
+		int length = stringID.length();
+		if (encoded.bytes.length < 4 * length) {
+			encoded.bytes = new byte[4 * length];
+		}
+		for (int i = 0; i < length; i++) {
+			char c = stringID.charAt(i);
+			if (c >= 0x80) {
+				byte[] bytes = stringID.getBytes(UTF8);
+				System.arraycopy(bytes, 0, encoded.bytes, 0, bytes.length);
+				encoded.length = bytes.length;
+				return encoded;
+			}
+			encoded.bytes[i] = (byte) c;
+		}
+		encoded.length = length;
+		return encoded;
+	}
+
+	private static int hash(byte[] bytes, int length) {
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < length; i++) {
+			hash = (hash ^ bytes[i]) * 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int mix(long id) {
+		long h = id * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+}
@@ -1,7 +1,6 @@
 import java.io.File;
 import java.io.IOException;
 
-import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.model.file.FileDataModel;
 
 
@@ -20,15 +19,8 @@ public class StringItemIdFileDataModel  extends FileDataModel{
 			memIdMigtr = new ItemMemIDMigrator();
 		}
 
-		long retValue = memIdMigtr.toLongID(value);
-		if (null == memIdMigtr.toStringID(retValue)) {
-			try {
-				memIdMigtr.singleInit(value);
-			} catch (TasteException e) {
-				e.printStackTrace();
-			}
-		}
-		return retValue;
+		// registers the ISBN, with another ID if its hash collides
+		return memIdMigtr.singleInit(value);
 	}
 
 	String getItemIDAsString(long itemId) {
@@ -0,0 +1,471 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+
+/**
+ * Item similarity served from a precomputed index of the K most similar
+ * items of every item.
+ *
+ * build() computes the Pearson correlation of every pair of co-rated
+ * items, the same value as PearsonCorrelationSimilarity, in parallel over
+ * blocks of items: the items co-rated with an item are found through its
+ * users' rows, so only pairs with at least one common user are ever
+ * touched. The K best neighbours of each item are written to a binary
+ * file, which open() memory-maps:
+ *
+ *   int magic, version, k, numItems
+ *   long[numItems] item IDs, sorted
+ *   int[numItems + 1] offsets of the neighbour lists
+ *   int[offsets[numItems]] neighbours, as positions in the item IDs
+ *   float[offsets[numItems]] similarities, best first in each list
+ *
+ * Pairs that are not in either item's list have no similarity (NaN), so
+ * use the index with AllSimilarItemsCandidateItemsStrategy and a lookup
+ * costs O(K) whatever the size of the ratings.
+ */
+public class TopKItemSimilarity implements ItemSimilarity {
+
+	private static final int MAGIC = 0x544f504b; // "TOPK"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final int BLOCK_SIZE = 64;
+
+	private final int k;
+	private final int numItems;
+	private final LongBuffer itemIDs;
+	private final IntBuffer offsets;
+	private final IntBuffer neighbours;
+	private final FloatBuffer similarities;
+
+	private TopKItemSimilarity(MappedByteBuffer buffer) throws IOException {
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a similarity index");
+		}
+		k = buffer.getInt(8);
+		numItems = buffer.getInt(12);
+		int position = HEADER_BYTES;
+		itemIDs = slice(buffer, position).asLongBuffer();
+		position += 8 * numItems;
+		offsets = slice(buffer, position).asIntBuffer();
+		int total = offsets.get(numItems);
+		position += 4 * (numItems + 1);
+		neighbours = slice(buffer, position).asIntBuffer();
+		position += 4 * total;
+		similarities = slice(buffer, position).asFloatBuffer();
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int position) {
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(position);
+		return duplicate.slice();
+	}
+
+	/**
+	 * Maps an index written by build().
+	 */
+	public static TopKItemSimilarity open(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Similarity index larger than 2 GB: " + file);
+			}
+			return new TopKItemSimilarity(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Whether the index is missing, older than the ratings it was built
+	 * from, or not an index of k neighbours per item.
+	 */
+	public static boolean isStale(File index, File ratings, int k) {
+		if (!index.isFile() || index.lastModified() < ratings.lastModified()) {
+			return true;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(index));
+			try {
+				return in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != k;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public int getNumItems() {
+		return numItems;
+	}
+
+	private int indexOf(long itemID) throws NoSuchItemException {
+		int low = 0, high = numItems - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long id = itemIDs.get(mid);
+			if (id < itemID) {
+				low = mid + 1;
+			} else if (id > itemID) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		throw new NoSuchItemException(itemID);
+	}
+
+	private double lookup(int item, int neighbour) {
+		for (int n = offsets.get(item), end = offsets.get(item + 1); n < end; n++) {
+			if (neighbours.get(n) == neighbour) {
+				return similarities.get(n);
+			}
+		}
+		return Double.NaN;
+	}
+
+	public double itemSimilarity(long itemID1, long itemID2) throws TasteException {
+		int item1 = indexOf(itemID1), item2 = indexOf(itemID2);
+		double similarity = lookup(item1, item2);
+		return Double.isNaN(similarity) ? lookup(item2, item1) : similarity;
+	}
+
+	public double[] itemSimilarities(long itemID1, long[] itemID2s) throws TasteException {
+		double[] result = new double[itemID2s.length];
+		for (int i = 0; i < itemID2s.length; i++) {
+			result[i] = itemSimilarity(itemID1, itemID2s[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * The neighbours of the item, most similar first.
+	 */
+	public long[] allSimilarItemIDs(long itemID) throws TasteException {
+		int item = indexOf(itemID);
+		int from = offsets.get(item);
+		long[] result = new long[offsets.get(item + 1) - from];
+		for (int n = 0; n < result.length; n++) {
+			result[n] = itemIDs.get(neighbours.get(from + n));
+		}
+		return result;
+	}
+
+	public void refresh(Collection<Refreshable> alreadyRefreshed) {
+		// the index is rebuilt offline with build()
+	}
+
+	@Override
+	public String toString() {
+		return "TopKItemSimilarity[k:" + k + ", items:" + numItems + ", neighbours:" + offsets.get(numItems) + "]";
+	}
+
+	/*
+	 * Offline job
+	 */
+
+	public static void build(DataModel model, File file, int k) throws TasteException, IOException {
+		build(model, file, k, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Computes the k nearest neighbours of every item of the model on the
+	 * pool and writes the index to the file.
+	 */
+	public static void build(DataModel model, File file, int k, ForkJoinPool pool) throws TasteException,
+			IOException {
+		if (k <= 0) {
+			throw new IllegalArgumentException("k must be positive: " + k);
+		}
+		Ratings ratings = new Ratings(model);
+		int[][] lists = new int[ratings.itemIDs.length][];
+		float[][] values = new float[ratings.itemIDs.length][];
+		pool.invoke(new Block(ratings, k, lists, values, 0, ratings.itemIDs.length));
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(k);
+			out.writeInt(ratings.itemIDs.length);
+			for (long itemID : ratings.itemIDs) {
+				out.writeLong(itemID);
+			}
+			int offset = 0;
+			out.writeInt(offset);
+			for (int[] list : lists) {
+				offset += list.length;
+				out.writeInt(offset);
+			}
+			for (int[] list : lists) {
+				for (int neighbour : list) {
+					out.writeInt(neighbour);
+				}
+			}
+			for (float[] list : values) {
+				for (float similarity : list) {
+					out.writeFloat(similarity);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+
+	/**
+	 * The ratings by user and by item, with items numbered by their
+	 * position in the sorted item IDs.
+	 */
+	private static final class Ratings {
+		final long[] itemIDs;
+		final int[][] userItems, itemUsers;
+		final float[][] userValues, itemValues;
+
+		Ratings(DataModel model) throws TasteException {
+			itemIDs = new long[model.getNumItems()];
+			int numItems = 0;
+			for (LongPrimitiveIterator it = model.getItemIDs(); it.hasNext();) {
+				itemIDs[numItems++] = it.nextLong();
+			}
+			Arrays.sort(itemIDs);
+
+			List<int[]> items = new ArrayList<int[]>();
+			List<float[]> values = new ArrayList<float[]>();
+			int[] counts = new int[itemIDs.length];
+			for (LongPrimitiveIterator it = model.getUserIDs(); it.hasNext();) {
+				PreferenceArray prefs = model.getPreferencesFromUser(it.nextLong());
+				int[] row = new int[prefs.length()];
+				float[] rowValues = new float[prefs.length()];
+				for (int p = 0; p < row.length; p++) {
+					row[p] = Arrays.binarySearch(itemIDs, prefs.getItemID(p));
+					rowValues[p] = prefs.getValue(p);
+					counts[row[p]]++;
+				}
+				items.add(row);
+				values.add(rowValues);
+			}
+			userItems = items.toArray(new int[items.size()][]);
+			userValues = values.toArray(new float[values.size()][]);
+
+			itemUsers = new int[itemIDs.length][];
+			itemValues = new float[itemIDs.length][];
+			for (int i = 0; i < itemIDs.length; i++) {
+				itemUsers[i] = new int[counts[i]];
+				itemValues[i] = new float[counts[i]];
+				counts[i] = 0;
+			}
+			for (int u = 0; u < userItems.length; u++) {
+				for (int p = 0; p < userItems[u].length; p++) {
+					int item = userItems[u][p];
+					itemUsers[item][counts[item]] = u;
+					itemValues[item][counts[item]++] = userValues[u][p];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sums over the co-rated users of one item and each of the others;
+	 * one per worker thread, cleared after each item.
+	 */
+	private static final class Sums {
+		final double[] sumX, sumY, sumX2, sumY2, sumXY;
+		final int[] count;
+		final int[] touched;
+
+		Sums(int numItems) {
+			sumX = new double[numItems];
+			sumY = new double[numItems];
+			sumX2 = new double[numItems];
+			sumY2 = new double[numItems];
+			sumXY = new double[numItems];
+			count = new int[numItems];
+			touched = new int[numItems];
+		}
+
+		void clear(int item) {
+			sumX[item] = sumY[item] = sumX2[item] = sumY2[item] = sumXY[item] = 0;
+			count[item] = 0;
+		}
+
+		double pearson(int item) {
+			return TopKItemSimilarity.pearson(count[item], sumX[item], sumY[item], sumX2[item], sumY2[item],
+					sumXY[item]);
+		}
+	}
+
+	/**
+	 * The correlation from its sums over n common users, as in
+	 * PearsonCorrelationSimilarity: NaN without common users or variance.
+	 */
+	static double pearson(int n, double sumX, double sumY, double sumX2, double sumY2, double sumXY) {
+		if (n == 0) {
+			return Double.NaN;
+		}
+		double meanX = sumX / n, meanY = sumY / n;
+		double centeredSumXY = sumXY - meanY * sumX;
+		double centeredSumX2 = sumX2 - meanX * sumX;
+		double centeredSumY2 = sumY2 - meanY * sumY;
+		double denominator = Math.sqrt(centeredSumX2) * Math.sqrt(centeredSumY2);
+		if (denominator == 0.0) {
+			return Double.NaN;
+		}
+		return Math.max(-1.0, Math.min(1.0, centeredSumXY / denominator));
+	}
+
+	private static final class Block extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final ThreadLocal<Sums> SUMS = new ThreadLocal<Sums>();
+
+		private final Ratings ratings;
+		private final int k;
+		private final int[][] lists;
+		private final float[][] values;
+		private final int from, to;
+
+		Block(Ratings ratings, int k, int[][] lists, float[][] values, int from, int to) {
+			this.ratings = ratings;
+			this.k = k;
+			this.lists = lists;
+			this.values = values;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BLOCK_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Block(ratings, k, lists, values, from, mid), new Block(ratings, k, lists, values, mid,
+						to));
+				return;
+			}
+			Sums sums = SUMS.get();
+			if (sums == null || sums.count.length != ratings.itemIDs.length) {
+				sums = new Sums(ratings.itemIDs.length);
+				SUMS.set(sums);
+			}
+			int[] heapItems = new int[k];
+			float[] heapValues = new float[k];
+			for (int item = from; item < to; item++) {
+				int numTouched = 0;
+				int[] users = ratings.itemUsers[item];
+				float[] xs = ratings.itemValues[item];
+				for (int u = 0; u < users.length; u++) {
+					double x = xs[u];
+					int[] row = ratings.userItems[users[u]];
+					float[] ys = ratings.userValues[users[u]];
+					for (int p = 0; p < row.length; p++) {
+						int other = row[p];
+						if (other == item) {
+							continue;
+						}
+						if (sums.count[other]++ == 0) {
+							sums.touched[numTouched++] = other;
+						}
+						double y = ys[p];
+						sums.sumX[other] += x;
+						sums.sumY[other] += y;
+						sums.sumX2[other] += x * x;
+						sums.sumY2[other] += y * y;
+						sums.sumXY[other] += x * y;
+					}
+				}
+
+				// the k best in a min-heap
+				int size = 0;
+				for (int t = 0; t < numTouched; t++) {
+					int other = sums.touched[t];
+					double similarity = sums.pearson(other);
+					sums.clear(other);
+					if (Double.isNaN(similarity)) {
+						continue;
+					}
+					float value = (float) similarity;
+					if (size < k) {
+						siftUp(heapItems, heapValues, size++, other, value);
+					} else if (value > heapValues[0]) {
+						siftDown(heapItems, heapValues, size, other, value);
+					}
+				}
+				int[] list = new int[size];
+				float[] listValues = new float[size];
+				while (size > 0) {
+					list[size - 1] = heapItems[0];
+					listValues[size - 1] = heapValues[0];
+					size--;
+					siftDown(heapItems, heapValues, size, heapItems[size], heapValues[size]);
+				}
+				lists[item] = list;
+				values[item] = listValues;
+			}
+		}
+	}
+
+	// min-heap of the best values; the smallest is at the root
+	static void siftUp(int[] items, float[] values, int i, int item, float value) {
+		while (i > 0 && values[(i - 1) >>> 1] > value) {
+			items[i] = items[(i - 1) >>> 1];
+			values[i] = values[(i - 1) >>> 1];
+			i = (i - 1) >>> 1;
+		}
+		items[i] = item;
+		values[i] = value;
+	}
+
+	// replaces the root
+	static void siftDown(int[] items, float[] values, int size, int item, float value) {
+		int i = 0;
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && values[child + 1] < values[child]) {
+				child++;
+			}
+			if (values[child] >= value) {
+				break;
+			}
+			items[i] = items[child];
+			values[i] = values[child];
+			i = child;
+		}
+		if (size > 0) {
+			items[i] = item;
+			values[i] = value;
+		}
+	}
+
+}
@@ -0,0 +1,369 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size- and time-bounded cache with the W-TinyLFU policy.
+ *
+ * New entries go to a small LRU window (1% of the size). An entry pushed
+ * out of the window enters the main space only if a count-min sketch of
+ * recent accesses says it is used more often than the entry it would
+ * evict, so one-off keys never displace hot ones. The main space is a
+ * segmented LRU: entries hit again move from probation to the protected
+ * segment (80% of the main space). Entries older than the time to live
+ * are dropped when they are next read.
+ *
+ * get() computes a missing value once: concurrent misses for the same key
+ * wait for the first one. A value loaded while its key was invalidated, or
+ * while the whole cache was, is returned but not cached, so an
+ * invalidation is never undone by a computation that started before it.
+ * Invalidations are stamped with the time of an invalidation clock per
+ * stripe of keys, whether the key was cached or not; a load is compared
+ * with the stamp of its own stripe only. A Validator can reject loads on
+ * other grounds, such as stamps of its own taken with tick(). The policy
+ * runs under one lock; loading runs outside of it.
+ */
+public class WTinyLfuCache<K, V> {
+
+	public enum Cause {
+		EVICTED, EXPIRED, INVALIDATED, REPLACED
+	}
+
+	/**
+	 * Told about entries entering and leaving the cache, under the cache's
+	 * lock.
+	 */
+	public interface Listener<K, V> {
+		void added(K key, V value);
+
+		void removed(K key, V value, Cause cause);
+	}
+
+	/**
+	 * Decides, under the cache's lock, whether a value whose load started
+	 * at the given time of the invalidation clock may be cached.
+	 */
+	public interface Validator<K, V> {
+		boolean isCurrent(K key, V value, long loadStart);
+	}
+
+	private static final class Entry<V> {
+		final V value;
+		final long expiresAt;
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final int windowCapacity, mainCapacity, protectedCapacity;
+	private final long ttlNanos;
+	private final LinkedHashMap<K, Entry<V>> window, probation, protectedSegment;
+	private final FrequencySketch sketch;
+	private final ConcurrentHashMap<K, FutureTask<V>> loading = new ConcurrentHashMap<K, FutureTask<V>>();
+	private static final int STRIPES = 4096;
+
+	// invalidation clock, and the last invalidation of each stripe of keys
+	private final AtomicLong clock = new AtomicLong();
+	private final long[] invalidatedAt = new long[STRIPES];
+	private long clearedAt;
+	private Listener<K, V> listener;
+	private Validator<K, V> validator;
+
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), coalesced = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong(), expirations = new AtomicLong(),
+			invalidations = new AtomicLong();
+
+	public WTinyLfuCache(int maximumSize, long timeToLive, TimeUnit unit) {
+		windowCapacity = Math.max(1, maximumSize / 100);
+		mainCapacity = Math.max(1, maximumSize - windowCapacity);
+		protectedCapacity = (int) (mainCapacity * 0.8);
+		ttlNanos = unit.toNanos(timeToLive);
+		window = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+		probation = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+		protectedSegment = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+		sketch = new FrequencySketch(maximumSize);
+	}
+
+	public synchronized void setListener(Listener<K, V> listener) {
+		this.listener = listener;
+	}
+
+	public synchronized void setValidator(Validator<K, V> validator) {
+		this.validator = validator;
+	}
+
+	/**
+	 * Advances the invalidation clock and returns its new time, to stamp
+	 * changes that a Validator compares with the start of loads.
+	 */
+	public synchronized long tick() {
+		return clock.incrementAndGet();
+	}
+
+	/**
+	 * The cached value, or null if it is missing or expired.
+	 */
+	public V getIfPresent(K key) {
+		V value = lookup(key);
+		if (value != null) {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * The cached value, computed by the loader on a miss; concurrent
+	 * callers with the same key share one computation.
+	 */
+	public V get(K key, Callable<V> loader) throws ExecutionException, InterruptedException {
+		V value = getIfPresent(key);
+		if (value != null) {
+			return value;
+		}
+		FutureTask<V> task = new FutureTask<V>(loader);
+		FutureTask<V> running = loading.putIfAbsent(key, task);
+		if (running != null) {
+			coalesced.incrementAndGet();
+			return running.get();
+		}
+		misses.incrementAndGet();
+		long start = clock.get();
+		try {
+			task.run();
+			value = task.get();
+			if (value != null) {
+				put(key, value, start);
+			}
+			return value;
+		} finally {
+			loading.remove(key, task);
+		}
+	}
+
+	private synchronized V lookup(K key) {
+		sketch.increment(key);
+		Entry<V> entry = window.get(key);
+		if (entry == null) {
+			entry = protectedSegment.get(key);
+		}
+		if (entry == null) {
+			entry = probation.remove(key);
+			if (entry != null) {
+				protectedSegment.put(key, entry);
+				if (protectedSegment.size() > protectedCapacity) {
+					K demoted = eldest(protectedSegment);
+					probation.put(demoted, protectedSegment.remove(demoted));
+				}
+			}
+		}
+		if (entry == null) {
+			return null;
+		}
+		if (System.nanoTime() - entry.expiresAt > 0) {
+			remove(key, Cause.EXPIRED);
+			expirations.incrementAndGet();
+			return null;
+		}
+		return entry.value;
+	}
+
+	public void put(K key, V value) {
+		put(key, value, clock.get());
+	}
+
+	// unless invalidated since the load started
+	private synchronized void put(K key, V value, long since) {
+		if (clearedAt > since || invalidatedAt[stripe(key)] > since
+				|| (validator != null && !validator.isCurrent(key, value, since))) {
+			return;
+		}
+		remove(key, Cause.REPLACED);
+		sketch.increment(key);
+		window.put(key, new Entry<V>(value, System.nanoTime() + ttlNanos));
+		if (listener != null) {
+			listener.added(key, value);
+		}
+		while (window.size() > windowCapacity) {
+			K candidate = eldest(window);
+			admit(candidate, window.remove(candidate));
+		}
+	}
+
+	// the window's eldest against the main space's
+	private void admit(K candidate, Entry<V> entry) {
+		if (probation.size() + protectedSegment.size() < mainCapacity) {
+			probation.put(candidate, entry);
+			return;
+		}
+		LinkedHashMap<K, Entry<V>> segment = probation.isEmpty() ? protectedSegment : probation;
+		K victim = eldest(segment);
+		if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+			evicted(victim, segment.remove(victim));
+			probation.put(candidate, entry);
+		} else {
+			evicted(candidate, entry);
+		}
+	}
+
+	private void evicted(K key, Entry<V> entry) {
+		evictions.incrementAndGet();
+		if (listener != null) {
+			listener.removed(key, entry.value, Cause.EVICTED);
+		}
+	}
+
+	private boolean remove(K key, Cause cause) {
+		Entry<V> entry = window.remove(key);
+		if (entry == null) {
+			entry = probation.remove(key);
+		}
+		if (entry == null) {
+			entry = protectedSegment.remove(key);
+		}
+		if (entry != null && listener != null) {
+			listener.removed(key, entry.value, cause);
+		}
+		return entry != null;
+	}
+
+	private static <K> K eldest(LinkedHashMap<K, ?> segment) {
+		return segment.keySet().iterator().next();
+	}
+
+	private static int stripe(Object key) {
+		int h = key.hashCode() * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
+	}
+
+	/**
+	 * Drops the entry; loads of the key running meanwhile are not cached.
+	 */
+	public synchronized void invalidate(K key) {
+		invalidatedAt[stripe(key)] = clock.incrementAndGet();
+		if (remove(key, Cause.INVALIDATED)) {
+			invalidations.incrementAndGet();
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		clearedAt = clock.incrementAndGet();
+		for (LinkedHashMap<K, Entry<V>> segment : segments()) {
+			for (Iterator<Map.Entry<K, Entry<V>>> it = segment.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<K, Entry<V>> entry = it.next();
+				it.remove();
+				invalidations.incrementAndGet();
+				if (listener != null) {
+					listener.removed(entry.getKey(), entry.getValue().value, Cause.INVALIDATED);
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private LinkedHashMap<K, Entry<V>>[] segments() {
+		return new LinkedHashMap[] { window, probation, protectedSegment };
+	}
+
+	public synchronized int size() {
+		return window.size() + probation.size() + protectedSegment.size();
+	}
+
+	public long hitCount() {
+		return hits.get();
+	}
+
+	public long missCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Misses that waited for the computation of another one.
+	 */
+	public long coalescedCount() {
+		return coalesced.get();
+	}
+
+	public long evictionCount() {
+		return evictions.get();
+	}
+
+	public long expirationCount() {
+		return expirations.get();
+	}
+
+	public long invalidationCount() {
+		return invalidations.get();
+	}
+
+	public double hitRate() {
+		long requests = hits.get() + misses.get() + coalesced.get();
+		return requests == 0 ? 0 : (double) hits.get() / requests;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("size %d, hit rate %.3f: %d hits, %d misses (%d coalesced), %d evicted, "
+				+ "%d expired, %d invalidated", size(), hitRate(), hitCount(), missCount() + coalescedCount(),
+				coalescedCount(), evictionCount(), expirationCount(), invalidationCount());
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters, halved every 10 * maximumSize
+	 * increments so that old popularity fades.
+	 */
+	private static final class FrequencySketch {
+		private static final int[] SEEDS = { 0x97cb3127, 0xb8f0f7a5, 0x7d2c9e63, 0xe3a8c5d1 };
+		private final byte[][] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int maximumSize) {
+			int width = Integer.highestOneBit(Math.max(16, maximumSize) - 1) << 1;
+			table = new byte[SEEDS.length][width];
+			mask = width - 1;
+			sampleSize = 10 * Math.max(16, maximumSize);
+		}
+
+		private int index(int hash, int row) {
+			int h = (hash + SEEDS[row]) * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		void increment(Object key) {
+			int hash = key.hashCode();
+			for (int row = 0; row < table.length; row++) {
+				int i = index(hash, row);
+				if (table[row][i] < 15) {
+					table[row][i]++;
+				}
+			}
+			if (++additions == sampleSize) {
+				for (byte[] counters : table) {
+					for (int i = 0; i < counters.length; i++) {
+						counters[i] >>= 1;
+					}
+				}
+				additions /= 2;
+			}
+		}
+
+		int frequency(Object key) {
+			int hash = key.hashCode();
+			int frequency = Integer.MAX_VALUE;
+			for (int row = 0; row < table.length; row++) {
+				frequency = Math.min(frequency, table[row][index(hash, row)]);
+			}
+			return frequency;
+		}
+	}
+
+}
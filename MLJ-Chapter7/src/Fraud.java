@@ -85,7 +85,12 @@ public class Fraud {
 		Evaluation eval = new Evaluation(data);
 		System.out.println("Vanilla approach\n----------------");
 		for(Classifier model : models){
-			eval.crossValidateModel(model, data, FOLDS, new Random(1), new String[] {});
+			if(NaiveBayesCrossValidation.isSupported(model)){
+				// fold models by subtracting fold counts, same results as crossValidateModel
+				NaiveBayesCrossValidation.crossValidateModel(eval, data, FOLDS, new Random(1));
+			} else {
+				eval.crossValidateModel(model, data, FOLDS, new Random(1), new String[] {});
+			}
 			System.out.println(model.getClass().getName() + "\n"+
 					"\tRecall:    "+eval.recall(FRAUD) + "\n"+
 					"\tPrecision: "+eval.precision(FRAUD) + "\n"+
@@ -0,0 +1,249 @@
+/**
+ * Chapter 7: Count-subtraction cross-validation of Naive Bayes
+ *
+ * A Naive Bayes model on nominal attributes is nothing but class and
+ * value/class counts, and counts are additive. The counts of the full data
+ * are taken once; the model of each fold is the full counts minus the
+ * counts of the test fold, which are taken while the fold is scored. The
+ * fold models are the models NaiveBayes builds on the training folds
+ * (Laplace-corrected discrete estimators), and they compute the class
+ * distribution the same way, so the evaluation is identical to
+ *
+ *   eval.crossValidateModel(new NaiveBayes(), data, numFolds, random);
+ *
+ * at about the cost of a single training run. Data with numeric attributes,
+ * where NaiveBayes fits a normal estimator whose precision depends on the
+ * training values, is cross-validated with NaiveBayes itself, and so is
+ * any data if this Weka version's Evaluation does not have the fold count
+ * field that crossValidateModel sets.
+ *
+ * Chapters 4 and 7 are built on their own, so each has a copy of this
+ * class; the two are the same apart from the chapter line and are changed
+ * together.
+ */
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.evaluation.Evaluation;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class NaiveBayesCrossValidation {
+
+	private final Instances header;
+	private final int classIndex, numClasses;
+	private final double[] classCounts;
+	private final double[][][] counts; // [attribute][value][class], null for the class
+
+	/**
+	 * Takes the counts of the full data.
+	 */
+	public NaiveBayesCrossValidation(Instances data) {
+		if (!isSupported(data)) {
+			throw new IllegalArgumentException("Count subtraction needs nominal attributes and class");
+		}
+		header = new Instances(data, 0);
+		classIndex = data.classIndex();
+		numClasses = data.numClasses();
+		classCounts = new double[numClasses];
+		counts = new double[data.numAttributes()][][];
+		for (int j = 0; j < counts.length; j++) {
+			if (j != classIndex) {
+				counts[j] = new double[data.attribute(j).numValues()][numClasses];
+			}
+		}
+		add(data, classCounts, counts);
+	}
+
+	/**
+	 * True if all attributes, the class included, are nominal.
+	 */
+	public static boolean isSupported(Instances data) {
+		if (data.classIndex() < 0) {
+			return false;
+		}
+		for (int j = 0; j < data.numAttributes(); j++) {
+			if (!data.attribute(j).isNominal()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * True for a NaiveBayes without kernel estimation or discretization.
+	 */
+	public static boolean isSupported(Classifier model) {
+		if (model.getClass() != NaiveBayes.class) {
+			return false;
+		}
+		NaiveBayes nb = (NaiveBayes) model;
+		return !nb.getUseKernelEstimator() && !nb.getUseSupervisedDiscretization();
+	}
+
+	private void add(Instances data, double[] classCounts, double[][][] counts) {
+		for (int i = 0; i < data.numInstances(); i++) {
+			Instance instance = data.instance(i);
+			if (instance.classIsMissing()) {
+				continue;
+			}
+			int c = (int) instance.classValue();
+			double weight = instance.weight();
+			classCounts[c] += weight;
+			for (int j = 0; j < counts.length; j++) {
+				if (j != classIndex && !instance.isMissing(j)) {
+					counts[j][(int) instance.value(j)][c] += weight;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The model NaiveBayes builds on all data except the test fold.
+	 */
+	public Classifier foldModel(Instances test) {
+		double[] foldClassCounts = new double[numClasses];
+		double[][][] foldCounts = new double[counts.length][][];
+		for (int j = 0; j < counts.length; j++) {
+			if (j != classIndex) {
+				foldCounts[j] = new double[counts[j].length][numClasses];
+			}
+		}
+		add(test, foldClassCounts, foldCounts);
+
+		// subtract, and apply the Laplace correction of DiscreteEstimator
+		double[] classProbs = new double[numClasses];
+		double classSum = numClasses;
+		for (int c = 0; c < numClasses; c++) {
+			classSum += classCounts[c] - foldClassCounts[c];
+		}
+		for (int c = 0; c < numClasses; c++) {
+			classProbs[c] = (1 + classCounts[c] - foldClassCounts[c]) / classSum;
+		}
+		double[][][] probs = new double[counts.length][][];
+		for (int j = 0; j < counts.length; j++) {
+			if (j == classIndex) {
+				continue;
+			}
+			int numValues = counts[j].length;
+			probs[j] = new double[numValues][numClasses];
+			for (int c = 0; c < numClasses; c++) {
+				double sum = numValues;
+				for (int v = 0; v < numValues; v++) {
+					sum += counts[j][v][c] - foldCounts[j][v][c];
+				}
+				for (int v = 0; v < numValues; v++) {
+					probs[j][v][c] = (1 + counts[j][v][c] - foldCounts[j][v][c]) / sum;
+				}
+			}
+		}
+		return new FoldModel(classIndex, classProbs, probs);
+	}
+
+	/**
+	 * Fitted Naive Bayes model of one fold. Built again on other data, it
+	 * is the NaiveBayes built on that data.
+	 */
+	private static class FoldModel extends AbstractClassifier {
+
+		private static final long serialVersionUID = 1L;
+
+		final int classIndex;
+		final double[] classProbs;
+		final double[][][] probs;
+		private NaiveBayes rebuilt;
+
+		FoldModel(int classIndex, double[] classProbs, double[][][] probs) {
+			this.classIndex = classIndex;
+			this.classProbs = classProbs;
+			this.probs = probs;
+		}
+
+		@Override
+		public void buildClassifier(Instances data) throws Exception {
+			NaiveBayes nb = new NaiveBayes();
+			nb.buildClassifier(data);
+			rebuilt = nb;
+		}
+
+		// same steps as NaiveBayes.distributionForInstance
+		@Override
+		public double[] distributionForInstance(Instance instance) throws Exception {
+			if (rebuilt != null) {
+				return rebuilt.distributionForInstance(instance);
+			}
+			int numClasses = classProbs.length;
+			double[] dist = classProbs.clone();
+			for (int j = 0; j < probs.length; j++) {
+				if (j == classIndex || instance.isMissing(j)) {
+					continue;
+				}
+				double[][] attributeProbs = probs[j];
+				int value = (int) instance.value(j);
+				double max = 0;
+				for (int c = 0; c < numClasses; c++) {
+					dist[c] *= Math.max(1e-75, attributeProbs[value][c]);
+					if (dist[c] > max) {
+						max = dist[c];
+					}
+				}
+				// danger of probability underflow
+				if ((max > 0) && (max < 1e-75)) {
+					for (int c = 0; c < numClasses; c++) {
+						dist[c] *= 1e75;
+					}
+				}
+			}
+			Utils.normalize(dist);
+			return dist;
+		}
+	}
+
+	/**
+	 * Same as eval.crossValidateModel(new NaiveBayes(), data, numFolds,
+	 * random), with count subtraction when the data is nominal.
+	 */
+	public static void crossValidateModel(Evaluation eval, Instances data, int numFolds, Random random)
+			throws Exception {
+		Field numFoldsField = numFoldsField();
+		if (!isSupported(data) || numFoldsField == null) {
+			eval.crossValidateModel(new NaiveBayes(), data, numFolds, random);
+			return;
+		}
+		data = new Instances(data);
+		data.randomize(random);
+		data.stratify(numFolds);
+		NaiveBayesCrossValidation cv = new NaiveBayesCrossValidation(data);
+		for (int fold = 0; fold < numFolds; fold++) {
+			// trainCV draws from random and sets the priors, as in crossValidateModel
+			Instances train = data.trainCV(numFolds, fold, random);
+			eval.setPriors(train);
+			Instances test = data.testCV(numFolds, fold);
+			eval.evaluateModel(cv.foldModel(test), test);
+		}
+		numFoldsField.setInt(eval, numFolds);
+	}
+
+	// crossValidateModel records the number of folds, Evaluation has no setter for it; null if not found
+	private static Field numFoldsField() {
+		try {
+			Field field = Evaluation.class.getDeclaredField("m_NumFolds");
+			if (field.getType() != int.class) {
+				return null;
+			}
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// not accessible
+			return null;
+		}
+	}
+
+}